@@ -33,11 +33,16 @@ import android.os.AsyncTask;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
 
@@ -46,6 +51,8 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
     }
 
     private static final int DEFAULT_COMPRESS_QUALITY = 90;
+    // Pixels of the source decoded at a time, 4MB in ARGB_8888
+    private static final int DEFAULT_MAX_BAND_PIXELS = 1024 * 1024;
     private static final String LOGTAG = "BitmapCropTask";
 
     Uri mInUri = null;
@@ -63,6 +70,7 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
     Resources mResources;
     BitmapCropTask.OnBitmapCroppedHandler mOnBitmapCroppedHandler;
     boolean mNoCrop;
+    int mMaxBandPixels = DEFAULT_MAX_BAND_PIXELS;
 
     public BitmapCropTask(Context c, String filePath,
             RectF cropBounds, int rotation, int outWidth, int outHeight,
@@ -119,6 +127,14 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
         mNoCrop = value;
     }
 
+    /**
+     * Sets how many pixels of the source are decoded at a time. The crop is decoded in bands
+     * of rows of at most that size, next to the output bitmap.
+     */
+    public void setMaxBandPixels(int maxBandPixels) {
+        mMaxBandPixels = Math.max(1, maxBandPixels);
+    }
+
     public void setOnEndRunnable(Runnable onEndRunnable) {
         mOnEndRunnable = onEndRunnable;
     }
@@ -253,12 +269,8 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
 
             Bitmap crop = null;
             if (decoder != null) {
-                // Do region decoding to get crop bitmap
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                if (scaleDownSampleSize > 1) {
-                    options.inSampleSize = scaleDownSampleSize;
-                }
-                crop = decoder.decodeRegion(roundedTrueCrop, options);
+                // Decode the region band by band straight into the output
+                crop = decodeInBands(decoder, roundedTrueCrop, scaleDownSampleSize, rotateMatrix);
                 decoder.recycle();
             }
 
@@ -310,6 +322,19 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
                     crop = Bitmap.createBitmap(fullSize, roundedTrueCrop.left,
                             roundedTrueCrop.top, roundedTrueCrop.width(),
                             roundedTrueCrop.height());
+
+                    Matrix m = getOutputMatrix(crop.getWidth(), crop.getHeight(), rotateMatrix);
+                    if (m != null) {
+                        Bitmap tmp = Bitmap.createBitmap(mOutWidth, mOutHeight,
+                                Bitmap.Config.ARGB_8888);
+                        if (tmp != null) {
+                            Canvas c = new Canvas(tmp);
+                            Paint p = new Paint();
+                            p.setFilterBitmap(true);
+                            c.drawBitmap(crop, m, p);
+                            crop = tmp;
+                        }
+                    }
                 }
             }
 
@@ -318,77 +343,160 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
                 failure = true;
                 return false;
             }
-            if (mOutWidth > 0 && mOutHeight > 0 || mRotation > 0) {
-                float[] dimsAfter = new float[] { crop.getWidth(), crop.getHeight() };
-                rotateMatrix.mapPoints(dimsAfter);
-                dimsAfter[0] = Math.abs(dimsAfter[0]);
-                dimsAfter[1] = Math.abs(dimsAfter[1]);
-
-                if (!(mOutWidth > 0 && mOutHeight > 0)) {
-                    mOutWidth = Math.round(dimsAfter[0]);
-                    mOutHeight = Math.round(dimsAfter[1]);
-                }
-
-                RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
-                RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
 
-                Matrix m = new Matrix();
-                if (mRotation == 0) {
-                    m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-                } else {
-                    Matrix m1 = new Matrix();
-                    m1.setTranslate(-crop.getWidth() / 2f, -crop.getHeight() / 2f);
-                    Matrix m2 = new Matrix();
-                    m2.setRotate(mRotation);
-                    Matrix m3 = new Matrix();
-                    m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
-                    Matrix m4 = new Matrix();
-                    m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-
-                    Matrix c1 = new Matrix();
-                    c1.setConcat(m2, m1);
-                    Matrix c2 = new Matrix();
-                    c2.setConcat(m4, m3);
-                    m.setConcat(c2, c1);
-                }
+            if (mSaveCroppedBitmap) {
+                mCroppedBitmap = crop;
+            }
 
-                Bitmap tmp = Bitmap.createBitmap((int) returnRect.width(),
-                        (int) returnRect.height(), Bitmap.Config.ARGB_8888);
-                if (tmp != null) {
-                    Canvas c = new Canvas(tmp);
-                    Paint p = new Paint();
-                    p.setFilterBitmap(true);
-                    c.drawBitmap(crop, m, p);
-                    crop = tmp;
-                }
+            // If we need to set to the wallpaper, compress and set it
+            if (mSetWallpaper && wallpaperManager != null) {
+                failure = !setWallpaper(wallpaperManager, crop);
             }
+        }
+        return !failure; // True if any of the operations failed
+    }
 
-            if (mSaveCroppedBitmap) {
-                mCroppedBitmap = crop;
+    /**
+     * Returns the matrix which rotates and scales a crop of the given size to the output size,
+     * setting the output size if it was not given, or null if the crop is used as it is.
+     */
+    private Matrix getOutputMatrix(float cropWidth, float cropHeight, Matrix rotateMatrix) {
+        if (!(mOutWidth > 0 && mOutHeight > 0 || mRotation > 0)) {
+            return null;
+        }
+        float[] dimsAfter = new float[] { cropWidth, cropHeight };
+        rotateMatrix.mapPoints(dimsAfter);
+        dimsAfter[0] = Math.abs(dimsAfter[0]);
+        dimsAfter[1] = Math.abs(dimsAfter[1]);
+
+        if (!(mOutWidth > 0 && mOutHeight > 0)) {
+            mOutWidth = Math.round(dimsAfter[0]);
+            mOutHeight = Math.round(dimsAfter[1]);
+        }
+
+        RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
+        RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
+
+        Matrix m = new Matrix();
+        if (mRotation == 0) {
+            m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+        } else {
+            Matrix m1 = new Matrix();
+            m1.setTranslate(-cropWidth / 2f, -cropHeight / 2f);
+            Matrix m2 = new Matrix();
+            m2.setRotate(mRotation);
+            Matrix m3 = new Matrix();
+            m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
+            Matrix m4 = new Matrix();
+            m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+
+            Matrix c1 = new Matrix();
+            c1.setConcat(m2, m1);
+            Matrix c2 = new Matrix();
+            c2.setConcat(m4, m3);
+            m.setConcat(c2, c1);
+        }
+        return m;
+    }
+
+    /**
+     * Decodes {@param region} in bands of rows, each of them rotated and scaled into the output
+     * bitmap right away, so that only the output and one band of the source are in memory
+     * rather than the whole decoded region and its transformed copy.
+     *
+     * @return the output bitmap, or null if a band could not be decoded
+     */
+    private Bitmap decodeInBands(BitmapRegionDecoder decoder, Rect region, int sampleSize,
+            Matrix rotateMatrix) {
+        // Size of the decoded region
+        int width = Math.max(1, region.width() / sampleSize);
+        int height = Math.max(1, region.height() / sampleSize);
+
+        Matrix m = getOutputMatrix(width, height, rotateMatrix);
+        if (m == null) {
+            m = new Matrix();
+            mOutWidth = width;
+            mOutHeight = height;
+        }
+        Bitmap out = Bitmap.createBitmap(mOutWidth, mOutHeight, Bitmap.Config.ARGB_8888);
+        Canvas c = new Canvas(out);
+        Paint p = new Paint();
+        p.setFilterBitmap(true);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        int bandRows = Math.max(1, mMaxBandPixels / width);
+        Rect bandRect = new Rect();
+        RectF clip = new RectF();
+        Matrix bandMatrix = new Matrix();
+        for (int top = 0; top < height; top += bandRows) {
+            int bottom = Math.min(height, top + bandRows);
+            // Decode a row more on each side, so that the filtering does not show the seams.
+            int decodeTop = Math.max(0, top - 1);
+            int decodeBottom = Math.min(height, bottom + 1);
+            bandRect.set(region.left, region.top + decodeTop * sampleSize,
+                    region.right, Math.min(region.bottom, region.top + decodeBottom * sampleSize));
+            Bitmap band = decoder.decodeRegion(bandRect, options);
+            if (band == null) {
+                out.recycle();
+                return null;
             }
 
-            // Compress to byte array
-            ByteArrayOutputStream tmpOut = new ByteArrayOutputStream(2048);
-            if (crop.compress(CompressFormat.JPEG, DEFAULT_COMPRESS_QUALITY, tmpOut)) {
-                // If we need to set to the wallpaper, set it
-                if (mSetWallpaper && wallpaperManager != null) {
-                    try {
-                        byte[] outByteArray = tmpOut.toByteArray();
-                        wallpaperManager.setStream(new ByteArrayInputStream(outByteArray));
-                        if (mOnBitmapCroppedHandler != null) {
-                            mOnBitmapCroppedHandler.onBitmapCropped(outByteArray);
-                        }
-                    } catch (IOException e) {
-                        Log.w(LOGTAG, "cannot write stream to wallpaper", e);
-                        failure = true;
-                    }
-                }
-            } else {
+            bandMatrix.set(m);
+            bandMatrix.preTranslate(0, decodeTop);
+            clip.set(0, top, width, bottom);
+            m.mapRect(clip);
+            c.save();
+            c.clipRect(clip);
+            c.drawBitmap(band, bandMatrix, p);
+            c.restore();
+            band.recycle();
+        }
+        c.setBitmap(null);
+        return out;
+    }
+
+    /**
+     * Compresses {@param crop} to a file in the cache and sets it as the wallpaper from there,
+     * without holding the compressed image in memory unless a handler wants it.
+     */
+    private boolean setWallpaper(WallpaperManager wallpaperManager, Bitmap crop) {
+        File tmpFile = null;
+        OutputStream os = null;
+        InputStream is = null;
+        try {
+            tmpFile = File.createTempFile("crop", ".jpg", mContext.getCacheDir());
+            os = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            boolean compressed = crop.compress(CompressFormat.JPEG, DEFAULT_COMPRESS_QUALITY, os);
+            os.close();
+            os = null;
+            if (!compressed) {
                 Log.w(LOGTAG, "cannot compress bitmap");
-                failure = true;
+                return false;
+            }
+
+            is = new BufferedInputStream(new FileInputStream(tmpFile));
+            wallpaperManager.setStream(is);
+            Utils.closeSilently(is);
+            is = null;
+
+            if (mOnBitmapCroppedHandler != null) {
+                byte[] outByteArray = new byte[(int) tmpFile.length()];
+                is = new DataInputStream(new FileInputStream(tmpFile));
+                ((DataInputStream) is).readFully(outByteArray);
+                mOnBitmapCroppedHandler.onBitmapCropped(outByteArray);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "cannot write stream to wallpaper", e);
+            return false;
+        } finally {
+            Utils.closeSilently(os);
+            Utils.closeSilently(is);
+            if (tmpFile != null) {
+                tmpFile.delete();
             }
         }
-        return !failure; // True if any of the operations failed
     }
 
     @Override
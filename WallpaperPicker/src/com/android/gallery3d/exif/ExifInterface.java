@@ -1873,6 +1873,55 @@ public class ExifInterface {
         }
     }
 
+    /**
+     * Returns the rotation degrees given by the Orientation tag of a jpeg, or 0
+     * if it has none. Unlike {@link #readExif(InputStream)}, this only reads
+     * IFD 0 up to the Orientation tag, and creates no ExifTags.
+     *
+     * @param buf a ByteBuffer containing a jpeg compressed image from its
+     *            position, such as a memory-mapped file.
+     */
+    public static int getRotationFromJpeg(ByteBuffer buf) {
+        return getRotationForOrientationValue((short) ExifParser.parseOrientation(buf));
+    }
+
+    /**
+     * Returns the rotation degrees given by the Orientation tag of a jpeg, or 0
+     * if it has none. The stream is read up to the exif data only.
+     *
+     * @param inStream an InputStream containing a jpeg compressed image.
+     * @throws IOException
+     */
+    public static int getRotationFromJpeg(InputStream inStream) throws IOException {
+        if (inStream == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        return getRotationForOrientationValue((short) ExifParser.parseOrientation(inStream));
+    }
+
+    /**
+     * Returns the rotation degrees given by the Orientation tag of a jpeg file,
+     * or 0 if it has none. The file is memory-mapped, only the pages holding the
+     * exif data are read.
+     *
+     * @param fileName a string representing the filepath to jpeg file.
+     * @throws IOException
+     */
+    public static int getRotationFromJpeg(String fileName) throws IOException {
+        if (fileName == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(fileName, "r");
+            // The mapping stays valid after the file is closed.
+            return getRotationFromJpeg(
+                    file.getChannel().map(MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            closeSilently(file);
+        }
+    }
+
     /**
      * Returns the rotation degrees corresponding to an ExifTag Orientation
      * value.
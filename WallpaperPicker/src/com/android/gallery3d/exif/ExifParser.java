@@ -20,6 +20,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.util.Map.Entry;
@@ -162,6 +163,8 @@ class ExifParser {
     private int mTiffStartPosition;
     private final ExifInterface mInterface;
 
+    private static final short TAG_ORIENTATION_ID = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_ORIENTATION);
     private static final short TAG_EXIF_IFD = ExifInterface
             .getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
     private static final short TAG_GPS_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
@@ -256,6 +259,142 @@ class ExifParser {
                 | OPTION_THUMBNAIL, iRef);
     }
 
+    /**
+     * Returns the value of the orientation tag in IFD 0 of the JPEG starting at the position of
+     * {@param buf}, or 0 if there is none. Only the markers before the EXIF data and the entries
+     * of IFD 0 up to the tag are read, in place, without creating the tags.
+     */
+    protected static int parseOrientation(ByteBuffer buf) {
+        int pos = buf.position();
+        int limit = buf.limit();
+        if (pos + 4 > limit || (short) getShort(buf, pos, false) != JpegHeader.SOI) {
+            return 0;
+        }
+        pos += 2;
+        while (pos + 4 <= limit) {
+            short marker = (short) getShort(buf, pos, false);
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                return 0;
+            }
+            int length = getShort(buf, pos + 2, false);
+            if (length < 2) {
+                return 0;
+            }
+            int end = Math.min(pos + 2 + length, limit);
+            // Some invalid formatted image contains multiple APP1,
+            // try to find the one with Exif data.
+            if (marker == JpegHeader.APP1 && length >= 8 && pos + 10 <= limit
+                    && getInt(buf, pos + 4, false) == EXIF_HEADER
+                    && (short) getShort(buf, pos + 8, false) == EXIF_HEADER_TAIL) {
+                return parseOrientationInTiff(buf, pos + 10, end);
+            }
+            pos = end;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the orientation tag from the TIFF data between {@param tiff} and {@param end}.
+     */
+    private static int parseOrientationInTiff(ByteBuffer buf, int tiff, int end) {
+        if (tiff + DEFAULT_IFD0_OFFSET > end) {
+            return 0;
+        }
+        boolean littleEndian;
+        short byteOrder = (short) getShort(buf, tiff, false);
+        if (byteOrder == LITTLE_ENDIAN_TAG) {
+            littleEndian = true;
+        } else if (byteOrder == BIG_ENDIAN_TAG) {
+            littleEndian = false;
+        } else {
+            return 0;
+        }
+        if ((short) getShort(buf, tiff + 2, littleEndian) != TIFF_HEADER_TAIL) {
+            return 0;
+        }
+        long ifd0 = getInt(buf, tiff + 4, littleEndian) & 0xffffffffL;
+        if (ifd0 < DEFAULT_IFD0_OFFSET || tiff + ifd0 + OFFSET_SIZE > end) {
+            return 0;
+        }
+        int entry = tiff + (int) ifd0;
+        int count = getShort(buf, entry, littleEndian);
+        entry += OFFSET_SIZE;
+        for (int i = 0; i < count && entry + TAG_SIZE <= end; i++, entry += TAG_SIZE) {
+            int tagId = getShort(buf, entry, littleEndian);
+            if (tagId == TAG_ORIENTATION_ID) {
+                if (getShort(buf, entry + 2, littleEndian) != ExifTag.TYPE_UNSIGNED_SHORT) {
+                    return 0;
+                }
+                // A short value is stored at the start of the value field.
+                return getShort(buf, entry + 8, littleEndian);
+            }
+            // The entries are not always sorted by tag, ExifOutputStream writes them in hash
+            // order, so all of them are checked.
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the APP1 segments of the JPEG in {@param inputStream} until the one with the EXIF
+     * data, and returns the value of its orientation tag, or 0 if there is none. Stops reading
+     * at the first frame, unlike the parser.
+     */
+    protected static int parseOrientation(InputStream inputStream) throws IOException {
+        CountedDataInputStream dataStream = new CountedDataInputStream(inputStream);
+        if (dataStream.readShort() != JpegHeader.SOI) {
+            return 0;
+        }
+        short marker = dataStream.readShort();
+        while (marker != JpegHeader.EOI && !JpegHeader.isSofMarker(marker)) {
+            int length = dataStream.readUnsignedShort();
+            if (length < 2) {
+                return 0;
+            }
+            if (marker == JpegHeader.APP1 && length >= 8) {
+                // The segment is at most 64K, read it whole and parse it in place.
+                byte[] segment = new byte[length + 2];
+                segment[0] = (byte) (marker >> 8);
+                segment[1] = (byte) marker;
+                segment[2] = (byte) (length >> 8);
+                segment[3] = (byte) length;
+                dataStream.readOrThrow(segment, 4, length - 2);
+                int orientation = parseApp1Orientation(ByteBuffer.wrap(segment));
+                if (orientation != -1) {
+                    return orientation;
+                }
+            } else if ((length - 2) != dataStream.skip(length - 2)) {
+                return 0;
+            }
+            marker = dataStream.readShort();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the orientation in the APP1 segment at the start of {@param buf}, or -1 if the
+     * segment has no EXIF data.
+     */
+    private static int parseApp1Orientation(ByteBuffer buf) {
+        int limit = buf.limit();
+        if (limit >= 10 && getInt(buf, 4, false) == EXIF_HEADER
+                && (short) getShort(buf, 8, false) == EXIF_HEADER_TAIL) {
+            return parseOrientationInTiff(buf, 10, limit);
+        }
+        return -1;
+    }
+
+    private static int getShort(ByteBuffer buf, int index, boolean littleEndian) {
+        int b0 = buf.get(index) & 0xff;
+        int b1 = buf.get(index + 1) & 0xff;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static int getInt(ByteBuffer buf, int index, boolean littleEndian) {
+        int hi = getShort(buf, littleEndian ? index + 2 : index, littleEndian);
+        int lo = getShort(buf, littleEndian ? index : index + 2, littleEndian);
+        return (hi << 16) | lo;
+    }
+
     /**
      * Moves the parser forward and returns the next parsing event
      *
@@ -22,8 +22,6 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 import android.util.Pair;
@@ -86,12 +84,11 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
             String filename = result.getString(1);
             File file = new File(mContext.getFilesDir(), filename);
 
-            Bitmap thumb = BitmapFactory.decodeFile(file.getAbsolutePath());
-            if (thumb != null) {
-                mImages.add(new SavedWallpaperTile(result.getInt(0),
-                        new File(mContext.getFilesDir(), result.getString(2)),
-                        new BitmapDrawable(thumb)));
-            }
+            // The thumbnails are decoded by the tiles, in the background
+            SavedWallpaperTile tile = new SavedWallpaperTile(result.getInt(0),
+                    new File(mContext.getFilesDir(), result.getString(2)), null);
+            tile.mThumbSource = new ThumbnailLoader.FileThumbnailSource(file);
+            mImages.add(tile);
         }
         result.close();
     }
@@ -109,12 +106,8 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
     }
 
     public View getView(int position, View convertView, ViewGroup parent) {
-        Drawable thumbDrawable = mImages.get(position).mThumb;
-        if (thumbDrawable == null) {
-            Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
-        }
         return WallpaperPickerActivity.createImageTileView(
-                mLayoutInflater, convertView, parent, thumbDrawable);
+                mLayoutInflater, convertView, parent, mImages.get(position));
     }
 
     private Pair<String, String> getImageFilenames(int id) {
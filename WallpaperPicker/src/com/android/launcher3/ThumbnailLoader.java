@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.gallery3d.common.Utils;
+import com.android.launcher3.util.Thunk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the thumbnails of the wallpaper picker tiles on a few background threads, so that the
+ * picker shows its tiles right away and fills them in as the thumbnails come.
+ * <p/>
+ * Thumbnails are kept in a memory cache for the life of the process, and the ones which are
+ * expensive to create, such as those scaled from a full image, also in a disk cache keyed by the
+ * identity of the image and the size of the thumbnail.
+ */
+public class ThumbnailLoader {
+    private static final String TAG = "ThumbnailLoader";
+
+    private static final String DIR_NAME = "wallpaper_thumbs";
+    private static final int THREADS = 2;
+    private static final int KEEP_ALIVE_SECONDS = 1;
+    private static final int MAX_DISK_FILES = 64;
+    private static final int MAX_MEMORY_BYTES = 8 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 95;
+
+    /**
+     * Receives a thumbnail on the main thread, or null if it could not be loaded.
+     */
+    public interface Callback {
+        void onThumbnailLoaded(Bitmap thumb);
+    }
+
+    /**
+     * An image which can be made into a thumbnail.
+     */
+    public static abstract class ThumbnailSource {
+        /**
+         * Returns a key which identifies the image within this process, or null if the thumbnail
+         * should not be cached. Called on the main thread, so it must be cheap.
+         */
+        public abstract String getKey();
+
+        /**
+         * Returns a key which identifies the content of the image, or null if the thumbnail
+         * should not be cached on disk. Called on a background thread.
+         */
+        public String getDiskCacheKey() {
+            return null;
+        }
+
+        /**
+         * Creates the thumbnail, on a background thread.
+         */
+        public abstract Bitmap loadThumbnail(Context context, Point size);
+    }
+
+    /**
+     * A thumbnail which is already stored in a file.
+     */
+    public static class FileThumbnailSource extends ThumbnailSource {
+        private final File mFile;
+
+        public FileThumbnailSource(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public String getKey() {
+            return mFile.getAbsolutePath();
+        }
+
+        @Override
+        public Bitmap loadThumbnail(Context context, Point size) {
+            return BitmapFactory.decodeFile(mFile.getAbsolutePath());
+        }
+    }
+
+    private static ThumbnailLoader sInstance;
+
+    private final Context mContext;
+    private final File mDir;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> mMemoryCache;
+    // Callbacks of the thumbnails being loaded, so that each is loaded once. Main thread only.
+    private final HashMap<String, ArrayList<Callback>> mPending = new HashMap<>();
+
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ThumbnailLoader(Context context) {
+        mContext = context;
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "wallpaper-thumbnail-" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        int maxBytes = (int) Math.min(MAX_MEMORY_BYTES, Runtime.getRuntime().maxMemory() / 16);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Loads the thumbnail of {@param source} in the background and hands it to
+     * {@param callback}, right away if it is in the memory cache. Must be called on the main
+     * thread.
+     */
+    public void load(final ThumbnailSource source, final Point size, final Callback callback) {
+        String key = source.getKey();
+        final String memoryKey = key == null ? null : getSizedKey(key, size);
+        if (memoryKey != null) {
+            Bitmap cached = mMemoryCache.get(memoryKey);
+            if (cached != null) {
+                callback.onThumbnailLoaded(cached);
+                return;
+            }
+            ArrayList<Callback> callbacks = mPending.get(memoryKey);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            mPending.put(memoryKey, callbacks);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumb = loadInBackground(source, size);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (memoryKey == null) {
+                            callback.onThumbnailLoaded(thumb);
+                            return;
+                        }
+                        if (thumb != null) {
+                            mMemoryCache.put(memoryKey, thumb);
+                        }
+                        for (Callback c : mPending.remove(memoryKey)) {
+                            c.onThumbnailLoaded(thumb);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Thunk Bitmap loadInBackground(ThumbnailSource source, Point size) {
+        File cacheFile = null;
+        try {
+            String diskKey = source.getDiskCacheKey();
+            if (diskKey != null) {
+                cacheFile = new File(mDir, hash(getSizedKey(diskKey, size)));
+                Bitmap thumb = BitmapFactory.decodeFile(cacheFile.getAbsolutePath());
+                if (thumb != null) {
+                    cacheFile.setLastModified(System.currentTimeMillis());
+                    return thumb;
+                }
+            }
+
+            Bitmap thumb = source.loadThumbnail(mContext, size);
+            if (thumb != null && cacheFile != null) {
+                writeCacheFile(cacheFile, thumb);
+            }
+            return thumb;
+        } catch (SecurityException e) {
+            // Permissions granted to the picker for an image are revoked when it finishes.
+            Log.w(TAG, "Unable to load thumbnail", e);
+            return null;
+        }
+    }
+
+    private void writeCacheFile(File file, Bitmap thumb) {
+        mDir.mkdirs();
+        File tmpFile = new File(mDir, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            if (thumb.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                out.close();
+                out = null;
+                tmpFile.renameTo(file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+        } finally {
+            Utils.closeSilently(out);
+            tmpFile.delete();
+        }
+        trimDiskCache();
+    }
+
+    /**
+     * Deletes the least recently used thumbnails beyond {@link #MAX_DISK_FILES}.
+     */
+    private synchronized void trimDiskCache() {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_DISK_FILES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length - MAX_DISK_FILES; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static String getSizedKey(String key, Point size) {
+        return key + "|" + size.x + "x" + size.y;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes());
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode()) + "_" + key.length();
+        }
+    }
+}
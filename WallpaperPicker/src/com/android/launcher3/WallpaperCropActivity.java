@@ -49,6 +49,7 @@ import com.android.launcher3.util.WallpaperUtils;
 import com.android.photos.BitmapRegionTileSource;
 import com.android.photos.BitmapRegionTileSource.BitmapSource;
 import com.android.photos.BitmapRegionTileSource.BitmapSource.InBitmapProvider;
+import com.android.photos.TileCache;
 import com.android.photos.views.TiledImageRenderer.TileSource;
 
 import java.util.Collections;
@@ -188,7 +189,7 @@ public class WallpaperCropActivity extends BaseActivity implements Handler.Callb
                         }
                         return bitmapToReuse;
                     }
-                });
+                }, TileCache.getInstance(getContext()));
             } catch (SecurityException securityException) {
                 if (isActivityDestroyed()) {
                     // Temporarily granted permissions are revoked when the activity
@@ -40,7 +40,6 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.Manifest;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Process;
@@ -114,6 +113,8 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
     public static abstract class WallpaperTileInfo {
         protected View mView;
         public Drawable mThumb;
+        // Loads mThumb in the background when it is not given
+        public ThumbnailLoader.ThumbnailSource mThumbSource;
 
         public void setView(View v) {
             mView = v;
@@ -240,7 +241,7 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         public void onClick(final WallpaperPickerActivity a) {
             a.setWallpaperButtonEnabled(false);
             final BitmapRegionTileSource.ResourceBitmapSource bitmapSource =
-                    new BitmapRegionTileSource.ResourceBitmapSource(mResources, mResId);
+                    new BitmapRegionTileSource.ResourceBitmapSource(a, mResources, mResId);
             a.setCropViewTileSource(bitmapSource, false, false, new CropViewScaleProvider() {
 
                 @Override
@@ -846,38 +847,20 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         // Load the thumbnail
         final ImageView image = (ImageView) pickedImageThumbnail.findViewById(R.id.wallpaper_image);
         final Point defaultSize = getDefaultThumbnailSize(this.getResources());
-        final Context context = getContext();
-        new AsyncTask<Void, Bitmap, Bitmap>() {
-            protected Bitmap doInBackground(Void...args) {
-                try {
-                    int rotation = BitmapUtils.getRotationFromExif(context, uri);
-                    return createThumbnail(defaultSize, context, uri, null, null, 0, rotation, false);
-                } catch (SecurityException securityException) {
-                    if (isActivityDestroyed()) {
-                        // Temporarily granted permissions are revoked when the activity
-                        // finishes, potentially resulting in a SecurityException here.
-                        // Even though {@link #isDestroyed} might also return true in different
-                        // situations where the configuration changes, we are fine with
-                        // catching these cases here as well.
-                        cancel(false);
-                    } else {
-                        // otherwise it had a different cause and we throw it further
-                        throw securityException;
+        ThumbnailLoader.getInstance(this).load(new UriThumbnailSource(this, uri), defaultSize,
+                new ThumbnailLoader.Callback() {
+                    @Override
+                    public void onThumbnailLoaded(Bitmap thumb) {
+                        if (thumb != null) {
+                            image.setImageBitmap(thumb);
+                            Drawable thumbDrawable = image.getDrawable();
+                            thumbDrawable.setDither(true);
+                            pickedImageThumbnail.setVisibility(View.VISIBLE);
+                        } else {
+                            Log.e(TAG, "Error loading thumbnail for uri=" + uri);
+                        }
                     }
-                    return null;
-                }
-            }
-            protected void onPostExecute(Bitmap thumb) {
-                if (!isCancelled() && thumb != null) {
-                    image.setImageBitmap(thumb);
-                    Drawable thumbDrawable = image.getDrawable();
-                    thumbDrawable.setDither(true);
-                    pickedImageThumbnail.setVisibility(View.VISIBLE);
-                } else {
-                    Log.e(TAG, "Error loading thumbnail for uri=" + uri);
-                }
-            }
-        }.execute();
+                });
 
         UriWallpaperInfo info = new UriWallpaperInfo(uri);
         pickedImageThumbnail.setTag(info);
@@ -951,9 +934,10 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
                     }
 
                     File thumbnail = new File(systemDir, name + "_small" + extension);
-                    Bitmap thumb = BitmapFactory.decodeFile(thumbnail.getAbsolutePath());
-                    if (thumb != null) {
-                        bundled.add(new FileWallpaperInfo(file, new BitmapDrawable(thumb)));
+                    if (thumbnail.isFile()) {
+                        FileWallpaperInfo info = new FileWallpaperInfo(file, null);
+                        info.mThumbSource = new ThumbnailLoader.FileThumbnailSource(thumbnail);
+                        bundled.add(info);
                     }
                 }
             }
@@ -982,11 +966,11 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         return bundled;
     }
 
-    private boolean writeImageToFileAsJpeg(File f, Bitmap b) {
+    private static boolean writeImageToFileAsJpeg(Context context, File f, Bitmap b) {
         try {
             f.createNewFile();
             FileOutputStream thumbFileStream =
-                    getContext().openFileOutput(f.getName(), Context.MODE_PRIVATE);
+                    context.openFileOutput(f.getName(), Context.MODE_PRIVATE);
             b.compress(Bitmap.CompressFormat.JPEG, 95, thumbFileStream);
             thumbFileStream.close();
             return true;
@@ -997,78 +981,155 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         return false;
     }
 
-    private File getDefaultThumbFile() {
-        return new File(getContext().getFilesDir(), Build.VERSION.SDK_INT
+    @Thunk static File getDefaultThumbFile(Context context) {
+        return new File(context.getFilesDir(), Build.VERSION.SDK_INT
                 + "_" + LauncherFiles.DEFAULT_WALLPAPER_THUMBNAIL);
     }
 
-    private boolean saveDefaultWallpaperThumb(Bitmap b) {
+    @Thunk static boolean saveDefaultWallpaperThumb(Context context, Bitmap b) {
         // Delete old thumbnails.
-        new File(getContext().getFilesDir(), LauncherFiles.DEFAULT_WALLPAPER_THUMBNAIL_OLD).delete();
-        new File(getContext().getFilesDir(), LauncherFiles.DEFAULT_WALLPAPER_THUMBNAIL).delete();
+        new File(context.getFilesDir(), LauncherFiles.DEFAULT_WALLPAPER_THUMBNAIL_OLD).delete();
+        new File(context.getFilesDir(), LauncherFiles.DEFAULT_WALLPAPER_THUMBNAIL).delete();
 
         for (int i = Build.VERSION_CODES.JELLY_BEAN; i < Build.VERSION.SDK_INT; i++) {
-            new File(getContext().getFilesDir(), i + "_"
+            new File(context.getFilesDir(), i + "_"
                     + LauncherFiles.DEFAULT_WALLPAPER_THUMBNAIL).delete();
         }
-        return writeImageToFileAsJpeg(getDefaultThumbFile(), b);
+        return writeImageToFileAsJpeg(context, getDefaultThumbFile(context), b);
     }
 
     private ResourceWallpaperInfo getPreKKDefaultWallpaperInfo() {
-        Resources sysRes = Resources.getSystem();
-        int resId = sysRes.getIdentifier("default_wallpaper", "drawable", "android");
+        final Resources sysRes = Resources.getSystem();
+        final int resId = sysRes.getIdentifier("default_wallpaper", "drawable", "android");
+        if (resId == 0) {
+            return null;
+        }
 
-        File defaultThumbFile = getDefaultThumbFile();
-        Bitmap thumb = null;
-        boolean defaultWallpaperExists = false;
-        if (defaultThumbFile.exists()) {
-            thumb = BitmapFactory.decodeFile(defaultThumbFile.getAbsolutePath());
-            defaultWallpaperExists = true;
-        } else {
-            Resources res = getResources();
-            Point defaultThumbSize = getDefaultThumbnailSize(res);
-            int rotation = BitmapUtils.getRotationFromExif(res, resId);
-            thumb = createThumbnail(
-                    defaultThumbSize, getContext(), null, null, sysRes, resId, rotation, false);
-            if (thumb != null) {
-                defaultWallpaperExists = saveDefaultWallpaperThumb(thumb);
+        ResourceWallpaperInfo info = new ResourceWallpaperInfo(sysRes, resId, null);
+        info.mThumbSource = new DefaultThumbnailSource() {
+            @Override
+            protected Bitmap createThumbnail(Context context, Point size) {
+                int rotation = BitmapUtils.getRotationFromExif(sysRes, resId);
+                return WallpaperPickerActivity.createThumbnail(
+                        size, context, null, null, sysRes, resId, rotation, false);
             }
-        }
-        if (defaultWallpaperExists) {
-            return new ResourceWallpaperInfo(sysRes, resId, new BitmapDrawable(thumb));
-        }
-        return null;
+        };
+        return info;
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
     private DefaultWallpaperInfo getDefaultWallpaper() {
-        File defaultThumbFile = getDefaultThumbFile();
-        Bitmap thumb = null;
-        boolean defaultWallpaperExists = false;
-        if (defaultThumbFile.exists()) {
-            thumb = BitmapFactory.decodeFile(defaultThumbFile.getAbsolutePath());
-            defaultWallpaperExists = true;
-        } else {
-            Resources res = getResources();
-            Point defaultThumbSize = getDefaultThumbnailSize(res);
-            Drawable wallpaperDrawable = WallpaperManager.getInstance(getContext()).getBuiltInDrawable(
-                    defaultThumbSize.x, defaultThumbSize.y, true, 0.5f, 0.5f);
-            if (wallpaperDrawable != null) {
-                thumb = Bitmap.createBitmap(
-                        defaultThumbSize.x, defaultThumbSize.y, Bitmap.Config.ARGB_8888);
+        DefaultWallpaperInfo info = new DefaultWallpaperInfo(null);
+        info.mThumbSource = new DefaultThumbnailSource() {
+            @Override
+            protected Bitmap createThumbnail(Context context, Point size) {
+                Drawable wallpaperDrawable = WallpaperManager.getInstance(context)
+                        .getBuiltInDrawable(size.x, size.y, true, 0.5f, 0.5f);
+                if (wallpaperDrawable == null) {
+                    return null;
+                }
+                Bitmap thumb = Bitmap.createBitmap(size.x, size.y, Bitmap.Config.ARGB_8888);
                 Canvas c = new Canvas(thumb);
-                wallpaperDrawable.setBounds(0, 0, defaultThumbSize.x, defaultThumbSize.y);
+                wallpaperDrawable.setBounds(0, 0, size.x, size.y);
                 wallpaperDrawable.draw(c);
                 c.setBitmap(null);
+                return thumb;
             }
-            if (thumb != null) {
-                defaultWallpaperExists = saveDefaultWallpaperThumb(thumb);
+        };
+        return info;
+    }
+
+    /**
+     * The thumbnail of the default wallpaper, which is kept in its own file across system
+     * updates.
+     */
+    private static abstract class DefaultThumbnailSource extends ThumbnailLoader.ThumbnailSource {
+        @Override
+        public String getKey() {
+            return LauncherFiles.DEFAULT_WALLPAPER_THUMBNAIL;
+        }
+
+        @Override
+        public Bitmap loadThumbnail(Context context, Point size) {
+            File defaultThumbFile = getDefaultThumbFile(context);
+            if (defaultThumbFile.exists()) {
+                return BitmapFactory.decodeFile(defaultThumbFile.getAbsolutePath());
+            }
+            Bitmap thumb = createThumbnail(context, size);
+            if (thumb != null && !saveDefaultWallpaperThumb(context, thumb)) {
+                return null;
             }
+            return thumb;
+        }
+
+        protected abstract Bitmap createThumbnail(Context context, Point size);
+    }
+
+    /**
+     * A thumbnail scaled from a picked image, which is also cached on disk.
+     */
+    private static class UriThumbnailSource extends ThumbnailLoader.ThumbnailSource {
+        private final Context mContext;
+        private final Uri mUri;
+
+        UriThumbnailSource(Context context, Uri uri) {
+            mContext = context.getApplicationContext();
+            mUri = uri;
+        }
+
+        @Override
+        public String getKey() {
+            return mUri.toString();
+        }
+
+        @Override
+        public String getDiskCacheKey() {
+            return new BitmapRegionTileSource.UriBitmapSource(mContext, mUri).getCacheKey();
+        }
+
+        @Override
+        public Bitmap loadThumbnail(Context context, Point size) {
+            int rotation = BitmapUtils.getRotationFromExif(context, mUri);
+            return createThumbnail(size, context, mUri, null, null, 0, rotation, false);
+        }
+    }
+
+    /**
+     * A bundled thumbnail in the resources of a wallpaper package.
+     */
+    private static class ResourceThumbnailSource extends ThumbnailLoader.ThumbnailSource {
+        private final Resources mRes;
+        private final String mPackageName;
+        private final int mResId;
+
+        ResourceThumbnailSource(Resources res, String packageName, int resId) {
+            mRes = res;
+            mPackageName = packageName;
+            mResId = resId;
         }
-        if (defaultWallpaperExists) {
-            return new DefaultWallpaperInfo(new BitmapDrawable(thumb));
+
+        @Override
+        public String getKey() {
+            return mPackageName + "/" + mResId;
+        }
+
+        @Override
+        public Bitmap loadThumbnail(Context context, Point size) {
+            Drawable thumb = mRes.getDrawable(mResId);
+            if (thumb instanceof BitmapDrawable) {
+                return ((BitmapDrawable) thumb).getBitmap();
+            } else if (thumb == null || thumb.getIntrinsicWidth() <= 0
+                    || thumb.getIntrinsicHeight() <= 0) {
+                return null;
+            }
+            Bitmap b = Bitmap.createBitmap(thumb.getIntrinsicWidth(),
+                    thumb.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
+            Canvas c = new Canvas(b);
+            thumb.setBounds(0, 0, b.getWidth(), b.getHeight());
+            thumb.draw(c);
+            c.setBitmap(null);
+            return b;
         }
-        return null;
     }
 
     public Pair<ApplicationInfo, Integer> getWallpaperArrayResourceId() {
@@ -1095,7 +1156,9 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 
                 if (thumbRes != 0) {
                     ResourceWallpaperInfo wallpaperInfo =
-                            new ResourceWallpaperInfo(res, resId, res.getDrawable(thumbRes));
+                            new ResourceWallpaperInfo(res, resId, null);
+                    wallpaperInfo.mThumbSource =
+                            new ResourceThumbnailSource(res, packageName, thumbRes);
                     known.add(wallpaperInfo);
                     // Log.d(TAG, "add: [" + packageName + "]: " + extra + " (" + res + ")");
                 }
@@ -1122,14 +1185,49 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         }
 
         public View getView(int position, View convertView, ViewGroup parent) {
-            Drawable thumb = getItem(position).mThumb;
-            if (thumb == null) {
-                Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
-            }
-            return createImageTileView(mLayoutInflater, convertView, parent, thumb);
+            return createImageTileView(mLayoutInflater, convertView, parent, getItem(position));
         }
     }
 
+    /**
+     * Creates the tile of {@param info}, which shows its thumbnail once it is loaded if it is
+     * not there yet. The tile is hidden if the thumbnail cannot be loaded.
+     */
+    public static View createImageTileView(LayoutInflater layoutInflater,
+            View convertView, ViewGroup parent, final WallpaperTileInfo info) {
+        final View view = createImageTileView(layoutInflater, convertView, parent, info.mThumb);
+        if (info.mThumb != null) {
+            return view;
+        } else if (info.mThumbSource == null) {
+            Log.e(TAG, "No thumbnail for wallpaper " + info);
+            return view;
+        }
+
+        // The view may be recycled for another tile before the thumbnail comes
+        final ImageView image = (ImageView) view.findViewById(R.id.wallpaper_image);
+        image.setImageDrawable(null);
+        image.setTag(info);
+        view.setVisibility(View.VISIBLE);
+        Context context = layoutInflater.getContext();
+        ThumbnailLoader.getInstance(context).load(info.mThumbSource,
+                getDefaultThumbnailSize(context.getResources()), new ThumbnailLoader.Callback() {
+                    @Override
+                    public void onThumbnailLoaded(Bitmap thumb) {
+                        if (image.getTag() != info) {
+                            return;
+                        } else if (thumb == null) {
+                            Log.e(TAG, "Error decoding thumbnail for wallpaper " + info);
+                            view.setVisibility(View.GONE);
+                            return;
+                        }
+                        info.mThumb = new BitmapDrawable(view.getResources(), thumb);
+                        info.mThumb.setDither(true);
+                        image.setImageDrawable(info.mThumb);
+                    }
+                });
+        return view;
+    }
+
     public static View createImageTileView(LayoutInflater layoutInflater,
             View convertView, ViewGroup parent, Drawable thumb) {
         View view;
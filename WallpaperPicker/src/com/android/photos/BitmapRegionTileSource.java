@@ -17,8 +17,13 @@
 package com.android.photos;
 
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
@@ -28,6 +33,8 @@ import android.graphics.Rect;
 import android.net.Uri;
 import android.opengl.GLUtils;
 import android.os.Build;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 import android.util.Log;
 
 import com.android.gallery3d.common.BitmapUtils;
@@ -38,9 +45,11 @@ import com.android.gallery3d.glrenderer.BitmapTexture;
 import com.android.photos.views.TiledImageRenderer;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 
 interface SimpleBitmapRegionDecoder {
     int getWidth();
@@ -117,7 +126,7 @@ class DumbBitmapRegionDecoder implements SimpleBitmapRegionDecoder {
     public int getHeight() {
         return mBuffer.getHeight();
     }
-    public Bitmap decodeRegion(Rect wantRegion, BitmapFactory.Options options) {
+    public synchronized Bitmap decodeRegion(Rect wantRegion, BitmapFactory.Options options) {
         if (mTempCanvas == null) {
             mTempCanvas = new Canvas();
             mTempPaint = new Paint();
@@ -151,68 +160,103 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
     // This must be no larger than half the size of the GL_SIZE_LIMIT
     // due to decodePreview being allowed to be up to 2x the size of the target
     private static final int MAX_PREVIEW_SIZE = GL_SIZE_LIMIT / 2;
+    // A region decoder decodes one region at a time, tiles are decoded in parallel by opening
+    // more decoders of the source. Each of them keeps its own copy of the encoded image.
+    private static final int MAX_REGION_DECODERS =
+            Math.min(3, TiledImageRenderer.getDecoderCount());
+    private static final int TEMP_STORAGE_SIZE = 16 * 1024;
 
     public static abstract class BitmapSource {
         private SimpleBitmapRegionDecoder mDecoder;
+        private boolean mDecoderLoaded;
         private Bitmap mPreview;
+        private int mWidth;
+        private int mHeight;
         private int mRotation;
+        private TileCache.Entry mCacheEntry;
         public enum State { NOT_LOADED, LOADED, ERROR_LOADING };
         private State mState = State.NOT_LOADED;
 
         public boolean loadInBackground(InBitmapProvider bitmapProvider) {
-            ExifInterface ei = new ExifInterface();
-            if (readExif(ei)) {
-                Integer ori = ei.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-                if (ori != null) {
-                    mRotation = ExifInterface.getRotationForOrientationValue(ori.shortValue());
+            return loadInBackground(bitmapProvider, null);
+        }
+
+        /**
+         * Loads the size and the preview of the image, from {@param cache} if it has them. The
+         * region decoder is then only opened when a tile is not in the cache.
+         */
+        public boolean loadInBackground(InBitmapProvider bitmapProvider, TileCache cache) {
+            String key = cache == null ? null : getCacheKey();
+            mCacheEntry = key == null ? null : cache.open(key);
+            if (mCacheEntry != null && mCacheEntry.hasImageInfo()) {
+                mWidth = mCacheEntry.getWidth();
+                mHeight = mCacheEntry.getHeight();
+                mRotation = mCacheEntry.getRotation();
+                mPreview = decodePreview(bitmapProvider, true);
+                if (mPreview != null) {
+                    verifyPreview();
+                    return true;
                 }
             }
-            mDecoder = loadBitmapRegionDecoder();
-            if (mDecoder == null) {
+
+            mRotation = readRotation();
+            SimpleBitmapRegionDecoder decoder = getBitmapRegionDecoder();
+            if (decoder == null) {
                 mState = State.ERROR_LOADING;
                 return false;
             } else {
-                int width = mDecoder.getWidth();
-                int height = mDecoder.getHeight();
-
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                opts.inPreferQualityOverSpeed = true;
-
-                float scale = (float) MAX_PREVIEW_SIZE / Math.max(width, height);
-                opts.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
-                opts.inJustDecodeBounds = false;
-                opts.inMutable = true;
-
-                if (bitmapProvider != null) {
-                    int expectedPixles = (width / opts.inSampleSize) * (height / opts.inSampleSize);
-                    Bitmap reusableBitmap = bitmapProvider.forPixelCount(expectedPixles);
-                    if (reusableBitmap != null) {
-                        // Try loading with reusable bitmap
-                        opts.inBitmap = reusableBitmap;
-                        try {
-                            mPreview = loadPreviewBitmap(opts);
-                        } catch (IllegalArgumentException e) {
-                            Log.d(TAG, "Unable to reusage bitmap", e);
-                            opts.inBitmap = null;
-                            mPreview = null;
+                mWidth = decoder.getWidth();
+                mHeight = decoder.getHeight();
+                mPreview = decodePreview(bitmapProvider, false);
+                verifyPreview();
+                if (mCacheEntry != null && mState == State.LOADED) {
+                    mCacheEntry.setImageInfo(mWidth, mHeight, mRotation);
+                    mCacheEntry.writePreview(mPreview);
+                }
+                return true;
+            }
+        }
+
+        private Bitmap decodePreview(InBitmapProvider bitmapProvider, boolean fromCache) {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            opts.inPreferQualityOverSpeed = true;
+
+            float scale = (float) MAX_PREVIEW_SIZE / Math.max(mWidth, mHeight);
+            // The cached preview is already scaled
+            opts.inSampleSize = fromCache ? 1 : BitmapUtils.computeSampleSizeLarger(scale);
+            opts.inJustDecodeBounds = false;
+            opts.inMutable = true;
+
+            if (bitmapProvider != null && !fromCache) {
+                int expectedPixles = (mWidth / opts.inSampleSize) * (mHeight / opts.inSampleSize);
+                Bitmap reusableBitmap = bitmapProvider.forPixelCount(expectedPixles);
+                if (reusableBitmap != null) {
+                    // Try loading with reusable bitmap
+                    opts.inBitmap = reusableBitmap;
+                    try {
+                        Bitmap preview = loadPreviewBitmap(opts);
+                        if (preview != null) {
+                            return preview;
                         }
+                    } catch (IllegalArgumentException e) {
+                        Log.d(TAG, "Unable to reusage bitmap", e);
+                        opts.inBitmap = null;
                     }
                 }
-                if (mPreview == null) {
-                    mPreview = loadPreviewBitmap(opts);
-                }
+            }
+            return fromCache ? mCacheEntry.readPreview(opts) : loadPreviewBitmap(opts);
+        }
 
-                // Verify that the bitmap can be used on GL surface
-                try {
-                    GLUtils.getInternalFormat(mPreview);
-                    GLUtils.getType(mPreview);
-                    mState = State.LOADED;
-                } catch (IllegalArgumentException e) {
-                    Log.d(TAG, "Image cannot be rendered on a GL surface", e);
-                    mState = State.ERROR_LOADING;
-                }
-                return true;
+        private void verifyPreview() {
+            // Verify that the bitmap can be used on GL surface
+            try {
+                GLUtils.getInternalFormat(mPreview);
+                GLUtils.getType(mPreview);
+                mState = State.LOADED;
+            } catch (IllegalArgumentException e) {
+                Log.d(TAG, "Image cannot be rendered on a GL surface", e);
+                mState = State.ERROR_LOADING;
             }
         }
 
@@ -220,10 +264,30 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return mState;
         }
 
-        public SimpleBitmapRegionDecoder getBitmapRegionDecoder() {
+        /**
+         * Returns the region decoder of the image, opening it on first use if the image was
+         * loaded from the cache.
+         */
+        public synchronized SimpleBitmapRegionDecoder getBitmapRegionDecoder() {
+            if (!mDecoderLoaded) {
+                mDecoderLoaded = true;
+                mDecoder = loadBitmapRegionDecoder();
+            }
             return mDecoder;
         }
 
+        public TileCache.Entry getCacheEntry() {
+            return mCacheEntry;
+        }
+
+        public int getImageWidth() {
+            return mWidth;
+        }
+
+        public int getImageHeight() {
+            return mHeight;
+        }
+
         public Bitmap getPreviewBitmap() {
             return mPreview;
         }
@@ -232,6 +296,29 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return mRotation;
         }
 
+        /**
+         * Returns a key which identifies the content of the image, or null if the image cannot
+         * be cached.
+         */
+        public String getCacheKey() {
+            return null;
+        }
+
+        /**
+         * Returns the rotation given by the exif data of the image. Sources should read only the
+         * orientation tag with {@link ExifInterface#getRotationFromJpeg}.
+         */
+        public int readRotation() {
+            ExifInterface ei = new ExifInterface();
+            if (readExif(ei)) {
+                Integer ori = ei.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+                if (ori != null) {
+                    return ExifInterface.getRotationForOrientationValue(ori.shortValue());
+                }
+            }
+            return 0;
+        }
+
         public abstract boolean readExif(ExifInterface ei);
         public abstract SimpleBitmapRegionDecoder loadBitmapRegionDecoder();
         public abstract Bitmap loadPreviewBitmap(BitmapFactory.Options options);
@@ -241,6 +328,11 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         }
     }
 
+    static String getFileCacheKey(File file) {
+        long modified = file.lastModified();
+        return modified == 0 ? null : file.getAbsolutePath() + "|" + file.length() + "|" + modified;
+    }
+
     public static class FilePathBitmapSource extends BitmapSource {
         private String mPath;
         public FilePathBitmapSource(String path) {
@@ -260,6 +352,19 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return BitmapFactory.decodeFile(mPath, options);
         }
         @Override
+        public String getCacheKey() {
+            return getFileCacheKey(new File(mPath));
+        }
+        @Override
+        public int readRotation() {
+            try {
+                return ExifInterface.getRotationFromJpeg(mPath);
+            } catch (IOException e) {
+                Log.w("BitmapRegionTileSource", "reading exif failed", e);
+                return 0;
+            }
+        }
+        @Override
         public boolean readExif(ExifInterface ei) {
             try {
                 ei.readExif(mPath);
@@ -275,6 +380,8 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
     }
 
     public static class UriBitmapSource extends BitmapSource {
+        // DocumentsContract.Document.COLUMN_LAST_MODIFIED, which is not in all supported APIs
+        private static final String COLUMN_LAST_MODIFIED = "last_modified";
         private Context mContext;
         private Uri mUri;
         public UriBitmapSource(Context context, Uri uri) {
@@ -316,6 +423,49 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             }
         }
         @Override
+        public String getCacheKey() {
+            if (ContentResolver.SCHEME_FILE.equals(mUri.getScheme())) {
+                return getFileCacheKey(new File(mUri.getPath()));
+            }
+            Cursor c = null;
+            try {
+                c = mContext.getContentResolver().query(mUri, null, null, null, null);
+                if (c == null || !c.moveToFirst()) {
+                    return null;
+                }
+                long size = getLong(c, OpenableColumns.SIZE);
+                long modified = Math.max(getLong(c, COLUMN_LAST_MODIFIED),
+                        getLong(c, MediaStore.MediaColumns.DATE_MODIFIED));
+                // Without them a changed image could not be told from the cached one.
+                if (size <= 0 || modified <= 0) {
+                    return null;
+                }
+                return mUri + "|" + size + "|" + modified;
+            } catch (RuntimeException e) {
+                Log.d("BitmapRegionTileSource", "Failed to query URI " + mUri, e);
+                return null;
+            } finally {
+                Utils.closeSilently(c);
+            }
+        }
+        private static long getLong(Cursor c, String column) {
+            int index = c.getColumnIndex(column);
+            return index < 0 || c.isNull(index) ? 0 : c.getLong(index);
+        }
+        @Override
+        public int readRotation() {
+            InputStream is = null;
+            try {
+                is = regenerateInputStream();
+                return ExifInterface.getRotationFromJpeg(is);
+            } catch (IOException e) {
+                Log.d("BitmapRegionTileSource", "Failed to load URI " + mUri, e);
+                return 0;
+            } finally {
+                Utils.closeSilently(is);
+            }
+        }
+        @Override
         public boolean readExif(ExifInterface ei) {
             InputStream is = null;
             try {
@@ -339,9 +489,11 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
     }
 
     public static class ResourceBitmapSource extends BitmapSource {
+        private Context mContext;
         private Resources mRes;
         private int mResId;
-        public ResourceBitmapSource(Resources res, int resId) {
+        public ResourceBitmapSource(Context context, Resources res, int resId) {
+            mContext = context;
             mRes = res;
             mResId = resId;
         }
@@ -367,6 +519,45 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return BitmapFactory.decodeResource(mRes, mResId, options);
         }
         @Override
+        public String getCacheKey() {
+            AssetFileDescriptor fd = null;
+            try {
+                // The resource can change with an update of the package that owns it, even if
+                // its name and length do not. The density picks which drawable is used.
+                PackageInfo info = mContext.getPackageManager().getPackageInfo(
+                        mRes.getResourcePackageName(mResId), 0);
+                fd = mRes.openRawResourceFd(mResId);
+                return mRes.getResourceName(mResId) + "|" + fd.getLength() + "|"
+                        + mRes.getDisplayMetrics().densityDpi + "|" + info.versionCode + "|"
+                        + info.lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            } catch (Resources.NotFoundException e) {
+                // Compressed resources have no file descriptor
+                return null;
+            } finally {
+                if (fd != null) {
+                    try {
+                        fd.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+        @Override
+        public int readRotation() {
+            InputStream is = regenerateInputStream();
+            try {
+                return ExifInterface.getRotationFromJpeg(is);
+            } catch (IOException e) {
+                Log.e("BitmapRegionTileSource", "Error reading resource", e);
+                return 0;
+            } finally {
+                Utils.closeSilently(is);
+            }
+        }
+        @Override
         public boolean readExif(ExifInterface ei) {
             try {
                 InputStream is = regenerateInputStream();
@@ -380,29 +571,32 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         }
     }
 
-    SimpleBitmapRegionDecoder mDecoder;
     int mWidth;
     int mHeight;
     int mTileSize;
     private BasicTexture mPreview;
     private final int mRotation;
-
-    // For use only by getTile
-    private Rect mWantRegion = new Rect();
-    private BitmapFactory.Options mOptions;
+    private final BitmapSource mSource;
+    private final TileCache.Entry mCacheEntry;
+    private final byte[] mTempStorage;
+
+    // The decoders which are not decoding a tile, guarded by mDecoderLock
+    private final Object mDecoderLock = new Object();
+    private final ArrayDeque<RegionDecoder> mIdleDecoders = new ArrayDeque<>();
+    private int mDecoderCount;
+    // Raised once the first decoder is known to be a real region decoder, 0 if the image
+    // cannot be decoded.
+    private int mMaxDecoders = 1;
 
     public BitmapRegionTileSource(Context context, BitmapSource source, byte[] tempStorage) {
         mTileSize = TiledImageRenderer.suggestedTileSize(context);
         mRotation = source.getRotation();
-        mDecoder = source.getBitmapRegionDecoder();
-        if (mDecoder != null) {
-            mWidth = mDecoder.getWidth();
-            mHeight = mDecoder.getHeight();
-            mOptions = new BitmapFactory.Options();
-            mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            mOptions.inPreferQualityOverSpeed = true;
-            mOptions.inTempStorage = tempStorage;
-
+        mSource = source;
+        mCacheEntry = source.getCacheEntry();
+        mTempStorage = tempStorage;
+        mWidth = source.getImageWidth();
+        mHeight = source.getImageHeight();
+        if (mWidth > 0 && mHeight > 0) {
             Bitmap preview = source.getPreviewBitmap();
             if (preview != null &&
                     preview.getWidth() <= GL_SIZE_LIMIT && preview.getHeight() <= GL_SIZE_LIMIT) {
@@ -448,28 +642,121 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 
     @Override
     public Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
+        if (mWidth == 0) {
+            return null;
+        }
         int tileSize = getTileSize();
+        if (mCacheEntry != null) {
+            Bitmap cached = mCacheEntry.readTile(level, x, y, tileSize, bitmap);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        RegionDecoder decoder;
+        try {
+            decoder = obtainDecoder();
+        } catch (InterruptedException e) {
+            // The renderer is shutting down its decoders.
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (decoder == null) {
+            return null;
+        }
+
         int t = tileSize << level;
-        mWantRegion.set(x, y, x + t, y + t);
+        decoder.wantRegion.set(x, y, x + t, y + t);
 
         if (bitmap == null) {
             bitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
         }
 
-        mOptions.inSampleSize = (1 << level);
-        mOptions.inBitmap = bitmap;
+        BitmapFactory.Options options = decoder.options;
+        options.inSampleSize = (1 << level);
+        options.inBitmap = bitmap;
 
         try {
-            bitmap = mDecoder.decodeRegion(mWantRegion, mOptions);
+            bitmap = decoder.decoder.decodeRegion(decoder.wantRegion, options);
         } finally {
-            if (mOptions.inBitmap != bitmap && mOptions.inBitmap != null) {
-                mOptions.inBitmap = null;
-            }
+            options.inBitmap = null;
+            releaseDecoder(decoder);
         }
 
         if (bitmap == null) {
             Log.w("BitmapRegionTileSource", "fail in decoding region");
+        } else if (mCacheEntry != null) {
+            mCacheEntry.writeTile(level, x, y, tileSize, bitmap);
         }
         return bitmap;
     }
+
+    /**
+     * Returns an idle decoder, opening a new one if there is none and the limit is not reached,
+     * or waiting for one otherwise. Returns null if the image cannot be decoded.
+     */
+    private RegionDecoder obtainDecoder() throws InterruptedException {
+        boolean first;
+        synchronized (mDecoderLock) {
+            while (mIdleDecoders.isEmpty() && mDecoderCount >= mMaxDecoders) {
+                if (mMaxDecoders == 0) {
+                    return null;
+                }
+                mDecoderLock.wait();
+            }
+            if (!mIdleDecoders.isEmpty()) {
+                return mIdleDecoders.pop();
+            }
+            first = mDecoderCount++ == 0;
+        }
+
+        // Opening a decoder reads the source, do it without blocking the other decoders. The
+        // first one is not opened until a tile is missing from the cache.
+        SimpleBitmapRegionDecoder decoder = first
+                ? mSource.getBitmapRegionDecoder() : mSource.loadBitmapRegionDecoder();
+        if (first && decoder != null) {
+            // The fallback decoder holds the whole decoded image, never open a second one.
+            if (decoder instanceof SimpleBitmapRegionDecoderWrapper) {
+                synchronized (mDecoderLock) {
+                    mMaxDecoders = MAX_REGION_DECODERS;
+                    mDecoderLock.notifyAll();
+                }
+            }
+            return new RegionDecoder(decoder, mTempStorage);
+        }
+        if (decoder instanceof SimpleBitmapRegionDecoderWrapper) {
+            return new RegionDecoder(decoder, new byte[TEMP_STORAGE_SIZE]);
+        }
+
+        synchronized (mDecoderLock) {
+            // Make do with the decoders there are.
+            mDecoderCount--;
+            mMaxDecoders = mDecoderCount;
+            mDecoderLock.notifyAll();
+        }
+        return obtainDecoder();
+    }
+
+    private void releaseDecoder(RegionDecoder decoder) {
+        synchronized (mDecoderLock) {
+            mIdleDecoders.push(decoder);
+            mDecoderLock.notify();
+        }
+    }
+
+    /**
+     * A region decoder with the objects it decodes with.
+     */
+    private static class RegionDecoder {
+        final SimpleBitmapRegionDecoder decoder;
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        final Rect wantRegion = new Rect();
+
+        RegionDecoder(SimpleBitmapRegionDecoder decoder, byte[] tempStorage) {
+            this.decoder = decoder;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inPreferQualityOverSpeed = true;
+            options.inTempStorage = tempStorage;
+        }
+    }
 }
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.gallery3d.common.Utils;
+import com.android.launcher3.util.Thunk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+/**
+ * A disk cache of the decoded preview and tiles of the images shown by
+ * {@link BitmapRegionTileSource}, so that an image which was viewed recently is shown again
+ * without decoding the original.
+ * <p/>
+ * Each image has one file, named after the key of its source, which identifies the content it
+ * was decoded from. The file starts with the key, the size and the rotation of the image, and
+ * is followed by a record for each tile and the preview, appended as they are decoded. Tiles are
+ * compressed again as JPEG, or PNG when they have alpha. The least recently opened files are
+ * deleted when the cache is larger than its limit.
+ * <p/>
+ * Tiles are written on a background thread, reads are done on the calling thread.
+ */
+public class TileCache {
+    private static final String TAG = "TileCache";
+
+    private static final String DIR_NAME = "wallpaper_tiles";
+    private static final long MAX_CACHE_BYTES = 48 * 1024 * 1024;
+    // Files which stay open, the others are closed and opened again when used.
+    private static final int MAX_OPEN_ENTRIES = 2;
+    // Tiles waiting to be written, further tiles are not cached until the writer catches up.
+    private static final int MAX_PENDING_WRITES = 16;
+    private static final int JPEG_QUALITY = 95;
+
+    private static final int MAGIC = 0x54494c45; // "TILE"
+    private static final int VERSION = 1;
+    private static final int PREVIEW_LEVEL = -1;
+    // level, x, y, tile size and length of a record
+    private static final int RECORD_HEADER_SIZE = 5 * 4;
+
+    private static TileCache sInstance;
+
+    private final File mDir;
+    private final Handler mWriter;
+    // The entries opened recently, least recently opened first. Only the files of the last few
+    // are kept open, the others are dropped once closed.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(4, 0.75f, true);
+    private int mPendingWrites;
+
+    public static synchronized TileCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TileCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIR_NAME));
+        }
+        return sInstance;
+    }
+
+    private TileCache(File dir) {
+        mDir = dir;
+        HandlerThread thread = new HandlerThread("tile-cache-writer",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWriter = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Returns the entry of the image identified by {@param key}, which is empty if the image is
+     * not cached. {@param key} must change whenever the content of the image changes.
+     */
+    public synchronized Entry open(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, new File(mDir, fileName(key)));
+            mEntries.put(key, entry);
+        }
+        entry.touch();
+
+        // Close the files of the entries used least recently, they are opened again if needed.
+        int toClose = mEntries.size() - MAX_OPEN_ENTRIES;
+        for (final Entry e : mEntries.values()) {
+            if (toClose-- <= 0) {
+                break;
+            }
+            // Closed after the writes already queued for it.
+            mWriter.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (TileCache.this) {
+                        if (isKeptOpenLocked(e)) {
+                            // Opened again in the meantime
+                            return;
+                        }
+                        // Drop the entry, so that the map does not grow with every image
+                        // viewed. Its file stays cached for the next open().
+                        mEntries.remove(e.mKey);
+                        e.release();
+                    }
+                }
+            });
+        }
+        return entry;
+    }
+
+    /**
+     * Returns whether {@param entry} is one of the last opened entries, whose files are kept
+     * open.
+     */
+    @Thunk
+    boolean isKeptOpenLocked(Entry entry) {
+        int skip = mEntries.size() - MAX_OPEN_ENTRIES;
+        for (Entry e : mEntries.values()) {
+            if (skip-- <= 0 && e == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String fileName(String key) {
+        // Collisions are found by comparing the key stored in the file.
+        return Integer.toHexString(key.hashCode()) + "_" + key.length();
+    }
+
+    /**
+     * Queues {@param bitmap} to be written to {@param entry}. The bitmap is copied, the caller
+     * can reuse it right away.
+     */
+    void write(final Entry entry, final int level, final int x, final int y, final int tileSize,
+            Bitmap bitmap) {
+        synchronized (this) {
+            if (mPendingWrites >= MAX_PENDING_WRITES) {
+                return;
+            }
+            mPendingWrites++;
+        }
+        final Bitmap copy = bitmap.copy(bitmap.getConfig(), false);
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (TileCache.this) {
+                    mPendingWrites--;
+                }
+                if (copy == null) {
+                    return;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                copy.compress(copy.hasAlpha() ? Bitmap.CompressFormat.PNG
+                        : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                copy.recycle();
+                entry.append(level, x, y, tileSize, out.toByteArray());
+                trimToSize();
+            }
+        });
+    }
+
+    /**
+     * Deletes the least recently opened files until the cache fits its limit. Runs on the writer
+     * thread.
+     */
+    private void trimToSize() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= MAX_CACHE_BYTES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        ArrayList<File> openFiles = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : mEntries.values()) {
+                if (isKeptOpenLocked(entry)) {
+                    openFiles.add(entry.mFile);
+                }
+            }
+        }
+        for (File file : files) {
+            if (size <= MAX_CACHE_BYTES) {
+                break;
+            }
+            if (!openFiles.contains(file)) {
+                size -= file.length();
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * The cached preview and tiles of one image.
+     */
+    public class Entry {
+        @Thunk final String mKey;
+        @Thunk final File mFile;
+
+        // The following are guarded by this entry
+        private RandomAccessFile mRaf;
+        // Set once the entry is dropped from the cache, after which it is not used anymore
+        private boolean mReleased;
+        private boolean mLoaded;
+        private int mWidth;
+        private int mHeight;
+        private int mRotation;
+        // The offset of the data of each record, and the offset of the length before it
+        private final LongSparseArray<Long> mRecords = new LongSparseArray<>();
+        private int mRecordTileSize;
+
+        Entry(String key, File file) {
+            mKey = key;
+            mFile = file;
+        }
+
+        void touch() {
+            mFile.setLastModified(System.currentTimeMillis());
+        }
+
+        /**
+         * Returns whether the image is in the cache, in which case its size, rotation and
+         * preview can be read without decoding the original.
+         */
+        public synchronized boolean hasImageInfo() {
+            return ensureOpen() && mWidth > 0 && mHeight > 0;
+        }
+
+        public synchronized int getWidth() {
+            return mWidth;
+        }
+
+        public synchronized int getHeight() {
+            return mHeight;
+        }
+
+        public synchronized int getRotation() {
+            return mRotation;
+        }
+
+        /**
+         * Starts caching the image with the given info, dropping what was cached for it.
+         */
+        public synchronized void setImageInfo(int width, int height, int rotation) {
+            if (mReleased || (mWidth == width && mHeight == height && mRotation == rotation)) {
+                return;
+            }
+            closeLocked();
+            mFile.delete();
+            mWidth = width;
+            mHeight = height;
+            mRotation = rotation;
+            mLoaded = true;
+            mRecords.clear();
+            try {
+                mFile.getParentFile().mkdirs();
+                mRaf = new RandomAccessFile(mFile, "rw");
+                mRaf.writeInt(MAGIC);
+                mRaf.writeInt(VERSION);
+                mRaf.writeUTF(mKey);
+                mRaf.writeInt(width);
+                mRaf.writeInt(height);
+                mRaf.writeInt(rotation);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to create " + mFile, e);
+                resetLocked();
+            }
+        }
+
+        public Bitmap readPreview(BitmapFactory.Options options) {
+            return read(PREVIEW_LEVEL, 0, 0, 0, options);
+        }
+
+        public void writePreview(Bitmap preview) {
+            if (hasImageInfo()) {
+                write(this, PREVIEW_LEVEL, 0, 0, 0, preview);
+            }
+        }
+
+        /**
+         * Returns the cached tile, decoded into {@param reuse} if it is not null, or null if the
+         * tile is not cached.
+         */
+        public Bitmap readTile(int level, int x, int y, int tileSize, Bitmap reuse) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+            options.inBitmap = reuse;
+            return read(level, x, y, tileSize, options);
+        }
+
+        public void writeTile(int level, int x, int y, int tileSize, Bitmap tile) {
+            if (hasImageInfo()) {
+                write(this, level, x, y, tileSize, tile);
+            }
+        }
+
+        private Bitmap read(int level, int x, int y, int tileSize, BitmapFactory.Options options) {
+            byte[] data;
+            synchronized (this) {
+                if (!ensureOpen() || (level != PREVIEW_LEVEL && tileSize != mRecordTileSize)) {
+                    return null;
+                }
+                Long offset = mRecords.get(recordKey(level, x, y));
+                if (offset == null) {
+                    return null;
+                }
+                try {
+                    mRaf.seek(offset - 4);
+                    data = new byte[mRaf.readInt()];
+                    mRaf.readFully(data);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to read " + mFile, e);
+                    resetLocked();
+                    return null;
+                }
+            }
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                // The bitmap to reuse does not fit
+                options.inBitmap = null;
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+        }
+
+        /**
+         * Appends a record, on the writer thread.
+         */
+        synchronized void append(int level, int x, int y, int tileSize, byte[] data) {
+            if (!ensureOpen() || mWidth <= 0) {
+                return;
+            }
+            if (level != PREVIEW_LEVEL) {
+                if (mRecordTileSize == 0) {
+                    mRecordTileSize = tileSize;
+                } else if (mRecordTileSize != tileSize) {
+                    return;
+                }
+            }
+            long key = recordKey(level, x, y);
+            if (mRecords.get(key) != null) {
+                return;
+            }
+            try {
+                long start = mRaf.length();
+                mRaf.seek(start);
+                mRaf.writeInt(level);
+                mRaf.writeInt(x);
+                mRaf.writeInt(y);
+                mRaf.writeInt(tileSize);
+                mRaf.writeInt(data.length);
+                mRaf.write(data);
+                mRecords.put(key, start + RECORD_HEADER_SIZE);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write " + mFile, e);
+                resetLocked();
+            }
+        }
+
+        /**
+         * Closes the file for good, a later {@link TileCache#open} of the same key returns a new
+         * entry. Runs on the writer thread, after the writes queued for this entry.
+         */
+        synchronized void release() {
+            closeLocked();
+            mReleased = true;
+        }
+
+        /**
+         * Opens the file and reads its records if it was not done yet.
+         *
+         * @return false if the file cannot be used
+         */
+        private boolean ensureOpen() {
+            if (mRaf != null) {
+                return true;
+            }
+            if (mReleased) {
+                // A newer entry may be using the file
+                return false;
+            }
+            if (mLoaded && mWidth <= 0) {
+                // Nothing cached yet
+                return false;
+            }
+            if (!mFile.exists()) {
+                // Never written, or deleted to make room
+                resetLocked();
+                return false;
+            }
+            try {
+                mRaf = new RandomAccessFile(mFile, "rw");
+                if (!mLoaded) {
+                    readRecordsLocked();
+                }
+                mLoaded = true;
+                return mWidth > 0;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to open " + mFile, e);
+                resetLocked();
+                return false;
+            }
+        }
+
+        private void readRecordsLocked() throws IOException {
+            if (mRaf.readInt() != MAGIC || mRaf.readInt() != VERSION
+                    || !mKey.equals(mRaf.readUTF())) {
+                throw new IOException("Not a cache file of " + mKey);
+            }
+            mWidth = mRaf.readInt();
+            mHeight = mRaf.readInt();
+            mRotation = mRaf.readInt();
+
+            long length = mRaf.length();
+            long offset = mRaf.getFilePointer();
+            while (offset + RECORD_HEADER_SIZE <= length) {
+                int level = mRaf.readInt();
+                int x = mRaf.readInt();
+                int y = mRaf.readInt();
+                int tileSize = mRaf.readInt();
+                int size = mRaf.readInt();
+                long data = offset + RECORD_HEADER_SIZE;
+                if (size < 0 || data + size > length) {
+                    break;
+                }
+                if (level != PREVIEW_LEVEL) {
+                    mRecordTileSize = tileSize;
+                }
+                mRecords.put(recordKey(level, x, y), data);
+                offset = data + size;
+                mRaf.seek(offset);
+            }
+            // Drop a record which was not written completely.
+            mRaf.setLength(offset);
+        }
+
+        private void resetLocked() {
+            closeLocked();
+            mFile.delete();
+            mLoaded = true;
+            mWidth = mHeight = mRotation = 0;
+            mRecordTileSize = 0;
+            mRecords.clear();
+        }
+
+        private void closeLocked() {
+            Utils.closeSilently(mRaf);
+            mRaf = null;
+        }
+
+        private long recordKey(int level, int x, int y) {
+            return (((long) x) << 32) | ((y & 0xFFFFFFL) << 8) | (level & 0xFF);
+        }
+    }
+}
@@ -34,6 +34,8 @@ import com.android.gallery3d.glrenderer.GLCanvas;
 import com.android.gallery3d.glrenderer.UploadedTexture;
 import com.android.launcher3.util.Thunk;
 
+import java.util.Comparator;
+
 /**
  * Handles laying out, decoding, and drawing of tiles in GL
  */
@@ -42,6 +44,9 @@ public class TiledImageRenderer {
 
     private static final String TAG = "TiledImageRenderer";
     private static final int UPLOAD_LIMIT = 1;
+    // Leaves a core to the GL and UI threads.
+    private static final int DECODER_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
 
     /*
      *  This is the tile state in the CPU side.
@@ -101,6 +106,12 @@ public class TiledImageRenderer {
     private final TileQueue mRecycledQueue = new TileQueue();
     private final TileQueue mUploadQueue = new TileQueue();
     @Thunk final TileQueue mDecodeQueue = new TileQueue();
+    @Thunk final Comparator<Tile> mDecodeOrder = new DecodeOrder();
+
+    // The position the decode queue is ordered for, guarded by mQueueLock
+    @Thunk int mDecodeCenterX;
+    @Thunk int mDecodeCenterY;
+    @Thunk int mDecodeLevel;
 
     // The width and height of the full-sized bitmap
     protected int mImageWidth = SIZE_UNKNOWN;
@@ -117,7 +128,7 @@ public class TiledImageRenderer {
     private final Rect mTileRange = new Rect();
     private final Rect mActiveRange[] = {new Rect(), new Rect()};
 
-    private TileDecoder mTileDecoder;
+    private final TileDecoder[] mTileDecoders;
     private boolean mBackgroundTileUploaded;
 
     private int mViewWidth, mViewHeight;
@@ -154,7 +165,8 @@ public class TiledImageRenderer {
          * the original image (down-scaled by a factor of 2^level), but (x, y)
          * still refers to the coordinate on the original image.
          *
-         * The method would be called by the decoder thread.
+         * The method is called by the decoder threads, possibly by several of them
+         * at once.
          */
         public Bitmap getTile(int level, int x, int y, Bitmap reuse);
     }
@@ -172,9 +184,23 @@ public class TiledImageRenderer {
     }
 
     public TiledImageRenderer(View parent) {
+        this(parent, DECODER_COUNT);
+    }
+
+    TiledImageRenderer(View parent, int decoderCount) {
         mParent = parent;
-        mTileDecoder = new TileDecoder();
-        mTileDecoder.start();
+        mTileDecoders = new TileDecoder[decoderCount];
+        for (int i = 0; i < decoderCount; i++) {
+            mTileDecoders[i] = new TileDecoder(TAG + "-decoder-" + i);
+            mTileDecoders[i].start();
+        }
+    }
+
+    /**
+     * Returns the number of threads decoding the tiles of a renderer.
+     */
+    public static int getDecoderCount() {
+        return DECODER_COUNT;
     }
 
     public int getViewWidth() {
@@ -300,9 +326,14 @@ public class TiledImageRenderer {
         }
 
         synchronized (mQueueLock) {
+            // Drop the requests of the previous position, the tiles which are still in range
+            // are queued again as they are drawn.
             mDecodeQueue.clean();
             mUploadQueue.clean();
             mBackgroundTileUploaded = false;
+            mDecodeCenterX = mCenterX;
+            mDecodeCenterY = mCenterY;
+            mDecodeLevel = mLevel;
 
             // Recycle unused tiles: if the level of the active tile is outside the
             // range [fromLevel, endLevel) or not in the visible range.
@@ -389,7 +420,12 @@ public class TiledImageRenderer {
     public void freeTextures() {
         mLayoutTiles = true;
 
-        mTileDecoder.finishAndWait();
+        for (TileDecoder decoder : mTileDecoders) {
+            decoder.interrupt();
+        }
+        for (TileDecoder decoder : mTileDecoders) {
+            decoder.finishAndWait();
+        }
         synchronized (mQueueLock) {
             mUploadQueue.clean();
             mDecodeQueue.clean();
@@ -483,13 +519,38 @@ public class TiledImageRenderer {
        synchronized (mQueueLock) {
            if (tile.mTileState == STATE_ACTIVATED) {
                tile.mTileState = STATE_IN_QUEUE;
-               if (mDecodeQueue.push(tile)) {
-                   mQueueLock.notifyAll();
-               }
+               mDecodeQueue.push(tile);
+               // One more tile, one more decoder can work.
+               mQueueLock.notify();
            }
        }
     }
 
+    /**
+     * Lays out the tiles for the current position and queues all of them for decoding, like
+     * drawing does, so that decoding can be measured without a GL surface.
+     */
+    void queueAllTilesForDecode() {
+        layoutTiles();
+        uploadBackgroundTiles(null);
+    }
+
+    /**
+     * Returns whether none of the active tiles is waiting to be decoded or being decoded.
+     */
+    boolean isDecodeIdle() {
+        synchronized (mQueueLock) {
+            int n = mActiveTiles.size();
+            for (int i = 0; i < n; i++) {
+                int state = mActiveTiles.valueAt(i).mTileState;
+                if (state == STATE_IN_QUEUE || state == STATE_DECODING) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     @Thunk void decodeTile(Tile tile) {
         synchronized (mQueueLock) {
             if (tile.mTileState != STATE_IN_QUEUE) {
@@ -782,13 +843,71 @@ public class TiledImageRenderer {
             return false;
         }
 
+        /**
+         * Removes and returns the tile which {@param order} sorts first.
+         */
+        public Tile popFirst(Comparator<Tile> order) {
+            Tile first = mHead;
+            if (first == null) {
+                return null;
+            }
+            Tile firstPrev = null;
+            for (Tile prev = first, tile = first.mNext; tile != null;
+                    prev = tile, tile = tile.mNext) {
+                if (order.compare(tile, first) < 0) {
+                    first = tile;
+                    firstPrev = prev;
+                }
+            }
+            if (firstPrev == null) {
+                mHead = first.mNext;
+            } else {
+                firstPrev.mNext = first.mNext;
+            }
+            return first;
+        }
+
         public void clean() {
             mHead = null;
         }
     }
 
+    /**
+     * Orders the tiles to decode: the tiles of the displayed level first, then the lower
+     * resolution levels which are drawn while they are missing, then the higher resolution
+     * level kept for zooming in. Within a level, the tiles closest to the center of the view
+     * come first. Must be used while holding mQueueLock.
+     */
+    private class DecodeOrder implements Comparator<Tile> {
+
+        @Override
+        public int compare(Tile a, Tile b) {
+            int result = rank(a) - rank(b);
+            if (result == 0) {
+                result = Long.compare(distance(a), distance(b));
+            }
+            return result;
+        }
+
+        private int rank(Tile tile) {
+            return tile.mTileLevel == mDecodeLevel ? 0
+                    : tile.mTileLevel > mDecodeLevel ? 1 : 2;
+        }
+
+        private long distance(Tile tile) {
+            int half = (mTileSize << tile.mTileLevel) / 2;
+            long dx = tile.mX + half - mDecodeCenterX;
+            long dy = tile.mY + half - mDecodeCenterY;
+            return dx * dx + dy * dy;
+        }
+    }
+
     @Thunk class TileDecoder extends Thread {
 
+        TileDecoder(String name) {
+            super(name);
+        }
+
         public void finishAndWait() {
             interrupt();
             try {
@@ -801,7 +920,7 @@ public class TiledImageRenderer {
         private Tile waitForTile() throws InterruptedException {
             synchronized (mQueueLock) {
                 while (true) {
-                    Tile tile = mDecodeQueue.pop();
+                    Tile tile = mDecodeQueue.popFirst(mDecodeOrder);
                     if (tile != null) {
                         return tile;
                     }
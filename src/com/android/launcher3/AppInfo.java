@@ -50,6 +50,16 @@ public class AppInfo extends ItemInfo {
      */
     public long firstInstallTime;
     public ComponentName componentName;
+    /**
+     * The collation key of the title in the current locale, see
+     * {@link com.android.launcher3.model.AppNameComparator#getSortKey}. Null when it is not
+     * known.
+     */
+    public byte[] sortKey;
+    /**
+     * The all apps section of the title in the current locale. Null when it is not known.
+     */
+    public String sectionName;
     /**
      * Indicates whether we're using a low res icon
      */
@@ -85,6 +95,8 @@ public class AppInfo extends ItemInfo {
         flags = info.flags;
         firstInstallTime = info.firstInstallTime;
         iconBitmap = info.iconBitmap;
+        sortKey = info.sortKey;
+        sectionName = info.sectionName;
     }
 
     public static int initFlags(LauncherActivityInfoCompat info) {
@@ -139,6 +151,8 @@ public class AppInfo extends ItemInfo {
 
     public void setTitle(CharSequence title) {
         this.title = title;
+        sortKey = null;
+        sectionName = null;
         for (ShortcutInfo.ShortcutListener i : mListeners) {
             i.onIconChanged(this);
         }
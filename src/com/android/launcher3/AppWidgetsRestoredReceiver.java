@@ -10,6 +10,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.android.launcher3.LauncherSettings.Favorites;
@@ -22,7 +24,9 @@ public class AppWidgetsRestoredReceiver extends BroadcastReceiver {
     private static final String TAG = "AppWidgetsRestoredReceiver";
 
     /**
-     * Updates the app widgets whose id has changed during the restore process.
+     * Updates the app widgets whose id has changed during the restore process. Must be called on
+     * the worker thread once the pending favorites changes are written, see
+     * {@link LauncherModel#runAfterPendingWorkspaceWrites(Runnable)}.
      */
     static void restoreAppWidgetIds(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
         final ContentResolver cr = context.getContentResolver();
@@ -78,19 +82,33 @@ public class AppWidgetsRestoredReceiver extends BroadcastReceiver {
             }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
         }
 
-        LauncherAppState app = LauncherAppState.getInstanceNoCreate();
-        if (app != null) {
-            app.reloadWorkspace();
-        }
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                LauncherAppState app = LauncherAppState.getInstanceNoCreate();
+                if (app != null) {
+                    app.reloadWorkspace();
+                }
+            }
+        });
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
         if (AppWidgetManager.ACTION_APPWIDGET_HOST_RESTORED.equals(intent.getAction())) {
-            int[] oldIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_OLD_IDS);
-            int[] newIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+            final int[] oldIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_OLD_IDS);
+            final int[] newIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
             if (oldIds.length == newIds.length) {
-                restoreAppWidgetIds(context, oldIds, newIds);
+                // Queued writes could otherwise overwrite the restored ids.
+                final Context appContext = context.getApplicationContext();
+                final PendingResult result = goAsync();
+                LauncherModel.runAfterPendingWorkspaceWrites(new Runnable() {
+                    @Override
+                    public void run() {
+                        restoreAppWidgetIds(appContext, oldIds, newIds);
+                        result.finish();
+                    }
+                });
             } else {
                 Log.e(TAG, "Invalid host restored received");
             }
@@ -93,6 +93,13 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     // When a drag operation is in progress, holds the nearest cell to the touch point
     private final int[] mDragCell = new int[2];
     private final Rect mTempRect = new Rect();
+    // Scratch state for the reorder solver, reused across drag events instead of being
+    // allocated for every findReorderSolution() pass.
+    private final int[] mReorderResult = new int[2];
+    private final Rect mReorderRect0 = new Rect();
+    private final Rect mReorderRect1 = new Rect();
+    private final Rect mBlockBoundingRect = new Rect();
+    private boolean[][] mBlockOccupied;
     private final Stack<Rect> mTempRectStack = new Stack<Rect>();
     @Thunk
     int mCellWidth;
@@ -185,6 +192,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         mCountY = (int) grid.inv.numRows;
         mOccupied = new boolean[mCountX][mCountY];
         mTmpOccupied = new boolean[mCountX][mCountY];
+        mBlockOccupied = new boolean[mCountX][mCountY];
         mPreviousReorderDirection[0] = INVALID_DIRECTION;
         mPreviousReorderDirection[1] = INVALID_DIRECTION;
 
@@ -395,6 +403,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         mCountY = y;
         mOccupied = new boolean[mCountX][mCountY];
         mTmpOccupied = new boolean[mCountX][mCountY];
+        mBlockOccupied = new boolean[mCountX][mCountY];
         mTempRectStack.clear();
         mShortcutsAndWidgets.setCellDimensions(mCellWidth, mCellHeight, mWidthGap, mHeightGap,
                 mCountX, mCountY);
@@ -1493,12 +1502,13 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         if (views.size() == 0) return true;
 
         boolean success = false;
-        Rect boundingRect = null;
+        Rect boundingRect = mBlockBoundingRect;
+        boundingRect.setEmpty();
         // We construct a rect which represents the entire group of views passed in
         for (View v : views) {
             CellAndSpan c = currentState.map.get(v);
-            if (boundingRect == null) {
-                boundingRect = new Rect(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
+            if (boundingRect.isEmpty()) {
+                boundingRect.set(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
             } else {
                 boundingRect.union(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
             }
@@ -1510,7 +1520,12 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             markCellsForView(c.x, c.y, c.spanX, c.spanY, mTmpOccupied, false);
         }
 
-        boolean[][] blockOccupied = new boolean[boundingRect.width()][boundingRect.height()];
+        // The block grid is sized to the whole layout and only its top-left corner, covering
+        // the bounding rect, is consulted by findNearestArea(), so only that part is cleared.
+        boolean[][] blockOccupied = mBlockOccupied;
+        for (int i = 0; i < boundingRect.width(); i++) {
+            Arrays.fill(blockOccupied[i], 0, boundingRect.height(), false);
+        }
         int top = boundingRect.top;
         int left = boundingRect.left;
         // We mark more precisely which parts of the bounding rect are truly occupied, allowing
@@ -1662,8 +1677,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                 c.y = cellY;
             }
         }
-        Rect r0 = new Rect(cellX, cellY, cellX + spanX, cellY + spanY);
-        Rect r1 = new Rect();
+        Rect r0 = mReorderRect0;
+        r0.set(cellX, cellY, cellX + spanX, cellY + spanY);
+        Rect r1 = mReorderRect1;
         for (View child : solution.map.keySet()) {
             if (child == ignoreView) continue;
             CellAndSpan c = solution.map.get(child);
@@ -1721,9 +1737,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
     private void copyOccupiedArray(boolean[][] occupied) {
         for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                occupied[i][j] = mOccupied[i][j];
-            }
+            System.arraycopy(mOccupied[i], 0, occupied[i], 0, mCountY);
         }
     }
 
@@ -1738,8 +1752,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
         // We find the nearest cell into which we would place the dragged item, assuming there's
         // nothing in its way.
-        int result[] = new int[2];
-        result = findNearestArea(pixelX, pixelY, spanX, spanY, result);
+        int result[] = findNearestArea(pixelX, pixelY, spanX, spanY, mReorderResult);
 
         boolean success = false;
         // First we try the exact nearest position of the item being dragged,
@@ -1785,9 +1798,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
     private void copySolutionToTempState(ItemConfiguration solution, View dragView) {
         for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                mTmpOccupied[i][j] = false;
-            }
+            Arrays.fill(mTmpOccupied[i], false);
         }
 
         int childCount = mShortcutsAndWidgets.getChildCount();
@@ -20,23 +20,53 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
+import android.util.Log;
+import android.view.Choreographer;
 
 import com.android.launcher3.util.Thunk;
 
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Queue of things to run on a looper thread.  Items posted with {@link #post} will not
  * be actually enqued on the handler until after the last one has run, to keep from
  * starving the thread.
  * <p/>
- * This class is fifo.
+ * Items are run at the start of a frame, as many as fit in {@link #FRAME_BUDGET_MS}, so that a
+ * long queue of bind tasks takes few frames without making any of them miss its deadline. Items
+ * posted with {@link #postPriority} are run even when the budget is used up.
+ * <p/>
+ * This class is fifo. It must be created on the looper thread.
  */
 public class DeferredHandler {
+    private static final String TAG = "DeferredHandler";
+    private static final boolean DEBUG = false;
+
+    // Time that the queued items may take in each frame, leaving the rest of the frame to the
+    // layout and drawing of what they bound.
+    private static final long FRAME_BUDGET_MS = 8;
+    private static final long FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(FRAME_BUDGET_MS);
+    // Frames are not drawn while the screen is off, the queue is run from a message instead
+    // if no frame comes within that time. The following batches are then posted right away,
+    // until a frame comes again.
+    private static final long FRAME_TIMEOUT_MS = 100;
+
     @Thunk
     LinkedList<Runnable> mQueue = new LinkedList<>();
     private MessageQueue mMessageQueue = Looper.myQueue();
+    private Choreographer mChoreographer = Choreographer.getInstance();
     private Impl mHandler = new Impl();
+    // Whether a frame or the idle handler is already waiting to run the queue, guarded by mQueue.
+    private boolean mFrameScheduled;
+    private boolean mIdleScheduled;
+
+    // Statistics of the frames which ran items, only touched on the looper thread.
+    private int mFrameCount;
+    private int mRunCount;
+    private int mOverBudgetCount;
+    private long mWorkNanos;
+    private long mMaxFrameWorkNanos;
 
     public DeferredHandler() {
     }
@@ -48,11 +78,20 @@ public class DeferredHandler {
         synchronized (mQueue) {
             mQueue.add(runnable);
             if (mQueue.size() == 1) {
-                scheduleNextLocked();
+                scheduleNextLocked(false);
             }
         }
     }
 
+    /**
+     * Schedule runnable to run after everything that's on the queue right now, in the same frame
+     * as the items before it even if that frame has used up its budget. Used for the work that
+     * the user is waiting on, such as binding the visible page.
+     */
+    public void postPriority(Runnable runnable) {
+        post(new PriorityRunnable(runnable));
+    }
+
     /**
      * Schedule runnable to run when the queue goes idle.
      */
@@ -80,35 +119,119 @@ public class DeferredHandler {
         }
     }
 
-    void scheduleNextLocked() {
+    /**
+     * Schedules the next run of the queue. {@param noFrames} is whether the last run was not
+     * started by a frame, in which case the next one does not wait for the frame timeout.
+     */
+    void scheduleNextLocked(boolean noFrames) {
         if (mQueue.size() > 0) {
             Runnable peek = mQueue.getFirst();
             if (peek instanceof IdleRunnable) {
-                mMessageQueue.addIdleHandler(mHandler);
-            } else {
-                mHandler.sendEmptyMessage(1);
+                if (!mIdleScheduled) {
+                    mIdleScheduled = true;
+                    mMessageQueue.addIdleHandler(mHandler);
+                }
+            } else if (!mFrameScheduled) {
+                mFrameScheduled = true;
+                mChoreographer.postFrameCallback(mHandler);
+                mHandler.sendEmptyMessageDelayed(0, noFrames ? 0 : FRAME_TIMEOUT_MS);
             }
         }
     }
 
+    /**
+     * Runs the queued items until the budget of the frame which started at {@param frameStart}
+     * is used up, or an idle item is reached. {@param fromTimeout} is whether no frame came.
+     */
     @Thunk
-    class Impl extends Handler implements MessageQueue.IdleHandler {
-        public void handleMessage(Message msg) {
+    void runFrame(long frameStart, boolean fromTimeout) {
+        synchronized (mQueue) {
+            // Only one of the frame and the timeout runs the queue
+            mFrameScheduled = false;
+            mChoreographer.removeFrameCallback(mHandler);
+            mHandler.removeMessages(0);
+        }
+
+        final long start = System.nanoTime();
+        // A late frame has less time left, but always runs at least one item.
+        final long deadline = Math.min(frameStart, start) + FRAME_BUDGET_NANOS;
+        int count = 0;
+        long now = start;
+        while (true) {
             Runnable r;
             synchronized (mQueue) {
                 if (mQueue.size() == 0) {
-                    return;
+                    break;
+                }
+                Runnable peek = mQueue.getFirst();
+                if (peek instanceof IdleRunnable
+                        || (count > 0 && now >= deadline && !(peek instanceof PriorityRunnable))) {
+                    break;
                 }
                 r = mQueue.removeFirst();
             }
             r.run();
-            synchronized (mQueue) {
-                scheduleNextLocked();
+            count++;
+            now = System.nanoTime();
+        }
+
+        if (count > 0) {
+            long work = now - start;
+            mFrameCount++;
+            mRunCount += count;
+            mWorkNanos += work;
+            mMaxFrameWorkNanos = Math.max(mMaxFrameWorkNanos, work);
+            if (work > FRAME_BUDGET_NANOS) {
+                mOverBudgetCount++;
             }
+            if (DEBUG) {
+                Log.d(TAG, "Ran " + count + " items in "
+                        + TimeUnit.NANOSECONDS.toMicros(work) + "us");
+            }
+        }
+        synchronized (mQueue) {
+            scheduleNextLocked(fromTimeout);
+        }
+    }
+
+    public void dumpState() {
+        int queued;
+        synchronized (mQueue) {
+            queued = mQueue.size();
+        }
+        Log.d(TAG, "frames=" + mFrameCount + " items=" + mRunCount
+                + " overBudget=" + mOverBudgetCount
+                + " avgFrameWork=" + (mFrameCount == 0 ? 0
+                        : TimeUnit.NANOSECONDS.toMicros(mWorkNanos / mFrameCount)) + "us"
+                + " maxFrameWork=" + TimeUnit.NANOSECONDS.toMicros(mMaxFrameWorkNanos) + "us"
+                + " queued=" + queued);
+    }
+
+    @Thunk
+    class Impl extends Handler implements MessageQueue.IdleHandler, Choreographer.FrameCallback {
+        public void handleMessage(Message msg) {
+            // No frame came in time
+            runFrame(System.nanoTime(), true);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            runFrame(frameTimeNanos, false);
         }
 
         public boolean queueIdle() {
-            handleMessage(null);
+            Runnable r;
+            synchronized (mQueue) {
+                mIdleScheduled = false;
+                if (mQueue.size() == 0) {
+                    return false;
+                }
+                r = mQueue.removeFirst();
+            }
+            r.run();
+            synchronized (mQueue) {
+                scheduleNextLocked(false);
+            }
             return false;
         }
     }
@@ -124,5 +247,16 @@ public class DeferredHandler {
             mRunnable.run();
         }
     }
-}
 
+    private class PriorityRunnable implements Runnable {
+        Runnable mRunnable;
+
+        PriorityRunnable(Runnable r) {
+            mRunnable = r;
+        }
+
+        public void run() {
+            mRunnable.run();
+        }
+    }
+}
@@ -42,18 +42,24 @@ import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.launcher3.compat.AlphabeticIndexCompat;
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.model.AppNameComparator;
 import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.settings.SettingsProvider;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.Thunk;
 
+import java.text.Collator;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
@@ -72,6 +78,12 @@ public class IconCache {
     private static final String EMPTY_CLASS_NAME = ".";
     private static final boolean DEBUG = false;
     private static final int LOW_RES_SCALE_FACTOR = 5;
+    // Max number of components bound in a single IN clause, below SQLite's variable limit.
+    private static final int PRELOAD_QUERY_BATCH = 400;
+    // Number of workspace pages worth of icons kept in full resolution in memory.
+    private static final int HIGH_RES_PAGES = 3;
+    // Fraction of the heap that the in-memory icon cache may use.
+    private static final int MEM_CACHE_HEAP_FRACTION = 16;
     @Thunk
     final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
     @Thunk
@@ -84,8 +96,7 @@ public class IconCache {
     private final Context mContext;
     private final PackageManager mPackageManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<ComponentKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final MemCache mCache;
     private final int mIconDpi;
     // The background color used for activity icons. Since these icons are displayed in all-apps
     // and folders, this would be same as the light quantum panel background. This color
@@ -95,8 +106,19 @@ public class IconCache {
     // has a dark quantum panel background.
     private final int mPackageBgColor;
     private final BitmapFactory.Options mLowResOptions;
+    // Palette tints of the icons for the icon pack identified by mSwatchesKey, loaded lazily
+    // from the swatch table. Guarded by itself.
+    private final HashMap<ComponentKey, SwatchEntry> mSwatches = new HashMap<>();
+    private String mSwatchesKey;
+    private int mSwatchHitCount;
+    private int mSwatchMissCount;
     private IconPackHelper mIconPackHelper;
     private String mSystemState;
+    // Used to compute the sort keys and section names of the titles in the current locale,
+    // guarded by this.
+    private Locale mSortLocale;
+    private Collator mCollator;
+    private AlphabeticIndexCompat mIndexer;
     private Bitmap mLowResBitmap;
     private Canvas mLowResCanvas;
     private Paint mLowResPaint;
@@ -107,6 +129,11 @@ public class IconCache {
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
         mIconDb = new IconDB(context);
+        // Keep enough full resolution icons for the current workspace pages and the hotseat.
+        int iconBytes = inv.iconBitmapSize * inv.iconBitmapSize * 4;
+        mCache = new MemCache(Runtime.getRuntime().maxMemory() / MEM_CACHE_HEAP_FRACTION,
+                (long) iconBytes * (inv.numRows * inv.numColumns * HIGH_RES_PAGES
+                        + (int) inv.numHotseatIcons));
 
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
 
@@ -293,6 +320,19 @@ public class IconCache {
         mIconDb.getWritableDatabase().delete(IconDB.TABLE_NAME,
                 IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[]{packageName + "/%", Long.toString(userSerial)});
+        synchronized (mSwatches) {
+            Iterator<ComponentKey> keys = mSwatches.keySet().iterator();
+            while (keys.hasNext()) {
+                ComponentKey key = keys.next();
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    keys.remove();
+                }
+            }
+            mIconDb.getWritableDatabase().delete(IconDB.TABLE_SWATCHES,
+                    IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
+                    new String[]{packageName + "/%", Long.toString(userSerial)});
+        }
     }
 
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
@@ -440,13 +480,17 @@ public class IconCache {
             Drawable drawable = getFullResIcon(app);
             if (mIconPackHelper.isIconPackLoaded() &&
                     (mIconPackHelper.getResourceIdForActivityIcon(app) == 0)) {
-                entry.icon = Utilities.createIconBitmap(drawable, mContext, mIconPackHelper);
+                entry.icon = createIconPackBitmap(drawable, app.getComponentName(),
+                        app.getUser(), null);
             } else {
                 entry.icon = Utilities.createIconBitmap(drawable, mContext);
             }
         }
         entry.title = app.getLabel();
         entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
+        // Recomputed from the new title when needed
+        entry.sortKey = null;
+        entry.sectionName = null;
         mCache.put(new ComponentKey(app.getComponentName(), app.getUser()), entry);
 
         return newContentValues(entry.icon, entry.title.toString(), mActivityBgColor, false);
@@ -523,16 +567,72 @@ public class IconCache {
 
     /**
      * Fill in "application" with the icon and label for "info."
+     * <p/>
+     * A missing entry is created without holding the cache lock, so that this can be called from
+     * several threads at once.
      */
-    public synchronized void getTitleAndIcon(AppInfo application,
-                                             LauncherActivityInfoCompat info, boolean useLowResIcon) {
+    public void getTitleAndIcon(AppInfo application,
+                                LauncherActivityInfoCompat info, boolean useLowResIcon) {
         UserHandleCompat user = info == null ? application.user : info.getUser();
-        CacheEntry entry = cacheLocked(application.componentName, info, user,
-                false, useLowResIcon);
-        application.title = Utilities.trim(entry.title);
-        application.iconBitmap = getNonNullIcon(entry, user);
-        application.contentDescription = entry.contentDescription;
-        application.usingLowResIcon = entry.isLowResIcon;
+        if (info != null) {
+            createEntryIfNeeded(application.componentName, info, user, useLowResIcon);
+        }
+        synchronized (this) {
+            CacheEntry entry = cacheLocked(application.componentName, info, user,
+                    false, useLowResIcon);
+            application.title = Utilities.trim(entry.title);
+            ensureSortKeyLocked(entry);
+            application.sortKey = entry.sortKey;
+            application.sectionName = entry.sectionName;
+            application.iconBitmap = getNonNullIcon(entry, user);
+            application.contentDescription = entry.contentDescription;
+            application.usingLowResIcon = entry.isLowResIcon;
+        }
+    }
+
+    /**
+     * Reads the entry of {@param info} from the DB, or renders it, unless it is already in memory.
+     * Only the lookup and the insertion hold the cache lock.
+     */
+    private void createEntryIfNeeded(ComponentName componentName, LauncherActivityInfoCompat info,
+                                     UserHandleCompat user, boolean useLowResIcon) {
+        ComponentKey cacheKey = new ComponentKey(componentName, user);
+        synchronized (this) {
+            CacheEntry entry = mCache.get(cacheKey);
+            if (entry != null && (useLowResIcon || !entry.isLowResIcon)) {
+                return;
+            }
+        }
+
+        CacheEntry entry = new CacheEntry();
+        if (!getEntryFromDB(componentName, user, entry, useLowResIcon)) {
+            entry.icon = createActivityIcon(componentName, info, user);
+        }
+        if (TextUtils.isEmpty(entry.title)) {
+            entry.title = info.getLabel();
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+        }
+
+        synchronized (this) {
+            // Another thread may have created the entry in the meantime.
+            CacheEntry current = mCache.get(cacheKey);
+            if (current == null || (current.isLowResIcon && !entry.isLowResIcon)) {
+                mCache.put(cacheKey, entry);
+            }
+        }
+    }
+
+    /**
+     * Renders the icon of {@param info}, with the icon pack when it has no icon for it.
+     */
+    private Bitmap createActivityIcon(ComponentName componentName,
+                                      LauncherActivityInfoCompat info, UserHandleCompat user) {
+        Drawable icon = getIconForInfo(info);
+        if (mIconPackHelper.isIconPackLoaded() &&
+                (mIconPackHelper.getResourceIdForActivityIcon(info) == 0)) {
+            return createIconPackBitmap(icon, componentName, user, null);
+        }
+        return Utilities.createIconBitmap(icon, mContext);
     }
 
     /**
@@ -543,6 +643,9 @@ public class IconCache {
                 false, application.usingLowResIcon);
         if (entry.icon != null && !isDefaultIcon(entry.icon, application.user)) {
             application.title = Utilities.trim(entry.title);
+            ensureSortKeyLocked(entry);
+            application.sortKey = entry.sortKey;
+            application.sectionName = entry.sectionName;
             application.iconBitmap = entry.icon;
             application.contentDescription = entry.contentDescription;
             application.usingLowResIcon = entry.isLowResIcon;
@@ -671,18 +774,11 @@ public class IconCache {
         CacheEntry entry = mCache.get(cacheKey);
         if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
 
             // Check the DB first.
             if (!getEntryFromDB(componentName, user, entry, useLowResIcon)) {
                 if (info != null) {
-                    Drawable icon = getIconForInfo(info);
-                    if (mIconPackHelper.isIconPackLoaded() &&
-                            (mIconPackHelper.getResourceIdForActivityIcon(info) == 0)) {
-                        entry.icon = Utilities.createIconBitmap(icon, mContext, mIconPackHelper);
-                    } else {
-                        entry.icon = Utilities.createIconBitmap(icon, mContext);
-                    }
+                    entry.icon = createActivityIcon(componentName, info, user);
                 } else {
                     if (usePackageIcon) {
                         CacheEntry packageEntry = getEntryForPackageLocked(
@@ -702,6 +798,8 @@ public class IconCache {
                     }
                     if (mIconPackHelper.isIconPackLoaded() &&
                             (mIconPackHelper.getResourceIdForActivityIcon(componentName) == 0)) {
+                        // The tint of a fallback icon is not the one of the activity, so it is
+                        // not stored in the swatch table.
                         entry.icon = Utilities.createIconBitmap(
                                 new BitmapDrawable(entry.icon), mContext, mIconPackHelper);
                     }
@@ -713,6 +811,8 @@ public class IconCache {
                 entry.title = info.getLabel();
                 entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
             }
+            // Only add the entry once the icon is set, so that its size is accounted for.
+            mCache.put(cacheKey, entry);
         }
         return entry;
     }
@@ -728,10 +828,135 @@ public class IconCache {
         CacheEntry entry = getEntryForPackageLocked(packageName, user, false);
         if (!TextUtils.isEmpty(title)) {
             entry.title = title;
+            entry.sortKey = null;
+            entry.sectionName = null;
         }
         if (icon != null) {
             entry.icon = Utilities.createIconBitmap(icon, mContext, mIconPackHelper);
         }
+        // Put it back so that the new icon is accounted for.
+        mCache.put(new ComponentKey(new ComponentName(packageName, packageName + EMPTY_CLASS_NAME),
+                user), entry);
+    }
+
+    /**
+     * Logs the memory cache usage for debugging.
+     */
+    public synchronized void dumpState() {
+        mCache.dumpState();
+        synchronized (mSwatches) {
+            int lookups = mSwatchHitCount + mSwatchMissCount;
+            Log.d(TAG, "mSwatches size=" + mSwatches.size() + " hits=" + mSwatchHitCount
+                    + " misses=" + mSwatchMissCount + " hitRate="
+                    + (lookups == 0 ? 0 : mSwatchHitCount * 100 / lookups) + "%");
+        }
+    }
+
+    /**
+     * Renders {@param icon} with the loaded icon pack. When the pack tints the icons with their
+     * palette, the tint is read from the swatch table and the palette is only computed when the
+     * app or the icon pack changed since the tint was stored.
+     *
+     * @param info the package of the component, looked up when null.
+     */
+    private Bitmap createIconPackBitmap(Drawable icon, ComponentName component,
+                                        UserHandleCompat user, PackageInfo info) {
+        String swatchesKey = mIconPackHelper.getSwatchCacheKey();
+        if (swatchesKey == null) {
+            return Utilities.createIconBitmap(icon, mContext, mIconPackHelper);
+        }
+        if (info == null) {
+            try {
+                info = mPackageManager.getPackageInfo(component.getPackageName(),
+                        PackageManager.GET_UNINSTALLED_PACKAGES);
+            } catch (NameNotFoundException e) {
+                // Without versioning information the tint cannot be stored.
+                return Utilities.createIconBitmap(icon, mContext, mIconPackHelper);
+            }
+        }
+
+        ComponentKey key = new ComponentKey(component, user);
+        IconPackHelper.SwatchColor swatch = new IconPackHelper.SwatchColor();
+        synchronized (mSwatches) {
+            loadSwatchesLocked(swatchesKey);
+            SwatchEntry entry = mSwatches.get(key);
+            if (entry != null && entry.version == info.versionCode
+                    && entry.lastUpdated == info.lastUpdateTime) {
+                swatch.color = entry.color;
+                swatch.isSet = true;
+                mSwatchHitCount++;
+            } else {
+                mSwatchMissCount++;
+            }
+        }
+        boolean cached = swatch.isSet;
+
+        Bitmap bitmap = Utilities.createIconBitmap(icon, mContext, mIconPackHelper, swatch);
+        if (!cached && swatch.isSet) {
+            SwatchEntry entry = new SwatchEntry(info.versionCode, info.lastUpdateTime,
+                    swatch.color);
+            long userSerial = mUserManager.getSerialNumberForUser(user);
+            ContentValues values = new ContentValues();
+            values.put(IconDB.COLUMN_COMPONENT, component.flattenToString());
+            values.put(IconDB.COLUMN_USER, userSerial);
+            values.put(IconDB.COLUMN_ICON_PACK, swatchesKey);
+            values.put(IconDB.COLUMN_LAST_UPDATED, entry.lastUpdated);
+            values.put(IconDB.COLUMN_VERSION, entry.version);
+            values.put(IconDB.COLUMN_SWATCH_COLOR, entry.color);
+            synchronized (mSwatches) {
+                if (swatchesKey.equals(mSwatchesKey)) {
+                    mSwatches.put(key, entry);
+                }
+                mIconDb.getWritableDatabase().insertWithOnConflict(IconDB.TABLE_SWATCHES, null,
+                        values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Loads the stored tints for the icon pack identified by {@param swatchesKey}, unless they are
+     * already loaded. Tints stored for other versions of the same icon pack are dropped.
+     */
+    private void loadSwatchesLocked(String swatchesKey) {
+        if (swatchesKey.equals(mSwatchesKey)) {
+            return;
+        }
+        mSwatches.clear();
+        mSwatchesKey = swatchesKey;
+
+        SQLiteDatabase db = mIconDb.getWritableDatabase();
+        String iconPackPackage = swatchesKey.substring(0, swatchesKey.indexOf('/'));
+        db.delete(IconDB.TABLE_SWATCHES,
+                IconDB.COLUMN_ICON_PACK + " LIKE ? AND " + IconDB.COLUMN_ICON_PACK + " != ?",
+                new String[]{iconPackPackage + "/%", swatchesKey});
+
+        HashMap<Long, UserHandleCompat> users = new HashMap<>();
+        Cursor c = db.query(IconDB.TABLE_SWATCHES,
+                new String[]{IconDB.COLUMN_COMPONENT, IconDB.COLUMN_USER,
+                        IconDB.COLUMN_VERSION, IconDB.COLUMN_LAST_UPDATED,
+                        IconDB.COLUMN_SWATCH_COLOR},
+                IconDB.COLUMN_ICON_PACK + " = ?", new String[]{swatchesKey},
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                long serial = c.getLong(1);
+                UserHandleCompat user = users.get(serial);
+                if (user == null && !users.containsKey(serial)) {
+                    user = mUserManager.getUserForSerialNumber(serial);
+                    users.put(serial, user);
+                }
+                if (cn == null || user == null) {
+                    continue;
+                }
+                mSwatches.put(new ComponentKey(cn, user),
+                        new SwatchEntry(c.getInt(2), c.getLong(3), c.getInt(4)));
+            }
+        } finally {
+            c.close();
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + mSwatches.size() + " swatches for " + swatchesKey);
     }
 
     /**
@@ -760,8 +985,7 @@ public class IconCache {
                             appInfo.loadIcon(mPackageManager), user);
                     if (mIconPackHelper.isIconPackLoaded() &&
                             (mIconPackHelper.getResourceIdForActivityIcon(cn) == 0)) {
-                        entry.icon =
-                                Utilities.createIconBitmap(drawable, mContext, mIconPackHelper);
+                        entry.icon = createIconPackBitmap(drawable, cn, user, info);
                     } else {
                         entry.icon = Utilities.createIconBitmap(drawable, mContext);
                     }
@@ -818,26 +1042,115 @@ public class IconCache {
                 SQLiteDatabase.CONFLICT_REPLACE);
     }
 
+    /**
+     * Loads the cached entries for all of {@param keys} from the DB into memory, using one query
+     * per user for every {@link #PRELOAD_QUERY_BATCH} components instead of one per component.
+     * Entries already in memory (at the requested resolution) are left untouched, and components
+     * missing from the DB or stored without a label are skipped so that they are created normally
+     * when first requested.
+     */
+    public synchronized void preloadEntriesFromDB(List<ComponentKey> keys, boolean useLowResIcon) {
+        final long t = DEBUG ? SystemClock.uptimeMillis() : 0;
+        HashMap<UserHandleCompat, ArrayList<String>> componentsByUser = new HashMap<>();
+        for (ComponentKey key : keys) {
+            CacheEntry entry = mCache.get(key);
+            if (entry != null && (useLowResIcon || !entry.isLowResIcon)) {
+                continue;
+            }
+            ArrayList<String> components = componentsByUser.get(key.user);
+            if (components == null) {
+                components = new ArrayList<>();
+                componentsByUser.put(key.user, components);
+            }
+            components.add(key.componentName.flattenToString());
+        }
+
+        int loaded = 0;
+        for (UserHandleCompat user : componentsByUser.keySet()) {
+            ArrayList<String> components = componentsByUser.get(user);
+            String userSerial = Long.toString(mUserManager.getSerialNumberForUser(user));
+            for (int start = 0; start < components.size(); start += PRELOAD_QUERY_BATCH) {
+                int end = Math.min(components.size(), start + PRELOAD_QUERY_BATCH);
+                String[] args = new String[end - start + 1];
+                StringBuilder selection = new StringBuilder(IconDB.COLUMN_USER)
+                        .append(" = ? AND ").append(IconDB.COLUMN_COMPONENT).append(" IN (");
+                args[0] = userSerial;
+                for (int i = start; i < end; i++) {
+                    selection.append(i == start ? "?" : ", ?");
+                    args[i - start + 1] = components.get(i);
+                }
+                selection.append(')');
+
+                Cursor c = mIconDb.getReadableDatabase().query(IconDB.TABLE_NAME,
+                        new String[]{IconDB.COLUMN_COMPONENT,
+                                useLowResIcon ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
+                                IconDB.COLUMN_LABEL, IconDB.COLUMN_SORT_KEY,
+                                IconDB.COLUMN_SECTION_NAME, IconDB.COLUMN_SYSTEM_STATE},
+                        selection.toString(), args, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                        if (cn == null) {
+                            continue;
+                        }
+                        CacheEntry entry = new CacheEntry();
+                        readEntryFromCursor(c, 1, 2, user, entry, useLowResIcon);
+                        if (TextUtils.isEmpty(entry.title)) {
+                            // Left to cacheLocked, which falls back to the activity label.
+                            continue;
+                        }
+                        mCache.put(new ComponentKey(cn, user), entry);
+                        loaded++;
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Preloaded " + loaded + " of " + keys.size() + " icons in "
+                    + (SystemClock.uptimeMillis() - t) + "ms");
+        }
+    }
+
+    /**
+     * Reads an entry from {@param c}, where the label column is followed by the sort key, section
+     * name and system state columns. The sort key and section name are only kept if the row was
+     * written in the current system state, as they depend on the locale.
+     */
+    private void readEntryFromCursor(Cursor c, int iconIndex, int labelIndex,
+                                     UserHandleCompat user, CacheEntry entry, boolean lowRes) {
+        entry.icon = loadIconNoResize(c, iconIndex, lowRes ? mLowResOptions : null);
+        entry.isLowResIcon = lowRes;
+        entry.title = c.getString(labelIndex);
+        if (entry.title == null) {
+            entry.title = "";
+            entry.contentDescription = "";
+        } else {
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+            if (TextUtils.equals(mSystemState, c.getString(labelIndex + 3))) {
+                entry.sortKey = c.getBlob(labelIndex + 1);
+                entry.sectionName = c.getString(labelIndex + 2);
+            } else {
+                entry.sortKey = null;
+                entry.sectionName = null;
+            }
+        }
+    }
+
     private boolean getEntryFromDB(ComponentName component, UserHandleCompat user,
                                    CacheEntry entry, boolean lowRes) {
         Cursor c = mIconDb.getReadableDatabase().query(IconDB.TABLE_NAME,
                 new String[]{lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
-                        IconDB.COLUMN_LABEL},
+                        IconDB.COLUMN_LABEL, IconDB.COLUMN_SORT_KEY, IconDB.COLUMN_SECTION_NAME,
+                        IconDB.COLUMN_SYSTEM_STATE},
                 IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[]{component.flattenToString(),
                         Long.toString(mUserManager.getSerialNumberForUser(user))},
                 null, null, null);
         try {
             if (c.moveToNext()) {
-                entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
-                entry.isLowResIcon = lowRes;
-                entry.title = c.getString(1);
-                if (entry.title == null) {
-                    entry.title = "";
-                    entry.contentDescription = "";
-                } else {
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
-                }
+                readEntryFromCursor(c, 0, 1, user, entry, lowRes);
                 return true;
             }
         } finally {
@@ -850,12 +1163,46 @@ public class IconCache {
         mSystemState = Locale.getDefault().toString();
     }
 
+    /**
+     * Computes the sort key and section name of {@param entry} if they are not known yet.
+     * Must be called from a synchronized method.
+     */
+    private void ensureSortKeyLocked(CacheEntry entry) {
+        if (entry.sortKey == null || entry.sectionName == null) {
+            String title = Utilities.trim(entry.title);
+            entry.sortKey = getSortKeyLocked(title);
+            entry.sectionName = mIndexer.computeSectionName(title);
+        }
+    }
+
+    /**
+     * Returns the sort key of {@param title} in the current locale. Must be called from a
+     * synchronized method.
+     */
+    private byte[] getSortKeyLocked(String title) {
+        Locale locale = Locale.getDefault();
+        if (!locale.equals(mSortLocale)) {
+            mSortLocale = locale;
+            mCollator = Collator.getInstance(locale);
+            mIndexer = new AlphabeticIndexCompat(mContext);
+        }
+        return AppNameComparator.getSortKey(mCollator, title);
+    }
+
     private ContentValues newContentValues(Bitmap icon, String label, int lowResBackgroundColor, boolean customIcon) {
         ContentValues values = new ContentValues();
         values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, mSystemState);
+        if (label != null) {
+            // The sort key depends on the locale, which is part of the system state
+            synchronized (this) {
+                String title = Utilities.trim(label);
+                values.put(IconDB.COLUMN_SORT_KEY, getSortKeyLocked(title));
+                values.put(IconDB.COLUMN_SECTION_NAME, mIndexer.computeSectionName(title));
+            }
+        }
 
         if (lowResBackgroundColor == Color.TRANSPARENT) {
             values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(
@@ -886,7 +1233,141 @@ public class IconCache {
         public Bitmap icon;
         public CharSequence title = "";
         public CharSequence contentDescription = "";
+        // The collation key and all apps section of the title, null until they are computed
+        public byte[] sortKey;
+        public String sectionName;
         public boolean isLowResIcon;
+        // Bytes accounted for this entry by the MemCache, as of when it was last put.
+        int memSize;
+    }
+
+    /**
+     * LRU of {@link CacheEntry}s bounded by the byte size of their icons. Only the most recently
+     * used full resolution icons (the visible workspace and hotseat) are kept as is, older ones
+     * are demoted to a low res copy matching {@link IconDB#COLUMN_ICON_LOW_RES}, and the least
+     * recently used entries are dropped once the whole cache is over its limit.
+     * <p/>
+     * This is not thread safe, all access must happen while holding the IconCache lock.
+     */
+    private final class MemCache {
+        private final LinkedHashMap<ComponentKey, CacheEntry> mEntries =
+                new LinkedHashMap<>(INITIAL_ICON_CACHE_CAPACITY, 0.75f, true /* accessOrder */);
+        private final long mMaxBytes;
+        private final long mMaxHighResBytes;
+
+        private long mBytes;
+        private long mHighResBytes;
+
+        private int mHitCount;
+        private int mMissCount;
+        private int mDemotionCount;
+        private int mEvictionCount;
+
+        MemCache(long maxBytes, long maxHighResBytes) {
+            mMaxBytes = maxBytes;
+            mMaxHighResBytes = Math.min(maxBytes, maxHighResBytes);
+        }
+
+        public CacheEntry get(ComponentKey key) {
+            CacheEntry entry = mEntries.get(key);
+            if (entry != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            return entry;
+        }
+
+        public void put(ComponentKey key, CacheEntry entry) {
+            CacheEntry previous = mEntries.put(key, entry);
+            if (previous != null) {
+                onRemoved(previous);
+            }
+            entry.memSize = sizeOf(entry);
+            mBytes += entry.memSize;
+            if (!entry.isLowResIcon) {
+                mHighResBytes += entry.memSize;
+            }
+            trim();
+        }
+
+        public CacheEntry remove(ComponentKey key) {
+            CacheEntry entry = mEntries.remove(key);
+            if (entry != null) {
+                onRemoved(entry);
+            }
+            return entry;
+        }
+
+        public Set<ComponentKey> keySet() {
+            return mEntries.keySet();
+        }
+
+        public void clear() {
+            mEntries.clear();
+            mBytes = 0;
+            mHighResBytes = 0;
+        }
+
+        private void onRemoved(CacheEntry entry) {
+            mBytes -= entry.memSize;
+            if (!entry.isLowResIcon) {
+                mHighResBytes -= entry.memSize;
+            }
+        }
+
+        private int sizeOf(CacheEntry entry) {
+            // The default icons are shared and never freed.
+            if (entry.icon == null || mDefaultIcons.containsValue(entry.icon)) {
+                return 0;
+            }
+            return entry.icon.getByteCount();
+        }
+
+        private void trim() {
+            if (mHighResBytes <= mMaxHighResBytes && mBytes <= mMaxBytes) {
+                return;
+            }
+            // Iteration goes from the least to the most recently used entry.
+            Iterator<CacheEntry> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()
+                    && (mHighResBytes > mMaxHighResBytes || mBytes > mMaxBytes)) {
+                CacheEntry entry = iterator.next();
+                if (mBytes > mMaxBytes) {
+                    iterator.remove();
+                    onRemoved(entry);
+                    mEvictionCount++;
+                } else if (!entry.isLowResIcon && entry.memSize > 0) {
+                    onRemoved(entry);
+                    entry.icon = Bitmap.createScaledBitmap(entry.icon,
+                            Math.max(1, entry.icon.getWidth() / LOW_RES_SCALE_FACTOR),
+                            Math.max(1, entry.icon.getHeight() / LOW_RES_SCALE_FACTOR), true);
+                    entry.isLowResIcon = true;
+                    entry.memSize = sizeOf(entry);
+                    mBytes += entry.memSize;
+                    mDemotionCount++;
+                }
+            }
+        }
+
+        public void dumpState() {
+            Log.d(TAG, "mCache size=" + mEntries.size() + " bytes=" + mBytes + "/" + mMaxBytes
+                    + " highResBytes=" + mHighResBytes + "/" + mMaxHighResBytes);
+            Log.d(TAG, "mCache hits=" + mHitCount + " misses=" + mMissCount
+                    + " demotions=" + mDemotionCount + " evictions=" + mEvictionCount);
+        }
+    }
+
+    private static class SwatchEntry {
+        final int version;
+        final long lastUpdated;
+        final int color;
+
+        SwatchEntry(int version, long lastUpdated, int color) {
+            this.version = version;
+            this.lastUpdated = lastUpdated;
+            this.color = color;
+        }
     }
 
     public static class IconLoadRequest {
@@ -904,7 +1385,7 @@ public class IconCache {
     }
 
     private static final class IconDB extends SQLiteOpenHelper {
-        private final static int DB_VERSION = 7;
+        private final static int DB_VERSION = 9;
 
         private final static String TABLE_NAME = "icons";
         private final static String COLUMN_ROWID = "rowid";
@@ -915,9 +1396,17 @@ public class IconCache {
         private final static String COLUMN_ICON = "icon";
         private final static String COLUMN_ICON_LOW_RES = "icon_low_res";
         private final static String COLUMN_LABEL = "label";
+        private final static String COLUMN_SORT_KEY = "sort_key";
+        private final static String COLUMN_SECTION_NAME = "section_name";
         private final static String COLUMN_SYSTEM_STATE = "system_state";
         private final static String COLUMN_CUSTOM_ICON = "custom_icon";
 
+        // Palette tints of the icons per icon pack. Unlike the icons, they are kept when the
+        // icon pack changes, so that switching back to a pack does not compute them again.
+        private final static String TABLE_SWATCHES = "swatches";
+        private final static String COLUMN_ICON_PACK = "icon_pack";
+        private final static String COLUMN_SWATCH_COLOR = "swatch_color";
+
         public IconDB(Context context) {
             super(context, LauncherFiles.APP_ICONS_DB, null, DB_VERSION);
         }
@@ -932,15 +1421,28 @@ public class IconCache {
                     COLUMN_ICON + " BLOB, " +
                     COLUMN_ICON_LOW_RES + " BLOB, " +
                     COLUMN_LABEL + " TEXT, " +
+                    COLUMN_SORT_KEY + " BLOB, " +
+                    COLUMN_SECTION_NAME + " TEXT, " +
                     COLUMN_SYSTEM_STATE + " TEXT, " +
                     COLUMN_CUSTOM_ICON + " INTEGER NOT NULL DEFAULT 0, " +
                     "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
                     ");");
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SWATCHES + " (" +
+                    COLUMN_COMPONENT + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_ICON_PACK + " TEXT NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_SWATCH_COLOR + " INTEGER NOT NULL DEFAULT 0, " +
+                    "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ", " +
+                    COLUMN_ICON_PACK + ") " +
+                    ");");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             if (oldVersion != newVersion) {
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SWATCHES);
                 clearDB(db);
             }
         }
@@ -948,6 +1450,7 @@ public class IconCache {
         @Override
         public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             if (oldVersion != newVersion) {
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SWATCHES);
                 clearDB(db);
             }
         }
@@ -7,6 +7,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
@@ -98,11 +99,14 @@ public class IconPackHelper {
     // Holds package/class -> drawable
     private Map<ComponentName, String> mIconPackResources;
     private String mLoadedIconPackName;
+    // Identifies the loaded version of the icon pack, see getSwatchCacheKey()
+    private String mLoadedIconPackKey;
     private Resources mLoadedIconPackResource;
     private Drawable mIconUpon, mIconMask;
     private Drawable[] mIconBacks;
     private float mIconScale;
     private Drawable mIconPaletteBack;
+    private String mIconPaletteBackName;
     private SwatchType mSwatchType;
     private int[] mDefaultSwatchColors;
     private float[] mColorFilter;
@@ -335,6 +339,17 @@ public class IconPackHelper {
         return mSwatchType;
     }
 
+    /**
+     * Returns a key identifying the icon pack and its version when it tints icons with their
+     * palette, or null otherwise. The tint of an icon only depends on the icon and on this key.
+     */
+    public String getSwatchCacheKey() {
+        if (!isIconPackLoaded() || mSwatchType == null || mSwatchType == SwatchType.None) {
+            return null;
+        }
+        return mLoadedIconPackKey + "/" + mSwatchType.name();
+    }
+
     public Drawable getIconMask() {
         return mIconMask;
     }
@@ -485,8 +500,8 @@ public class IconPackHelper {
                 continue;
             }
             if (IMG_ATTR.equalsIgnoreCase(name)) {
-                mIconPaletteBack =
-                        mLoadedIconPackResource.getDrawable(getResourceIdForDrawable(value));
+                // Resolved once the icon pack resources are loaded.
+                mIconPaletteBackName = value;
             } else if (SWATCH_TYPE_ATTR.equalsIgnoreCase(name)) {
                 SwatchType type = SwatchType.None;
                 if (VIBRANT_VALUE.equalsIgnoreCase(value)) {
@@ -566,7 +581,29 @@ public class IconPackHelper {
     }
 
     public boolean loadIconPack(String packageName) {
-        mIconPackResources = getIconPackResources(mContext, packageName);
+        PackageInfo packInfo;
+        try {
+            packInfo = mContext.getPackageManager().getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+            return false;
+        }
+        final float density = mContext.getResources().getDisplayMetrics().density;
+        IconPackIndex index = IconPackIndex.read(mContext, packInfo, density);
+        if (index != null) {
+            applyIndex(index);
+        } else {
+            mFilterBuilder = new ColorFilterUtils.Builder();
+            mIconPackResources = getIconPackResources(mContext, packageName);
+            ColorMatrix cm = mFilterBuilder.build();
+            if (cm != null) {
+                mColorFilter = cm.getArray().clone();
+            }
+            if (mIconPackResources != null) {
+                createIndex().write(mContext, packInfo, density);
+            }
+        }
+
         Resources res;
         try {
             res = mContext.getPackageManager().getResourcesForApplication(packageName);
@@ -576,8 +613,16 @@ public class IconPackHelper {
         }
         mLoadedIconPackResource = res;
         mLoadedIconPackName = packageName;
+        mLoadedIconPackKey = packageName + "/" + packInfo.versionCode + "/"
+                + packInfo.lastUpdateTime;
         mIconMask = getDrawableForName(ICON_MASK_COMPONENT);
         mIconUpon = getDrawableForName(ICON_UPON_COMPONENT);
+        if (mIconPaletteBackName != null) {
+            int id = getResourceIdForDrawable(mIconPaletteBackName);
+            if (id != 0) {
+                mIconPaletteBack = res.getDrawable(id);
+            }
+        }
         String scale = mIconPackResources.get(ICON_SCALE_COMPONENT);
         if (scale != null) {
             try {
@@ -593,13 +638,41 @@ public class IconPackHelper {
                         new ComponentName(String.format(ICON_BACK_FORMAT, i), ""));
             }
         }
-        ColorMatrix cm = mFilterBuilder.build();
-        if (cm != null) {
-            mColorFilter = cm.getArray().clone();
-        }
         return true;
     }
 
+    private IconPackIndex createIndex() {
+        IconPackIndex index = new IconPackIndex();
+        index.resources = mIconPackResources;
+        index.colorFilter = mColorFilter;
+        index.rotation = mIconRotation;
+        index.rotationVariance = mIconRotationVariance;
+        index.translationX = mIconTranslationX;
+        index.translationY = mIconTranslationY;
+        index.paletteBackName = mIconPaletteBackName;
+        index.swatchType = mSwatchType;
+        index.defaultSwatchColors = mDefaultSwatchColors;
+        return index;
+    }
+
+    private void applyIndex(IconPackIndex index) {
+        mIconPackResources = index.resources;
+        mColorFilter = index.colorFilter;
+        mIconRotation = index.rotation;
+        mIconRotationVariance = index.rotationVariance;
+        mIconTranslationX = index.translationX;
+        mIconTranslationY = index.translationY;
+        mIconPaletteBackName = index.paletteBackName;
+        mSwatchType = index.swatchType;
+        mDefaultSwatchColors = index.defaultSwatchColors;
+        // The icon backs are stored in the resources as iconback0..iconbackN.
+        mIconBackCount = 0;
+        while (mIconPackResources.containsKey(
+                new ComponentName(String.format(ICON_BACK_FORMAT, mIconBackCount), ""))) {
+            mIconBackCount++;
+        }
+    }
+
     public Map<ComponentName, String> getIconPackResources(
             Context context, String packageName) {
         if (TextUtils.isEmpty(packageName)) {
@@ -706,14 +779,19 @@ public class IconPackHelper {
     public void unloadIconPack() {
         mLoadedIconPackResource = null;
         mLoadedIconPackName = null;
+        mLoadedIconPackKey = null;
         mIconPackResources = null;
         mIconMask = null;
         mIconBacks = null;
         mIconPaletteBack = null;
+        mIconPaletteBackName = null;
+        mSwatchType = null;
+        mDefaultSwatchColors = null;
         mIconBackCount = 0;
         mIconUpon = null;
         mIconScale = 1f;
         mIconRotation = 0;
+        mIconRotationVariance = 0;
         mIconTranslationX = 0;
         mIconTranslationY = 0;
         mColorFilter = null;
@@ -774,6 +852,15 @@ public class IconPackHelper {
         return getResourceIdForDrawable(drawable);
     }
 
+    /**
+     * The tint applied to the palette back of an icon. When set, it is used instead of computing
+     * the palette of the icon; otherwise it receives the computed tint.
+     */
+    static class SwatchColor {
+        boolean isSet;
+        int color;
+    }
+
     public enum SwatchType {
         None,
         Vibrant,
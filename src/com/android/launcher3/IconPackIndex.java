@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiled form of an icon pack's appfilter, stored in the app's cache directory so that the
+ * pack does not need to be parsed again until it is updated. The index holds the
+ * component -> drawable map along with the values that {@link IconPackHelper} derives from the
+ * other appfilter tags, and is read back in a single sequential pass.
+ */
+class IconPackIndex {
+    private static final String TAG = "Launcher.IconPackIndex";
+
+    private static final int MAGIC = 0x49504958; // "IPIX"
+    // Bump this whenever the file layout or the parsing in IconPackHelper changes.
+    private static final int FORMAT_VERSION = 1;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    Map<ComponentName, String> resources;
+    float[] colorFilter;
+    float rotation;
+    float rotationVariance;
+    float translationX;
+    float translationY;
+    String paletteBackName;
+    IconPackHelper.SwatchType swatchType;
+    int[] defaultSwatchColors;
+
+    private static File getIndexFile(Context context, String packageName) {
+        File dir = new File(context.getCacheDir(), LauncherFiles.ICON_PACK_INDEX_DIR);
+        return new File(dir, packageName);
+    }
+
+    /**
+     * Reads the index of {@param packInfo}, or returns null if there is none or it was written
+     * for a different version of the pack.
+     */
+    static IconPackIndex read(Context context, PackageInfo packInfo, float density) {
+        File file = getIndexFile(context, packInfo.packageName);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), INITIAL_BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readInt() != packInfo.versionCode
+                    || in.readLong() != packInfo.lastUpdateTime
+                    || in.readFloat() != density) {
+                return null;
+            }
+
+            IconPackIndex index = new IconPackIndex();
+            index.rotation = in.readFloat();
+            index.rotationVariance = in.readFloat();
+            index.translationX = in.readFloat();
+            index.translationY = in.readFloat();
+            if (in.readBoolean()) {
+                index.colorFilter = new float[in.readInt()];
+                for (int i = 0; i < index.colorFilter.length; i++) {
+                    index.colorFilter[i] = in.readFloat();
+                }
+            }
+            if (in.readBoolean()) {
+                index.paletteBackName = in.readUTF();
+            }
+            int swatchType = in.readInt();
+            if (swatchType >= 0) {
+                index.swatchType = IconPackHelper.SwatchType.values()[swatchType];
+            }
+            if (in.readBoolean()) {
+                index.defaultSwatchColors = new int[in.readInt()];
+                for (int i = 0; i < index.defaultSwatchColors.length; i++) {
+                    index.defaultSwatchColors[i] = in.readInt();
+                }
+            }
+
+            int count = in.readInt();
+            index.resources = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String pkg = in.readUTF();
+                String cls = in.readUTF();
+                String drawable = in.readBoolean() ? in.readUTF() : null;
+                index.resources.put(new ComponentName(pkg, cls), drawable);
+            }
+            return index;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read icon pack index for " + packInfo.packageName, e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes this index for {@param packInfo}, replacing any previous one. The file is written
+     * to a temporary name first so that a partially written index is never read.
+     */
+    void write(Context context, PackageInfo packInfo, float density) {
+        File file = getIndexFile(context, packInfo.packageName);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        // An index only ever needs to exist for the pack in use.
+        File[] others = dir.listFiles();
+        if (others != null) {
+            for (File other : others) {
+                other.delete();
+            }
+        }
+
+        File tmp = new File(dir, packInfo.packageName + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp), INITIAL_BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(packInfo.versionCode);
+            out.writeLong(packInfo.lastUpdateTime);
+            out.writeFloat(density);
+
+            out.writeFloat(rotation);
+            out.writeFloat(rotationVariance);
+            out.writeFloat(translationX);
+            out.writeFloat(translationY);
+            out.writeBoolean(colorFilter != null);
+            if (colorFilter != null) {
+                out.writeInt(colorFilter.length);
+                for (float value : colorFilter) {
+                    out.writeFloat(value);
+                }
+            }
+            out.writeBoolean(paletteBackName != null);
+            if (paletteBackName != null) {
+                out.writeUTF(paletteBackName);
+            }
+            out.writeInt(swatchType != null ? swatchType.ordinal() : -1);
+            out.writeBoolean(defaultSwatchColors != null);
+            if (defaultSwatchColors != null) {
+                out.writeInt(defaultSwatchColors.length);
+                for (int color : defaultSwatchColors) {
+                    out.writeInt(color);
+                }
+            }
+
+            out.writeInt(resources.size());
+            for (Map.Entry<ComponentName, String> entry : resources.entrySet()) {
+                out.writeUTF(entry.getKey().getPackageName());
+                out.writeUTF(entry.getKey().getClassName());
+                out.writeBoolean(entry.getValue() != null);
+                if (entry.getValue() != null) {
+                    out.writeUTF(entry.getValue());
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write icon pack index for " + packInfo.packageName, e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
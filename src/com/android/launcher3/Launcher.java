@@ -1308,6 +1308,9 @@ public class Launcher extends Activity
         mPaused = true;
         mDragController.cancelDrag();
         mDragController.resetLastGestureUpTime();
+        mStats.flush();
+        LauncherModel.flushPendingWorkspaceWrites();
+        mModel.saveWorkspaceSnapshot(getCurrentWorkspaceScreen());
 
         // We call onHide() aggressively. The custom content callbacks should be able to
         // debounce excess onHide calls.
@@ -5058,6 +5061,7 @@ public class Launcher extends Activity
         Log.d(TAG, "mSavedInstanceState=" + mSavedInstanceState);
         Log.d(TAG, "sFolders.size=" + sFolders.size());
         mModel.dumpState();
+        LauncherAppState.getInstance().getWidgetCache().dumpState();
         // TODO(hyunyoungs): add mWidgetsView.dumpState(); or mWidgetsModel.dumpState();
 
         Log.d(TAG, "END launcher3 dump state");
@@ -22,6 +22,10 @@ public class LauncherFiles {
     public static final String WALLPAPER_IMAGES_DB = "saved_wallpaper_images.db";
     public static final String WIDGET_PREVIEWS_DB = "widgetpreviews.db";
     public static final String APP_ICONS_DB = "app_icons.db";
+    // Directory in the cache dir holding the compiled icon pack appfilter.
+    public static final String ICON_PACK_INDEX_DIR = "icon_pack_index";
+    // File in the cache dir holding the last bound hotseat and workspace page.
+    public static final String WORKSPACE_SNAPSHOT = "workspace_snapshot";
     // TODO: Delete these files on upgrade
     public static final List<String> OBSOLETE_FILES = Collections.unmodifiableList(Arrays.asList(
             "launches.log",
@@ -42,12 +42,14 @@ import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.os.TransactionTooLargeException;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
 import android.util.Pair;
+import android.view.Choreographer;
 
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
@@ -78,6 +80,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -90,6 +100,8 @@ public class LauncherModel extends BroadcastReceiver
     public static final int LOADER_FLAG_CLEAR_WORKSPACE = 1 << 0;
     public static final int LOADER_FLAG_MIGRATE_SHORTCUTS = 1 << 1;
     static final boolean DEBUG_LOADERS = false;
+    // Set to false to build the all apps list serially on the loader thread.
+    static final boolean LOAD_ALL_APPS_IN_PARALLEL = true;
     static final String TAG = "Launcher.Model";
     @Thunk
     static final HandlerThread sWorkerThread = new HandlerThread("launcher-loader");
@@ -100,6 +112,15 @@ public class LauncherModel extends BroadcastReceiver
 
     @Thunk
     static final Handler sWorker = new Handler(sWorkerThread.getLooper());
+    // Trace section emitted in the first frame drawn with the current workspace page bound.
+    static final String TRACE_FIRST_INTERACTIVE_FRAME = "Launcher.FirstInteractiveFrame";
+    // Only accessed on the main thread.
+    private static boolean sFirstInteractiveFrameMarked;
+    // Favorites changes made through the helpers below, only accessed on the worker thread.
+    private static final WorkspaceWriteQueue sWriteQueue = new WorkspaceWriteQueue(sWorker);
+    // Bounded pool used to build the all apps list in parallel. Idle threads time out so that
+    // the pool only costs anything while the loader is running.
+    private static ThreadPoolExecutor sAllAppsLoaderPool;
     // When we are loading pages synchronously, we can't just post the binding of items on the side
     // pages as this delays the rotation process.  Instead, we wait for a callback from the first
     // draw (in Workspace) to initiate the binding of the remaining side pages.  Any time we start
@@ -110,10 +131,10 @@ public class LauncherModel extends BroadcastReceiver
      * is complete.
      */
     static final ArrayList<Runnable> mBindCompleteRunnables = new ArrayList<Runnable>();
-    // The lock that must be acquired before referencing any static bg data structures.  Unlike
-    // other locks, this one can generally be held long-term because we never expect any of these
-    // static data structures to be referenced outside of the worker thread except on the first
-    // load after configuration change.
+    // The lock that must be acquired before changing any static bg data structures, or reading
+    // them on the worker thread. Unlike other locks, this one can generally be held long-term
+    // because the other threads read the structures from sBgSnapshot instead, see
+    // getModelSnapshot().
     static final Object sBgLock = new Object();
     // sBgItemsIdMap maps *all* the ItemInfos (shortcuts, folders, and widgets) created by
     // LauncherModel to their ids
@@ -129,16 +150,36 @@ public class LauncherModel extends BroadcastReceiver
     static final LongArrayMap<FolderInfo> sBgFolders = new LongArrayMap<>();
     // sBgWorkspaceScreens is the ordered set of workspace screens.
     static final ArrayList<Long> sBgWorkspaceScreens = new ArrayList<Long>();
+    // sBgModelView is how the worker thread reads the structures above, see getModelSnapshot().
+    private static final ModelSnapshot sBgModelView = ModelSnapshot.createView(sBgItemsIdMap,
+            sBgWorkspaceItems, sBgAppWidgets, sBgFolders, sBgWorkspaceScreens);
+    // sBgSnapshot is the latest copy of the structures above, replaced on the worker thread once
+    // the task which changed them is done.
+    private static volatile ModelSnapshot sBgSnapshot = ModelSnapshot.EMPTY;
+    // Whether the structures changed since sBgSnapshot was taken, guarded by sBgLock.
+    private static boolean sBgSnapshotDirty;
+    private static final Runnable sPublishSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (sBgLock) {
+                publishModelSnapshotLocked();
+            }
+        }
+    };
     // sPendingPackages is a set of packages which could be on sdcard and are not available yet
     static final HashMap<UserHandleCompat, HashSet<String>> sPendingPackages =
             new HashMap<UserHandleCompat, HashSet<String>>();
     private static final boolean DEBUG_RECEIVER = false;
     private static final boolean REMOVE_UNRESTORED_ICONS = true;
     private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    private static final int ALL_APPS_CHUNK = 24; // batch size for a parallel all apps worker
+    private static final int ALL_APPS_LOADER_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
     private static final long INVALID_SCREEN_ID = -1L;
     private static final String MIGRATE_AUTHORITY = "com.android.launcher2.settings";
-    // sBgWidgetProviders is the set of widget providers including custom internal widgets
-    public static HashMap<ComponentKey, LauncherAppWidgetProviderInfo> sBgWidgetProviders;
+    // sBgWidgetProviders is the set of widget providers including custom internal widgets. It is
+    // replaced as a whole and never changed afterwards, so it is read without any lock.
+    public static volatile HashMap<ComponentKey, LauncherAppWidgetProviderInfo> sBgWidgetProviders;
 
     @Thunk
     final boolean mAppsCanBeOnRemoveableStorage;
@@ -164,6 +205,8 @@ public class LauncherModel extends BroadcastReceiver
     // need to do a requery.  These are only ever touched from the loader thread.
     @Thunk
     boolean mWorkspaceLoaded;
+    // Signature of the last workspace snapshot written, only accessed on the worker thread.
+    private int mWorkspaceSnapshotSignature;
     @Thunk
     boolean mAllAppsLoaded;
     @Thunk
@@ -221,6 +264,56 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Must be called while holding {@link #sBgLock} after changing any of the static bg data
+     * structures. The new snapshot is published right after the current worker task, so that
+     * the other threads see all of its changes at once.
+     */
+    static void markModelChangedLocked() {
+        if (!sBgSnapshotDirty) {
+            sBgSnapshotDirty = true;
+            sWorker.postAtFrontOfQueue(sPublishSnapshotRunnable);
+        }
+    }
+
+    static void publishModelSnapshotLocked() {
+        if (sBgSnapshotDirty) {
+            sBgSnapshotDirty = false;
+            sBgSnapshot = new ModelSnapshot(sBgSnapshot.version + 1, sBgItemsIdMap,
+                    sBgWorkspaceItems, sBgAppWidgets, sBgFolders, sBgWorkspaceScreens);
+        }
+    }
+
+    /**
+     * Returns a consistent copy of the static bg data structures without waiting for the worker
+     * thread. On the worker thread, which is the only one changing them, it returns a view of
+     * the structures themselves instead: it includes the changes of the current task, which are
+     * only published once the task is done, and copies nothing.
+     */
+    static ModelSnapshot getModelSnapshot() {
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            return sBgModelView;
+        }
+        return sBgSnapshot;
+    }
+
+    private static synchronized ThreadPoolExecutor getAllAppsLoaderPool() {
+        if (sAllAppsLoaderPool == null) {
+            sAllAppsLoaderPool = new ThreadPoolExecutor(ALL_APPS_LOADER_THREADS,
+                    ALL_APPS_LOADER_THREADS, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "launcher-apps-loader-" + mCount.getAndIncrement());
+                }
+            });
+            sAllAppsLoaderPool.allowCoreThreadTimeOut(true);
+        }
+        return sAllAppsLoaderPool;
+    }
+
     private static boolean findNextAvailableIconSpaceInScreen(ArrayList<ItemInfo> occupiedPos,
                                                               int[] xy, int spanX, int spanY) {
         LauncherAppState app = LauncherAppState.getInstance();
@@ -319,16 +412,41 @@ public class LauncherModel extends BroadcastReceiver
         runOnWorkerThread(r);
     }
 
+    /**
+     * Writes out the pending favorites changes now instead of waiting for the write queue.
+     */
+    public static void flushPendingWorkspaceWrites() {
+        runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                sWriteQueue.flush();
+            }
+        });
+    }
+
+    /**
+     * Runs {@param r} on the worker thread once the pending favorites changes are written, for
+     * callers which access the favorites table directly.
+     */
+    static void runAfterPendingWorkspaceWrites(final Runnable r) {
+        runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                sWriteQueue.flush();
+                r.run();
+            }
+        });
+    }
+
     static void updateItemInDatabaseHelper(Context context, final ContentValues values,
                                            final ItemInfo item, final String callingFunction) {
         final long itemId = item.id;
-        final Uri uri = LauncherSettings.Favorites.getContentUri(itemId);
         final ContentResolver cr = context.getContentResolver();
 
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.update(uri, values, null, null);
+                sWriteQueue.update(cr, itemId, values);
                 updateItemArrays(item, itemId, stackTrace);
             }
         };
@@ -342,23 +460,12 @@ public class LauncherModel extends BroadcastReceiver
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                ArrayList<ContentProviderOperation> ops =
-                        new ArrayList<ContentProviderOperation>();
                 int count = items.size();
                 for (int i = 0; i < count; i++) {
                     ItemInfo item = items.get(i);
                     final long itemId = item.id;
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(itemId);
-                    ContentValues values = valuesList.get(i);
-
-                    ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+                    sWriteQueue.update(cr, itemId, valuesList.get(i));
                     updateItemArrays(item, itemId, stackTrace);
-
-                }
-                try {
-                    cr.applyBatch(LauncherProvider.AUTHORITY, ops);
-                } catch (Exception e) {
-                    e.printStackTrace();
                 }
             }
         };
@@ -403,6 +510,7 @@ public class LauncherModel extends BroadcastReceiver
             } else {
                 sBgWorkspaceItems.remove(modelItem);
             }
+            markModelChangedLocked();
         }
     }
 
@@ -539,7 +647,7 @@ public class LauncherModel extends BroadcastReceiver
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.insert(LauncherSettings.Favorites.CONTENT_URI, values);
+                sWriteQueue.insert(cr, item.id, values);
 
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
@@ -567,6 +675,7 @@ public class LauncherModel extends BroadcastReceiver
                             sBgAppWidgets.add((LauncherAppWidgetInfo) item);
                             break;
                     }
+                    markModelChangedLocked();
                 }
             }
         };
@@ -590,7 +699,7 @@ public class LauncherModel extends BroadcastReceiver
                 return cn.getPackageName().equals(pn) && info.user.equals(user);
             }
         };
-        return filterItemInfos(sBgItemsIdMap, filter);
+        return filterItemInfos(getModelSnapshot().itemsIdMap, filter);
     }
 
     /**
@@ -624,8 +733,7 @@ public class LauncherModel extends BroadcastReceiver
         Runnable r = new Runnable() {
             public void run() {
                 for (ItemInfo item : items) {
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(item.id);
-                    cr.delete(uri, null, null);
+                    sWriteQueue.delete(cr, item.id);
 
                     // Lock on mBgLock *after* the db operation
                     synchronized (sBgLock) {
@@ -652,6 +760,7 @@ public class LauncherModel extends BroadcastReceiver
                                 break;
                         }
                         sBgItemsIdMap.remove(item.id);
+                        markModelChangedLocked();
                     }
                 }
             }
@@ -667,12 +776,15 @@ public class LauncherModel extends BroadcastReceiver
 
         Runnable r = new Runnable() {
             public void run() {
+                // The contents are deleted by container, so pending changes must land first.
+                sWriteQueue.flush();
                 cr.delete(LauncherSettings.Favorites.getContentUri(info.id), null, null);
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     sBgItemsIdMap.remove(info.id);
                     sBgFolders.remove(info.id);
                     sBgWorkspaceItems.remove(info);
+                    markModelChangedLocked();
                 }
 
                 cr.delete(LauncherSettings.Favorites.CONTENT_URI,
@@ -682,6 +794,7 @@ public class LauncherModel extends BroadcastReceiver
                     for (ItemInfo childInfo : info.contents) {
                         sBgItemsIdMap.remove(childInfo.id);
                     }
+                    markModelChangedLocked();
                 }
             }
         };
@@ -720,7 +833,7 @@ public class LauncherModel extends BroadcastReceiver
      * Checks whether there is an all apps shortcut in the database
      */
     static boolean hasAllAppsShortcut() {
-        for (ItemInfo info : sBgWorkspaceItems) {
+        for (ItemInfo info : getModelSnapshot().workspaceItems) {
             if (info.getIntent().getAction().equals(ShortcutHelper.ACTION_SLIM_LAUNCHER_SHORTCUT)) {
                 return true;
             }
@@ -733,45 +846,47 @@ public class LauncherModel extends BroadcastReceiver
         ArrayList<LauncherAppWidgetProviderInfo> results =
                 new ArrayList<LauncherAppWidgetProviderInfo>();
         try {
-            synchronized (sBgLock) {
-                if (sBgWidgetProviders == null || refresh) {
-                    HashMap<ComponentKey, LauncherAppWidgetProviderInfo> tmpWidgetProviders
-                            = new HashMap<>();
-                    AppWidgetManagerCompat wm = AppWidgetManagerCompat.getInstance(context);
-                    LauncherAppWidgetProviderInfo info;
-
-                    List<AppWidgetProviderInfo> widgets = wm.getAllProviders();
-                    for (AppWidgetProviderInfo pInfo : widgets) {
-                        info = LauncherAppWidgetProviderInfo.fromProviderInfo(context, pInfo);
-                        UserHandleCompat user = wm.getUser(info);
-                        tmpWidgetProviders.put(new ComponentKey(info.provider, user), info);
-                    }
-
-                    Collection<CustomAppWidget> customWidgets = Launcher.getCustomAppWidgets().values();
-                    for (CustomAppWidget widget : customWidgets) {
-                        info = new LauncherAppWidgetProviderInfo(context, widget);
-                        UserHandleCompat user = wm.getUser(info);
-                        tmpWidgetProviders.put(new ComponentKey(info.provider, user), info);
-                    }
-                    // Replace the global list at the very end, so that if there is an exception,
-                    // previously loaded provider list is used.
-                    sBgWidgetProviders = tmpWidgetProviders;
-                }
-                results.addAll(sBgWidgetProviders.values());
-                return results;
+            HashMap<ComponentKey, LauncherAppWidgetProviderInfo> widgetProviders =
+                    sBgWidgetProviders;
+            if (widgetProviders == null || refresh) {
+                // Queried without holding any lock, concurrent callers may both query the
+                // providers but either result is complete.
+                HashMap<ComponentKey, LauncherAppWidgetProviderInfo> tmpWidgetProviders
+                        = new HashMap<>();
+                AppWidgetManagerCompat wm = AppWidgetManagerCompat.getInstance(context);
+                LauncherAppWidgetProviderInfo info;
+
+                List<AppWidgetProviderInfo> widgets = wm.getAllProviders();
+                for (AppWidgetProviderInfo pInfo : widgets) {
+                    info = LauncherAppWidgetProviderInfo.fromProviderInfo(context, pInfo);
+                    UserHandleCompat user = wm.getUser(info);
+                    tmpWidgetProviders.put(new ComponentKey(info.provider, user), info);
+                }
+
+                Collection<CustomAppWidget> customWidgets = Launcher.getCustomAppWidgets().values();
+                for (CustomAppWidget widget : customWidgets) {
+                    info = new LauncherAppWidgetProviderInfo(context, widget);
+                    UserHandleCompat user = wm.getUser(info);
+                    tmpWidgetProviders.put(new ComponentKey(info.provider, user), info);
+                }
+                // Replace the global list at the very end, so that if there is an exception,
+                // previously loaded provider list is used.
+                sBgWidgetProviders = widgetProviders = tmpWidgetProviders;
             }
+            results.addAll(widgetProviders.values());
+            return results;
         } catch (Exception e) {
             if (e.getCause() instanceof TransactionTooLargeException) {
                 // the returned value may be incomplete and will not be refreshed until the next
                 // time Launcher starts.
                 // TODO: after figuring out a repro step, introduce a dirty bit to check when
                 // onResume is called to refresh the widget provider list.
-                synchronized (sBgLock) {
-                    if (sBgWidgetProviders != null) {
-                        results.addAll(sBgWidgetProviders.values());
-                    }
-                    return results;
+                HashMap<ComponentKey, LauncherAppWidgetProviderInfo> widgetProviders =
+                        sBgWidgetProviders;
+                if (widgetProviders != null) {
+                    results.addAll(widgetProviders.values());
                 }
+                return results;
             } else {
                 throw e;
             }
@@ -780,12 +895,12 @@ public class LauncherModel extends BroadcastReceiver
 
     public static LauncherAppWidgetProviderInfo getProviderInfo(Context ctx, ComponentName name,
                                                                 UserHandleCompat user) {
-        synchronized (sBgLock) {
-            if (sBgWidgetProviders == null) {
-                getWidgetProviders(ctx, false /* refresh */);
-            }
-            return sBgWidgetProviders.get(new ComponentKey(name, user));
+        if (sBgWidgetProviders == null) {
+            getWidgetProviders(ctx, false /* refresh */);
         }
+        HashMap<ComponentKey, LauncherAppWidgetProviderInfo> widgetProviders = sBgWidgetProviders;
+        return widgetProviders == null ? null
+                : widgetProviders.get(new ComponentKey(name, user));
     }
 
     @Thunk
@@ -826,7 +941,7 @@ public class LauncherModel extends BroadcastReceiver
     }
 
     public static void restoreCustomShortcutIcons(Context context, IconCache iconCache) {
-        for (ItemInfo info : sBgItemsIdMap) {
+        for (ItemInfo info : getModelSnapshot().itemsIdMap) {
             if (info instanceof ShortcutInfo) {
                 ShortcutInfo si = (ShortcutInfo) info;
                 if (si.useCustomIcon) {
@@ -914,6 +1029,84 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Like {@link #runOnMainThread}, but a posted runnable runs in the same frame as the ones
+     * before it, see {@link DeferredHandler#postPriority}.
+     */
+    @Thunk
+    void runOnMainThreadWithPriority(Runnable r) {
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            mHandler.postPriority(r);
+        } else {
+            r.run();
+        }
+    }
+
+    /**
+     * Emits {@link #TRACE_FIRST_INTERACTIVE_FRAME} in the next frame, the first time it is called
+     * in this process. Must be called on the main thread, right after binding the current page.
+     */
+    @Thunk
+    static void markFirstInteractiveFrame(final long loaderStartTime) {
+        if (sFirstInteractiveFrameMarked) {
+            return;
+        }
+        sFirstInteractiveFrameMarked = true;
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                    Trace.beginSection(TRACE_FIRST_INTERACTIVE_FRAME);
+                    Trace.endSection();
+                }
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "first interactive frame "
+                            + (SystemClock.uptimeMillis() - loaderStartTime)
+                            + "ms after the loader started");
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates the workspace snapshot used to bind {@param currentScreen} and the hotseat at the
+     * next start, if anything changed since it was last written.
+     */
+    public void saveWorkspaceSnapshot(final int currentScreen) {
+        runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                writeWorkspaceSnapshot(currentScreen);
+            }
+        });
+    }
+
+    /**
+     * Must be called on the worker thread.
+     */
+    @Thunk
+    void writeWorkspaceSnapshot(int currentScreen) {
+        if (!mWorkspaceLoaded) {
+            return;
+        }
+        final ArrayList<Long> screenIds;
+        final ArrayList<ItemInfo> workspaceItems;
+        synchronized (sBgLock) {
+            screenIds = new ArrayList<>(sBgWorkspaceScreens);
+            workspaceItems = new ArrayList<>(sBgWorkspaceItems);
+        }
+        if (currentScreen < 0 || currentScreen >= screenIds.size()) {
+            return;
+        }
+
+        WorkspaceSnapshot snapshot = WorkspaceSnapshot.create(screenIds,
+                screenIds.get(currentScreen), workspaceItems, mIconCache);
+        if (snapshot.getSignature() != mWorkspaceSnapshotSignature) {
+            mWorkspaceSnapshotSignature = snapshot.getSignature();
+            snapshot.write(mApp.getContext(), mApp.getInvariantDeviceProfile());
+        }
+    }
+
     /**
      * Runs the specified runnable after the loader is complete
      */
@@ -1244,11 +1437,9 @@ public class LauncherModel extends BroadcastReceiver
     void unbindWorkspaceItemsOnMainThread() {
         // Ensure that we don't use the same workspace items data structure on the main thread
         // by making a copy of workspace items first.
-        final ArrayList<ItemInfo> tmpItems = new ArrayList<ItemInfo>();
-        synchronized (sBgLock) {
-            tmpItems.addAll(sBgWorkspaceItems);
-            tmpItems.addAll(sBgAppWidgets);
-        }
+        final ModelSnapshot model = getModelSnapshot();
+        final ArrayList<ItemInfo> tmpItems = new ArrayList<ItemInfo>(model.workspaceItems);
+        tmpItems.addAll(model.appWidgets);
         Runnable r = new Runnable() {
             @Override
             public void run() {
@@ -1290,17 +1481,15 @@ public class LauncherModel extends BroadcastReceiver
             intentWithoutPkg = intent.toUri(0);
         }
 
-        synchronized (sBgLock) {
-            for (ItemInfo item : sBgItemsIdMap) {
-                if (item instanceof ShortcutInfo) {
-                    ShortcutInfo info = (ShortcutInfo) item;
-                    Intent targetIntent = info.promisedIntent == null
-                            ? info.intent : info.promisedIntent;
-                    if (targetIntent != null && info.user.equals(user)) {
-                        String s = targetIntent.toUri(0);
-                        if (intentWithPkg.equals(s) || intentWithoutPkg.equals(s)) {
-                            return true;
-                        }
+        for (ItemInfo item : getModelSnapshot().itemsIdMap) {
+            if (item instanceof ShortcutInfo) {
+                ShortcutInfo info = (ShortcutInfo) item;
+                Intent targetIntent = info.promisedIntent == null
+                        ? info.intent : info.promisedIntent;
+                if (targetIntent != null && info.user.equals(user)) {
+                    String s = targetIntent.toUri(0);
+                    if (intentWithPkg.equals(s) || intentWithoutPkg.equals(s)) {
+                        return true;
                     }
                 }
             }
@@ -1310,8 +1499,11 @@ public class LauncherModel extends BroadcastReceiver
 
     /**
      * Find a folder in the db, creating the FolderInfo if necessary, and adding it to folderList.
+     * Must be called on the worker thread.
      */
     FolderInfo getFolderById(Context context, LongArrayMap<FolderInfo> folderList, long id) {
+        // The queued changes must land before the table is read.
+        sWriteQueue.flush();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, null,
                 "_id=? and (itemType=? or itemType=?)",
@@ -1401,6 +1593,7 @@ public class LauncherModel extends BroadcastReceiver
                 synchronized (sBgLock) {
                     sBgWorkspaceScreens.clear();
                     sBgWorkspaceScreens.addAll(screensCopy);
+                    markModelChangedLocked();
                 }
             }
         };
@@ -1886,7 +2079,7 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
         };
-        return filterItemInfos(sBgItemsIdMap, filter);
+        return filterItemInfos(getModelSnapshot().itemsIdMap, filter);
     }
 
     /**
@@ -1967,6 +2160,8 @@ public class LauncherModel extends BroadcastReceiver
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.added", mBgAllAppsList.added);
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.removed", mBgAllAppsList.removed);
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.modified", mBgAllAppsList.modified);
+        mIconCache.dumpState();
+        mHandler.dumpState();
         if (mLoaderTask != null) {
             mLoaderTask.dumpState();
         } else {
@@ -1982,9 +2177,7 @@ public class LauncherModel extends BroadcastReceiver
      * @return {@link FolderInfo} if its already loaded.
      */
     public FolderInfo findFolderById(Long folderId) {
-        synchronized (sBgLock) {
-            return sBgFolders.get(folderId);
-        }
+        return getModelSnapshot().folders.get(folderId);
     }
 
 
@@ -2056,6 +2249,11 @@ public class LauncherModel extends BroadcastReceiver
         private Context mContext;
         private boolean mStopped;
         private int mFlags;
+        // Whether the current page was bound from the workspace snapshot, and needs to be
+        // replaced by the loaded items.
+        private boolean mBoundSnapshot;
+        @Thunk
+        long mLoaderStartTime;
 
         LoaderTask(Context context, int flags) {
             mContext = context;
@@ -2075,6 +2273,15 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             if (!mWorkspaceLoaded) {
+                if ((mFlags & LOADER_FLAG_CLEAR_WORKSPACE) != 0) {
+                    // The snapshot shows the layout which is being reset.
+                    WorkspaceSnapshot.delete(mContext);
+                    mWorkspaceSnapshotSignature = 0;
+                    mBoundSnapshot = false;
+                } else {
+                    // Show the current page while the favorites are loaded and validated.
+                    mBoundSnapshot = bindWorkspaceSnapshot();
+                }
                 loadWorkspace();
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
@@ -2086,6 +2293,51 @@ public class LauncherModel extends BroadcastReceiver
 
             // Bind the workspace
             bindWorkspace(-1);
+            mBoundSnapshot = false;
+        }
+
+        /**
+         * Binds the hotseat and the current page from the workspace snapshot, if there is one
+         * for the current page. Returns whether anything was bound.
+         */
+        private boolean bindWorkspaceSnapshot() {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                return false;
+            }
+            final WorkspaceSnapshot snapshot = WorkspaceSnapshot.read(mContext,
+                    LauncherAppState.getInstance().getInvariantDeviceProfile());
+            if (snapshot == null) {
+                return false;
+            }
+            int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+            if (currentScreen < 0 || currentScreen >= snapshot.screenIds.size()
+                    || snapshot.screenIds.get(currentScreen) != snapshot.currentScreenId) {
+                return false;
+            }
+
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "binding " + snapshot.items.size() + " items from the snapshot in "
+                        + (SystemClock.uptimeMillis() - mLoaderStartTime) + "ms");
+            }
+            // The workspace stays locked until the loaded items are bound, so the snapshot
+            // items can be launched but not moved.
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.startBinding();
+                        callbacks.bindScreens(snapshot.screenIds);
+                        callbacks.bindItems(snapshot.items, 0, snapshot.items.size(), false);
+                        if (!snapshot.folders.isEmpty()) {
+                            callbacks.bindFolders(snapshot.folders);
+                        }
+                        markFirstInteractiveFrame(mLoaderStartTime);
+                    }
+                }
+            });
+            return true;
         }
 
         private void waitForIdle() {
@@ -2167,6 +2419,7 @@ public class LauncherModel extends BroadcastReceiver
                 }
                 mIsLoaderTaskRunning = true;
             }
+            mLoaderStartTime = SystemClock.uptimeMillis();
             // Optimize for end-user experience: if the Launcher is up and // running with the
             // All Apps interface in the foreground, load All Apps first. Otherwise, load the
             // workspace first (default).
@@ -2184,6 +2437,14 @@ public class LauncherModel extends BroadcastReceiver
                 // second step
                 if (DEBUG_LOADERS) Log.d(TAG, "step 2: loading all apps");
                 loadAndBindAllApps();
+
+                if (mStopped) {
+                    break keep_running;
+                }
+                Callbacks callbacks = mCallbacks.get();
+                if (callbacks != null) {
+                    writeWorkspaceSnapshot(callbacks.getCurrentWorkspaceScreen());
+                }
             }
 
             // Clear out this reference, otherwise we end up holding it until all of the
@@ -2329,6 +2590,7 @@ public class LauncherModel extends BroadcastReceiver
                 sBgFolders.clear();
                 sBgItemsIdMap.clear();
                 sBgWorkspaceScreens.clear();
+                markModelChangedLocked();
             }
         }
 
@@ -2348,9 +2610,15 @@ public class LauncherModel extends BroadcastReceiver
             int countX = (int) profile.numColumns;
             int countY = (int) profile.numRows;
 
+            // The queued changes refer to the item ids of the current database. They are dropped
+            // along with it on a reset, as the ids of the new items start over, and written out
+            // before anything else reads or migrates it.
             if ((mFlags & LOADER_FLAG_CLEAR_WORKSPACE) != 0) {
+                sWriteQueue.discard();
                 Launcher.addDumpLog(TAG, "loadWorkspace: resetting launcher database", true);
                 LauncherAppState.getLauncherProvider().deleteDatabase();
+            } else {
+                sWriteQueue.flush();
             }
 
             if ((mFlags & LOADER_FLAG_MIGRATE_SHORTCUTS) != 0) {
@@ -2373,6 +2641,8 @@ public class LauncherModel extends BroadcastReceiver
                 final ArrayList<Long> restoredRows = new ArrayList<>();
                 final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
                 if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
+                // Writes out what was queued while loading the default favorites.
+                sWriteQueue.flush();
                 final Cursor c = contentResolver.query(contentUri, null, null, null, null);
 
                 // +1 for the hotseat (it can be larger than the workspace)
@@ -2939,6 +3209,10 @@ public class LauncherModel extends BroadcastReceiver
                         Log.d(TAG, "[ " + line + " ]");
                     }
                 }
+
+                // The items were added without marking each change, the whole model has been
+                // marked as changed when it was cleared.
+                publishModelSnapshotLocked();
             }
         }
 
@@ -3070,8 +3344,33 @@ public class LauncherModel extends BroadcastReceiver
             });
         }
 
+        /**
+         * Orders the items by the distance of their screen to the current screen, keeping the
+         * order of the items of a screen, so that the pages next to the visible page are bound
+         * first.
+         */
+        private void sortItemsByScreenDistance(ArrayList<? extends ItemInfo> items,
+                                               final ArrayList<Long> orderedScreenIds,
+                                               final int currentScreen) {
+            if (currentScreen < 0) {
+                return;
+            }
+            Collections.sort(items, new Comparator<ItemInfo>() {
+                @Override
+                public int compare(ItemInfo lhs, ItemInfo rhs) {
+                    return distance(lhs) - distance(rhs);
+                }
+
+                private int distance(ItemInfo info) {
+                    int index = orderedScreenIds.indexOf(info.screenId);
+                    return index < 0 ? Integer.MAX_VALUE / 2 : Math.abs(index - currentScreen);
+                }
+            });
+        }
+
         private void bindWorkspaceScreens(final Callbacks oldCallbacks,
-                                          final ArrayList<Long> orderedScreens) {
+                                          final ArrayList<Long> orderedScreens,
+                                          ArrayList<Runnable> deferredBindRunnables) {
             final Runnable r = new Runnable() {
                 @Override
                 public void run() {
@@ -3081,16 +3380,33 @@ public class LauncherModel extends BroadcastReceiver
                     }
                 }
             };
-            runOnMainThread(r);
+            runBindRunnable(r, deferredBindRunnables, true);
+        }
+
+        /**
+         * Adds {@param r} to {@param deferredBindRunnables} if it is not null, otherwise runs it on
+         * the main thread. The runnables of the visible page are run without waiting for the next
+         * frame when the current one has used up its budget.
+         */
+        private void runBindRunnable(Runnable r, ArrayList<Runnable> deferredBindRunnables,
+                                     boolean visiblePage) {
+            if (deferredBindRunnables != null) {
+                synchronized (deferredBindRunnables) {
+                    deferredBindRunnables.add(r);
+                }
+            } else if (visiblePage) {
+                runOnMainThreadWithPriority(r);
+            } else {
+                runOnMainThread(r);
+            }
         }
 
         private void bindWorkspaceItems(final Callbacks oldCallbacks,
                                         final ArrayList<ItemInfo> workspaceItems,
                                         final ArrayList<LauncherAppWidgetInfo> appWidgets,
                                         final LongArrayMap<FolderInfo> folders,
-                                        ArrayList<Runnable> deferredBindRunnables) {
-
-            final boolean postOnMainThread = (deferredBindRunnables != null);
+                                        ArrayList<Runnable> deferredBindRunnables,
+                                        boolean visiblePage) {
 
             // Bind the workspace items
             int N = workspaceItems.size();
@@ -3107,13 +3423,7 @@ public class LauncherModel extends BroadcastReceiver
                         }
                     }
                 };
-                if (postOnMainThread) {
-                    synchronized (deferredBindRunnables) {
-                        deferredBindRunnables.add(r);
-                    }
-                } else {
-                    runOnMainThread(r);
-                }
+                runBindRunnable(r, deferredBindRunnables, visiblePage);
             }
 
             // Bind the folders
@@ -3126,13 +3436,7 @@ public class LauncherModel extends BroadcastReceiver
                         }
                     }
                 };
-                if (postOnMainThread) {
-                    synchronized (deferredBindRunnables) {
-                        deferredBindRunnables.add(r);
-                    }
-                } else {
-                    runOnMainThread(r);
-                }
+                runBindRunnable(r, deferredBindRunnables, visiblePage);
             }
 
             // Bind the widgets, one at a time
@@ -3147,11 +3451,7 @@ public class LauncherModel extends BroadcastReceiver
                         }
                     }
                 };
-                if (postOnMainThread) {
-                    deferredBindRunnables.add(r);
-                } else {
-                    runOnMainThread(r);
-                }
+                runBindRunnable(r, deferredBindRunnables, visiblePage);
             }
         }
 
@@ -3177,17 +3477,13 @@ public class LauncherModel extends BroadcastReceiver
                     new ArrayList<LauncherAppWidgetInfo>();
             ArrayList<Long> orderedScreenIds = new ArrayList<Long>();
 
-            final LongArrayMap<FolderInfo> folders;
-            final LongArrayMap<ItemInfo> itemsIdMap;
+            final ModelSnapshot model = getModelSnapshot();
+            workspaceItems.addAll(model.workspaceItems);
+            appWidgets.addAll(model.appWidgets);
+            orderedScreenIds.addAll(model.workspaceScreens);
 
-            synchronized (sBgLock) {
-                workspaceItems.addAll(sBgWorkspaceItems);
-                appWidgets.addAll(sBgAppWidgets);
-                orderedScreenIds.addAll(sBgWorkspaceScreens);
-
-                folders = sBgFolders.clone();
-                itemsIdMap = sBgItemsIdMap.clone();
-            }
+            final LongArrayMap<FolderInfo> folders = model.folders;
+            final LongArrayMap<ItemInfo> itemsIdMap = model.itemsIdMap;
 
             final boolean isLoadingSynchronously =
                     synchronizeBindPage != PagedView.INVALID_RESTORE_PAGE;
@@ -3223,6 +3519,13 @@ public class LauncherModel extends BroadcastReceiver
                     otherFolders);
             sortWorkspaceItemsSpatially(currentWorkspaceItems);
             sortWorkspaceItemsSpatially(otherWorkspaceItems);
+            sortItemsByScreenDistance(otherWorkspaceItems, orderedScreenIds, currentScreen);
+            sortItemsByScreenDistance(otherAppWidgets, orderedScreenIds, currentScreen);
+
+            // If the current page was bound from the snapshot, replace it in a single step so
+            // that no frame is drawn with the workspace cleared.
+            final ArrayList<Runnable> firstPageRunnables =
+                    mBoundSnapshot ? new ArrayList<Runnable>() : null;
 
             // Tell the workspace that we're about to start binding items
             r = new Runnable() {
@@ -3233,13 +3536,25 @@ public class LauncherModel extends BroadcastReceiver
                     }
                 }
             };
-            runOnMainThread(r);
+            runBindRunnable(r, firstPageRunnables, true);
 
-            bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+            bindWorkspaceScreens(oldCallbacks, orderedScreenIds, firstPageRunnables);
 
             // Load items on the current page
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
-                    currentFolders, null);
+                    currentFolders, firstPageRunnables, true);
+            final long loaderStartTime = mLoaderStartTime;
+            r = new Runnable() {
+                public void run() {
+                    if (firstPageRunnables != null) {
+                        for (Runnable firstPageRunnable : firstPageRunnables) {
+                            firstPageRunnable.run();
+                        }
+                    }
+                    markFirstInteractiveFrame(loaderStartTime);
+                }
+            };
+            runOnMainThreadWithPriority(r);
             if (isLoadingSynchronously) {
                 r = new Runnable() {
                     public void run() {
@@ -3249,7 +3564,7 @@ public class LauncherModel extends BroadcastReceiver
                         }
                     }
                 };
-                runOnMainThread(r);
+                runOnMainThreadWithPriority(r);
             }
 
             // Load all the remaining pages (if we are loading synchronously, we want to defer this
@@ -3258,7 +3573,7 @@ public class LauncherModel extends BroadcastReceiver
                 mDeferredBindRunnables.clear();
             }
             bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
-                    (isLoadingSynchronously ? mDeferredBindRunnables : null));
+                    (isLoadingSynchronously ? mDeferredBindRunnables : null), false);
 
             // Tell the workspace that we're done binding items
             r = new Runnable() {
@@ -3394,11 +3709,32 @@ public class LauncherModel extends BroadcastReceiver
                     return;
                 }
 
+                // Pull the cached icons and labels for the whole profile in a few queries,
+                // rather than one query per app while creating the ApplicationInfos.
+                ArrayList<ComponentKey> keys = new ArrayList<>(apps.size());
+                for (LauncherActivityInfoCompat app : apps) {
+                    keys.add(new ComponentKey(app.getComponentName(), user));
+                }
+                mIconCache.preloadEntriesFromDB(keys, true /* useLowResIcon */);
+
                 // Create the ApplicationInfos
-                for (int i = 0; i < apps.size(); i++) {
-                    LauncherActivityInfoCompat app = apps.get(i);
-                    // This builds the icon bitmaps.
-                    mBgAllAppsList.add(new AppInfo(mContext, app, user, mIconCache));
+                final long createTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                final boolean parallel = LOAD_ALL_APPS_IN_PARALLEL && apps.size() > ALL_APPS_CHUNK;
+                if (parallel) {
+                    for (AppInfo info : createAppInfosInParallel(apps, user)) {
+                        mBgAllAppsList.add(info);
+                    }
+                } else {
+                    for (int i = 0; i < apps.size(); i++) {
+                        LauncherActivityInfoCompat app = apps.get(i);
+                        // This builds the icon bitmaps.
+                        mBgAllAppsList.add(new AppInfo(mContext, app, user, mIconCache));
+                    }
+                }
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "creating " + apps.size() + " apps "
+                            + (parallel ? "in parallel" : "serially") + " took "
+                            + (SystemClock.uptimeMillis() - createTime) + "ms for user " + user);
                 }
 
                 final ManagedProfileHeuristic heuristic = ManagedProfileHeuristic.get(mContext, user);
@@ -3444,13 +3780,82 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
-        public void dumpState() {
-            synchronized (sBgLock) {
-                Log.d(TAG, "mLoaderTask.mContext=" + mContext);
-                Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
-                Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
-                Log.d(TAG, "mItems size=" + sBgWorkspaceItems.size());
+        /**
+         * Builds the AppInfos for {@param apps} on {@link #sAllAppsLoaderPool}, ALL_APPS_CHUNK
+         * activities per task. The result is in the same order as {@param apps}, so merging it
+         * into the all apps list is deterministic regardless of which chunk finished first.
+         */
+        private ArrayList<AppInfo> createAppInfosInParallel(
+                final List<LauncherActivityInfoCompat> apps, final UserHandleCompat user) {
+            final Context context = mContext;
+            final int count = apps.size();
+            final ArrayList<Future<AppInfo[]>> chunks = new ArrayList<>();
+            final ThreadPoolExecutor pool = getAllAppsLoaderPool();
+            for (int start = 0; start < count; start += ALL_APPS_CHUNK) {
+                final int from = start;
+                final int to = Math.min(count, start + ALL_APPS_CHUNK);
+                chunks.add(pool.submit(new Callable<AppInfo[]>() {
+
+                    @Override
+                    public AppInfo[] call() {
+                        final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                        AppInfo[] infos = new AppInfo[to - from];
+                        for (int i = from; i < to; i++) {
+                            synchronized (LoaderTask.this) {
+                                if (mStopped) {
+                                    break;
+                                }
+                            }
+                            // This builds the icon bitmaps.
+                            infos[i - from] = new AppInfo(context, apps.get(i), user, mIconCache);
+                        }
+                        if (DEBUG_LOADERS) {
+                            Log.d(TAG, Thread.currentThread().getName() + " built apps " + from
+                                    + "-" + to + " in " + (SystemClock.uptimeMillis() - t) + "ms");
+                        }
+                        return infos;
+                    }
+                }));
             }
+
+            ArrayList<AppInfo> result = new ArrayList<>(count);
+            for (int chunk = 0; chunk < chunks.size(); chunk++) {
+                AppInfo[] infos;
+                try {
+                    infos = chunks.get(chunk).get();
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted while loading apps, loading chunk serially", e);
+                    Thread.currentThread().interrupt();
+                    infos = null;
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Failed to load apps in parallel, loading chunk serially", e);
+                    infos = null;
+                }
+                int from = chunk * ALL_APPS_CHUNK;
+                int to = Math.min(count, from + ALL_APPS_CHUNK);
+                for (int i = from; i < to; i++) {
+                    AppInfo info = infos != null ? infos[i - from] : null;
+                    if (info == null) {
+                        synchronized (LoaderTask.this) {
+                            if (mStopped) {
+                                return result;
+                            }
+                        }
+                        info = new AppInfo(context, apps.get(i), user, mIconCache);
+                    }
+                    result.add(info);
+                }
+            }
+            return result;
+        }
+
+        public void dumpState() {
+            ModelSnapshot model = sBgSnapshot;
+            Log.d(TAG, "mLoaderTask.mContext=" + mContext);
+            Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
+            Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
+            Log.d(TAG, "mItems size=" + model.workspaceItems.size()
+                    + " snapshotVersion=" + model.version);
         }
     }
 
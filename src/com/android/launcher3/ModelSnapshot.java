@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import com.android.launcher3.util.LongArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A copy of the background model collections of {@link LauncherModel}, taken while holding
+ * {@link LauncherModel#sBgLock} so that the collections agree with each other. It is never
+ * changed once created and can be read from any thread without locking.
+ * <p/>
+ * Only the collections are copied: the ItemInfos are shared with the model, and are still only
+ * changed on the worker thread.
+ * <p/>
+ * The worker thread itself reads a view of the collections instead, see {@link #createView},
+ * which follows the changes of the current task.
+ */
+class ModelSnapshot {
+
+    static final ModelSnapshot EMPTY = new ModelSnapshot(0, new LongArrayMap<ItemInfo>(),
+            new ArrayList<ItemInfo>(), new ArrayList<LauncherAppWidgetInfo>(),
+            new LongArrayMap<FolderInfo>(), new ArrayList<Long>());
+
+    // Version of a view, which is not a published snapshot.
+    static final long VIEW_VERSION = -1;
+
+    // Increases with each snapshot published by the model.
+    final long version;
+
+    // These maps must not be modified, LongArrayMap has no read-only view.
+    final LongArrayMap<ItemInfo> itemsIdMap;
+    final LongArrayMap<FolderInfo> folders;
+
+    final List<ItemInfo> workspaceItems;
+    final List<LauncherAppWidgetInfo> appWidgets;
+    final List<Long> workspaceScreens;
+
+    ModelSnapshot(long version, LongArrayMap<ItemInfo> itemsIdMap,
+            ArrayList<ItemInfo> workspaceItems, ArrayList<LauncherAppWidgetInfo> appWidgets,
+            LongArrayMap<FolderInfo> folders, ArrayList<Long> workspaceScreens) {
+        this.version = version;
+        this.itemsIdMap = itemsIdMap.clone();
+        this.folders = folders.clone();
+        this.workspaceItems = Collections.unmodifiableList(new ArrayList<>(workspaceItems));
+        this.appWidgets = Collections.unmodifiableList(new ArrayList<>(appWidgets));
+        this.workspaceScreens = Collections.unmodifiableList(new ArrayList<>(workspaceScreens));
+    }
+
+    private ModelSnapshot(LongArrayMap<ItemInfo> itemsIdMap,
+            List<ItemInfo> workspaceItems, List<LauncherAppWidgetInfo> appWidgets,
+            LongArrayMap<FolderInfo> folders, List<Long> workspaceScreens) {
+        this.version = VIEW_VERSION;
+        this.itemsIdMap = itemsIdMap;
+        this.folders = folders;
+        this.workspaceItems = workspaceItems;
+        this.appWidgets = appWidgets;
+        this.workspaceScreens = workspaceScreens;
+    }
+
+    /**
+     * Returns a read-only view of the given collections, without copying them. It follows their
+     * changes, so it must only be read on the thread which changes them.
+     */
+    static ModelSnapshot createView(LongArrayMap<ItemInfo> itemsIdMap,
+            ArrayList<ItemInfo> workspaceItems, ArrayList<LauncherAppWidgetInfo> appWidgets,
+            LongArrayMap<FolderInfo> folders, ArrayList<Long> workspaceScreens) {
+        return new ModelSnapshot(itemsIdMap, Collections.unmodifiableList(workspaceItems),
+                Collections.unmodifiableList(appWidgets), folders,
+                Collections.unmodifiableList(workspaceScreens));
+    }
+}
@@ -25,11 +25,20 @@ import android.util.Log;
 import android.view.View;
 import android.view.ViewParent;
 
+import com.android.launcher3.util.Thunk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Stats {
     public static final String ACTION_LAUNCH = "com.android.launcher3.action.LAUNCH";
@@ -53,13 +62,29 @@ public class Stats {
     public static final String SUB_CONTAINER_ALL_APPS_SEARCH = "search";
     private static final String TAG = "Launcher3/Stats";
     private static final String STATS_FILE_NAME = "stats.log";
+    // Launches recorded since the stats file was last written, one intent per launch.
+    private static final String JOURNAL_FILE_NAME = "stats.journal";
     private static final int STATS_VERSION = 1;
     private static final int INITIAL_STATS_SIZE = 100;
+    // Number of journal entries after which the journal is folded into the stats file.
+    private static final int JOURNAL_COMPACT_THRESHOLD = 100;
+    // Delay before recorded launches are written out, so that bursts share a single write.
+    private static final int FLUSH_DELAY_MS = 1000;
     private static final boolean DEBUG_BROADCASTS = false;
     private final Launcher mLauncher;
     private final String mLaunchBroadcastPermission;
-    ArrayList<String> mIntents;
-    ArrayList<Integer> mHistogram;
+    // Launch count by intent uri. Guarded by this.
+    private final HashMap<String, Integer> mLaunchCounts = new HashMap<>(INITIAL_STATS_SIZE);
+    // Launches not yet written to the journal. Guarded by this.
+    private ArrayList<String> mPendingLaunches = new ArrayList<>();
+    // Only accessed on the worker thread, after loading.
+    private int mJournalSize;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingLaunches();
+        }
+    };
 
     public Stats(Launcher launcher) {
         mLauncher = launcher;
@@ -84,14 +109,9 @@ public class Stats {
         }
     }
 
-    public void incrementLaunch(String intentStr) {
-        int pos = mIntents.indexOf(intentStr);
-        if (pos < 0) {
-            mIntents.add(intentStr);
-            mHistogram.add(1);
-        } else {
-            mHistogram.set(pos, mHistogram.get(pos) + 1);
-        }
+    public synchronized void incrementLaunch(String intentStr) {
+        Integer count = mLaunchCounts.get(intentStr);
+        mLaunchCounts.put(intentStr, count == null ? 1 : count + 1);
     }
 
     public int launchCount(Intent intent) {
@@ -99,11 +119,9 @@ public class Stats {
         intent.setSourceBounds(null);
 
         final String flat = intent.toUri(0);
-        int pos = mIntents.indexOf(flat);
-        if (pos < 0) {
-            return 0;
-        } else {
-            return mHistogram.get(pos);
+        synchronized (this) {
+            Integer count = mLaunchCounts.get(flat);
+            return count == null ? 0 : count;
         }
     }
 
@@ -125,24 +143,118 @@ public class Stats {
         broadcastIntent.putExtra(EXTRA_SOURCE, sourceExtras);
         mLauncher.sendBroadcast(broadcastIntent, mLaunchBroadcastPermission);
 
-        incrementLaunch(flat);
-        saveStats();
+        synchronized (this) {
+            incrementLaunch(flat);
+            mPendingLaunches.add(flat);
+        }
+        LauncherModel.sWorker.removeCallbacks(mFlushRunnable);
+        LauncherModel.sWorker.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+    }
+
+    /**
+     * Writes out any recorded launches on the worker thread.
+     */
+    public void flush() {
+        LauncherModel.sWorker.removeCallbacks(mFlushRunnable);
+        LauncherModel.sWorker.post(mFlushRunnable);
+    }
+
+    /**
+     * Appends the pending launches to the journal, and rewrites the stats file once the journal
+     * has grown large enough. Must be called on the worker thread.
+     */
+    @Thunk
+    void flushPendingLaunches() {
+        final ArrayList<String> launches;
+        HashMap<String, Integer> snapshot = null;
+        synchronized (this) {
+            if (mPendingLaunches.isEmpty()) {
+                return;
+            }
+            launches = mPendingLaunches;
+            mPendingLaunches = new ArrayList<>();
+            if (mJournalSize + launches.size() >= JOURNAL_COMPACT_THRESHOLD) {
+                snapshot = new HashMap<>(mLaunchCounts);
+            }
+        }
+
+        if (snapshot != null && saveStats(snapshot)) {
+            mLauncher.deleteFile(JOURNAL_FILE_NAME);
+            mJournalSize = 0;
+            return;
+        }
+
+        // The length of the journal before this append, which only holds complete entries.
+        final long journalLength = mLauncher.getFileStreamPath(JOURNAL_FILE_NAME).length();
+        DataOutputStream journal = null;
+        boolean written = false;
+        try {
+            journal = new DataOutputStream(new BufferedOutputStream(
+                    mLauncher.openFileOutput(JOURNAL_FILE_NAME, Context.MODE_APPEND)));
+            for (String launch : launches) {
+                journal.writeUTF(launch);
+            }
+            journal.close();
+            journal = null;
+            mJournalSize += launches.size();
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write to stats journal: " + e);
+        } finally {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        if (!written) {
+            // Drop whatever part of the append made it to the file, so that the next append
+            // does not follow a partial entry.
+            repairJournal(journalLength);
+        }
+    }
+
+    /**
+     * Truncates the journal to {@param length} bytes, the end of its last complete entry. If that
+     * fails, the journal is folded into the stats file on the next flush instead of appended to.
+     */
+    private void repairJournal(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mLauncher.getFileStreamPath(JOURNAL_FILE_NAME), "rw");
+            file.setLength(length);
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "unable to truncate stats journal: " + e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        mJournalSize = JOURNAL_COMPACT_THRESHOLD;
     }
 
-    private void saveStats() {
+    private boolean saveStats(Map<String, Integer> launchCounts) {
         DataOutputStream stats = null;
         try {
-            stats = new DataOutputStream(mLauncher.openFileOutput(STATS_FILE_NAME + ".tmp", Context.MODE_PRIVATE));
+            stats = new DataOutputStream(new BufferedOutputStream(mLauncher.openFileOutput(
+                    STATS_FILE_NAME + ".tmp", Context.MODE_PRIVATE)));
             stats.writeInt(STATS_VERSION);
-            final int N = mHistogram.size();
-            stats.writeInt(N);
-            for (int i = 0; i < N; i++) {
-                stats.writeUTF(mIntents.get(i));
-                stats.writeInt(mHistogram.get(i));
+            stats.writeInt(launchCounts.size());
+            for (Map.Entry<String, Integer> entry : launchCounts.entrySet()) {
+                stats.writeUTF(entry.getKey());
+                stats.writeInt(entry.getValue());
             }
             stats.close();
             stats = null;
-            mLauncher.getFileStreamPath(STATS_FILE_NAME + ".tmp")
+            return mLauncher.getFileStreamPath(STATS_FILE_NAME + ".tmp")
                     .renameTo(mLauncher.getFileStreamPath(STATS_FILE_NAME));
         } catch (FileNotFoundException e) {
             Log.e(TAG, "unable to create stats data: " + e);
@@ -157,22 +269,21 @@ public class Stats {
                 }
             }
         }
+        return false;
     }
 
-    private void loadStats() {
-        mIntents = new ArrayList<>(INITIAL_STATS_SIZE);
-        mHistogram = new ArrayList<>(INITIAL_STATS_SIZE);
+    private synchronized void loadStats() {
         DataInputStream stats = null;
         try {
-            stats = new DataInputStream(mLauncher.openFileInput(STATS_FILE_NAME));
+            stats = new DataInputStream(new BufferedInputStream(
+                    mLauncher.openFileInput(STATS_FILE_NAME)));
             final int version = stats.readInt();
             if (version == STATS_VERSION) {
                 final int N = stats.readInt();
                 for (int i = 0; i < N; i++) {
                     final String pkg = stats.readUTF();
                     final int count = stats.readInt();
-                    mIntents.add(pkg);
-                    mHistogram.add(count);
+                    mLaunchCounts.put(pkg, count);
                 }
             }
         } catch (IOException e) {
@@ -187,6 +298,45 @@ public class Stats {
                 }
             }
         }
+
+        // Replay the launches recorded since the stats file was written. The journal has no
+        // framing beyond the entries themselves, so a write torn by a crash leaves a partial
+        // entry at the end. Everything from there on is dropped before anything is appended.
+        DataInputStream journal = null;
+        mJournalSize = 0;
+        final long journalLength = mLauncher.getFileStreamPath(JOURNAL_FILE_NAME).length();
+        long validLength = 0;
+        try {
+            journal = new DataInputStream(new BufferedInputStream(
+                    mLauncher.openFileInput(JOURNAL_FILE_NAME)));
+            while (validLength < journalLength) {
+                // Peek at the length that prefixes each entry, to know where the entry ends.
+                journal.mark(2);
+                final int entryLength = 2 + journal.readUnsignedShort();
+                journal.reset();
+                incrementLaunch(journal.readUTF());
+                mJournalSize++;
+                validLength += entryLength;
+            }
+        } catch (FileNotFoundException e) {
+            // No journal
+        } catch (EOFException | UTFDataFormatException e) {
+            Log.w(TAG, "stats journal is corrupt after " + mJournalSize + " entries: " + e);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to read stats journal: " + e);
+        } finally {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        if (validLength < journalLength) {
+            repairJournal(validLength);
+        }
     }
 
     /**
@@ -66,6 +66,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -76,8 +77,15 @@ public final class Utilities {
 
     private static final String TAG = "Launcher.Utilities";
 
-    private static final Rect sOldBounds = new Rect();
-    private static final Canvas sCanvas = new Canvas();
+    // Icons are rendered with per thread state so that loader and preview threads can create
+    // icons concurrently.
+    private static final ThreadLocal<IconRenderContext> sIconRenderContext =
+            new ThreadLocal<IconRenderContext>() {
+                @Override
+                protected IconRenderContext initialValue() {
+                    return new IconRenderContext();
+                }
+            };
 
     private static final Pattern sTrimPattern =
             Pattern.compile("^[\\s|\\p{javaSpaceChar}]*(.*)[\\s|\\p{javaSpaceChar}]*$");
@@ -90,11 +98,6 @@ public final class Utilities {
     static int sColorIndex = 0;
     private static boolean sForceEnableRotation = isPropertyEnabled(FORCE_ENABLE_ROTATION_PROPERTY);
 
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-    }
-
     public static boolean isPropertyEnabled(String propertyName) {
         return Log.isLoggable(propertyName, Log.VERBOSE);
     }
@@ -181,86 +184,124 @@ public final class Utilities {
      */
     public static Bitmap createIconBitmap(Drawable icon, Context context,
                                           IconPackHelper iconPackHelper) {
-        synchronized (sCanvas) {
-            final int iconBitmapSize = getIconBitmapSize();
-
-            Drawable iconMask = null;
-            Drawable iconBack = null;
-            Drawable iconPaletteBack = null;
-            Drawable iconUpon = null;
-            float scale = 1f;
-            float angle = 0;
-            float translationX = 0;
-            float translationY = 0;
-            int defaultSwatchColor = 0;
-            int backTintColor = 0;
-            IconPackHelper.SwatchType swatchType = IconPackHelper.SwatchType.None;
-            float[] colorFilter = null;
-
-            if (iconPackHelper != null) {
-                iconMask = iconPackHelper.getIconMask();
-                iconBack = iconPackHelper.getIconBack();
-                iconPaletteBack = iconPackHelper.getIconPaletteBack();
-                iconUpon = iconPackHelper.getIconUpon();
-                scale = iconPackHelper.getIconScale();
-                angle = iconPackHelper.getIconAngle();
-                translationX = iconPackHelper.getTranslationX();
-                translationY = iconPackHelper.getTranslationY();
-                swatchType = iconPackHelper.getSwatchType();
-                colorFilter = iconPackHelper.getColorFilter();
-            }
+        return createIconBitmap(icon, context, iconPackHelper, null);
+    }
 
-            int width = iconBitmapSize;
-            int height = iconBitmapSize;
-
-            if (icon instanceof PaintDrawable) {
-                PaintDrawable painter = (PaintDrawable) icon;
-                painter.setIntrinsicWidth(width);
-                painter.setIntrinsicHeight(height);
-            } else if (icon instanceof BitmapDrawable) {
-                // Ensure the bitmap has a density.
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
-                Bitmap bitmap = bitmapDrawable.getBitmap();
-                if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
-                    bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-                }
+    /**
+     * Returns a bitmap suitable for the all apps view. When the icon pack tints icons with their
+     * palette, the tint is taken from {@param swatchColor} if it is set, and is otherwise computed
+     * and stored into it.
+     */
+    static Bitmap createIconBitmap(Drawable icon, Context context,
+                                   IconPackHelper iconPackHelper,
+                                   IconPackHelper.SwatchColor swatchColor) {
+        final int iconBitmapSize = getIconBitmapSize();
+        final IconRenderContext renderContext = sIconRenderContext.get();
+
+        Drawable iconMask = null;
+        Drawable iconBack = null;
+        Drawable iconPaletteBack = null;
+        Drawable iconUpon = null;
+        float scale = 1f;
+        float angle = 0;
+        float translationX = 0;
+        float translationY = 0;
+        int defaultSwatchColor = 0;
+        int backTintColor = 0;
+        IconPackHelper.SwatchType swatchType = IconPackHelper.SwatchType.None;
+        float[] colorFilter = null;
+
+        if (iconPackHelper != null) {
+            // The icon pack drawables are shared and get mutated below, use thread local copies.
+            iconMask = renderContext.obtainDrawable(iconPackHelper.getIconMask());
+            iconBack = renderContext.obtainDrawable(iconPackHelper.getIconBack());
+            iconPaletteBack = renderContext.obtainDrawable(iconPackHelper.getIconPaletteBack());
+            iconUpon = renderContext.obtainDrawable(iconPackHelper.getIconUpon());
+            scale = iconPackHelper.getIconScale();
+            angle = iconPackHelper.getIconAngle();
+            translationX = iconPackHelper.getTranslationX();
+            translationY = iconPackHelper.getTranslationY();
+            swatchType = iconPackHelper.getSwatchType();
+            colorFilter = iconPackHelper.getColorFilter();
+        }
+
+        int width = iconBitmapSize;
+        int height = iconBitmapSize;
+
+        if (icon instanceof PaintDrawable) {
+            PaintDrawable painter = (PaintDrawable) icon;
+            painter.setIntrinsicWidth(width);
+            painter.setIntrinsicHeight(height);
+        } else if (icon instanceof BitmapDrawable) {
+            // Ensure the bitmap has a density.
+            BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
+                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
             }
-            int sourceWidth = icon.getIntrinsicWidth();
-            int sourceHeight = icon.getIntrinsicHeight();
-            if (sourceWidth > 0 && sourceHeight > 0) {
-                // Scale the icon proportionally to the icon dimensions
-                final float ratio = (float) sourceWidth / sourceHeight;
-                if (sourceWidth > sourceHeight) {
-                    height = (int) (width / ratio);
-                } else if (sourceHeight > sourceWidth) {
-                    width = (int) (height * ratio);
-                }
+        }
+        int sourceWidth = icon.getIntrinsicWidth();
+        int sourceHeight = icon.getIntrinsicHeight();
+        if (sourceWidth > 0 && sourceHeight > 0) {
+            // Scale the icon proportionally to the icon dimensions
+            final float ratio = (float) sourceWidth / sourceHeight;
+            if (sourceWidth > sourceHeight) {
+                height = (int) (width / ratio);
+            } else if (sourceHeight > sourceWidth) {
+                width = (int) (height * ratio);
             }
+        }
 
-            // no intrinsic size --> use default size
-            int textureWidth = iconBitmapSize;
-            int textureHeight = iconBitmapSize;
+        // no intrinsic size --> use default size
+        int textureWidth = iconBitmapSize;
+        int textureHeight = iconBitmapSize;
+
+        Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = renderContext.canvas;
+        canvas.setBitmap(bitmap);
+
+        final int left = (textureWidth - width) / 2;
+        final int top = (textureHeight - height) / 2;
+
+        @SuppressWarnings("all") // suppress dead code warning
+        final boolean debug = false;
+        if (debug) {
+            // draw a big box for the icon for debugging
+            canvas.drawColor(sColors[sColorIndex]);
+            if (++sColorIndex >= sColors.length) sColorIndex = 0;
+            Paint debugPaint = new Paint();
+            debugPaint.setColor(0xffcccc00);
+            canvas.drawRect(left, top, left + width, top + height, debugPaint);
+        }
 
-            Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
-            canvas.setBitmap(bitmap);
-
-            final int left = (textureWidth - width) / 2;
-            final int top = (textureHeight - height) / 2;
-
-            @SuppressWarnings("all") // suppress dead code warning
-            final boolean debug = false;
-            if (debug) {
-                // draw a big box for the icon for debugging
-                canvas.drawColor(sColors[sColorIndex]);
-                if (++sColorIndex >= sColors.length) sColorIndex = 0;
-                Paint debugPaint = new Paint();
-                debugPaint.setColor(0xffcccc00);
-                canvas.drawRect(left, top, left + width, top + height, debugPaint);
+        renderContext.oldBounds.set(icon.getBounds());
+        icon.setBounds(0, 0, width, height);
+        canvas.save();
+        final float halfWidth = width / 2f;
+        final float halfHeight = height / 2f;
+        canvas.rotate(angle, halfWidth, halfHeight);
+        canvas.scale(scale, scale, halfWidth, halfHeight);
+        canvas.translate(translationX, translationY);
+        if (colorFilter != null) {
+            Paint p = null;
+            if (icon instanceof BitmapDrawable) {
+                p = ((BitmapDrawable) icon).getPaint();
+            } else if (icon instanceof PaintDrawable) {
+                p = ((PaintDrawable) icon).getPaint();
             }
-
-            if (swatchType != null && swatchType != IconPackHelper.SwatchType.None) {
+            if (p != null) {
+                p.setColorFilter(new ColorMatrixColorFilter(colorFilter));
+            }
+        }
+        icon.draw(canvas);
+        canvas.restore();
+        if (swatchType != null && swatchType != IconPackHelper.SwatchType.None) {
+            if (swatchColor != null && swatchColor.isSet) {
+                backTintColor = swatchColor.color;
+            } else {
+                // The palette is taken from the drawn icon, before the mask is applied.
+                defaultSwatchColor = iconPackHelper.getDefaultSwatchColor();
                 Palette palette = Palette.generate(bitmap, IconPackHelper.NUM_PALETTE_COLORS);
                 switch (swatchType) {
                     case Vibrant:
@@ -282,47 +323,33 @@ public final class Utilities {
                         backTintColor = palette.getDarkMutedColor(defaultSwatchColor);
                         break;
                 }
-            }
-
-            sOldBounds.set(icon.getBounds());
-            icon.setBounds(0, 0, width, height);
-            canvas.save();
-            final float halfWidth = width / 2f;
-            final float halfHeight = height / 2f;
-            canvas.rotate(angle, halfWidth, halfHeight);
-            canvas.scale(scale, scale, halfWidth, halfHeight);
-            canvas.translate(translationX, translationY);
-            if (colorFilter != null) {
-                Paint p = null;
-                if (icon instanceof BitmapDrawable) {
-                    p = ((BitmapDrawable) icon).getPaint();
-                } else if (icon instanceof PaintDrawable) {
-                    p = ((PaintDrawable) icon).getPaint();
-                }
-                if (p != null) {
-                    p.setColorFilter(new ColorMatrixColorFilter(colorFilter));
+                if (swatchColor != null) {
+                    swatchColor.color = backTintColor;
+                    swatchColor.isSet = true;
                 }
             }
-            icon.draw(canvas);
-            canvas.restore();
-            if (iconMask != null) {
+        }
+        // The icon pack drawables are locked in case they could not be copied and are shared.
+        if (iconMask != null) {
+            synchronized (iconMask) {
                 iconMask.setBounds(icon.getBounds());
                 ((BitmapDrawable) iconMask).getPaint().setXfermode(
                         new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
                 iconMask.draw(canvas);
             }
-            Drawable back = null;
-            if (swatchType != null && swatchType != IconPackHelper.SwatchType.None) {
-                back = iconPaletteBack;
-                defaultSwatchColor = iconPackHelper.getDefaultSwatchColor();
-            } else if (iconBack != null) {
-                back = iconBack;
-            }
-            if (back != null) {
-                canvas.setBitmap(null);
-                Bitmap finalBitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                        Bitmap.Config.ARGB_8888);
-                canvas.setBitmap(finalBitmap);
+        }
+        Drawable back = null;
+        if (swatchType != null && swatchType != IconPackHelper.SwatchType.None) {
+            back = iconPaletteBack;
+        } else if (iconBack != null) {
+            back = iconBack;
+        }
+        if (back != null) {
+            canvas.setBitmap(null);
+            Bitmap finalBitmap = Bitmap.createBitmap(textureWidth, textureHeight,
+                    Bitmap.Config.ARGB_8888);
+            canvas.setBitmap(finalBitmap);
+            synchronized (back) {
                 back.setBounds(icon.getBounds());
                 Paint paint = ((BitmapDrawable) back).getPaint();
                 paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
@@ -331,17 +358,19 @@ public final class Utilities {
                             PorterDuff.Mode.MULTIPLY));
                 }
                 back.draw(canvas);
-                canvas.drawBitmap(bitmap, null, icon.getBounds(), null);
-                bitmap = finalBitmap;
             }
-            if (iconUpon != null) {
+            canvas.drawBitmap(bitmap, null, icon.getBounds(), null);
+            bitmap = finalBitmap;
+        }
+        if (iconUpon != null) {
+            synchronized (iconUpon) {
                 iconUpon.draw(canvas);
             }
-            icon.setBounds(sOldBounds);
-            canvas.setBitmap(null);
-
-            return bitmap;
         }
+        icon.setBounds(renderContext.oldBounds);
+        canvas.setBitmap(null);
+
+        return bitmap;
     }
 
     /**
@@ -817,4 +846,42 @@ public final class Utilities {
     public static String createDbSelectionQuery(String columnName, Iterable<?> values) {
         return String.format(Locale.ENGLISH, "%s IN (%s)", columnName, TextUtils.join(", ", values));
     }
+
+    /**
+     * State used by {@link #createIconBitmap(Drawable, Context, IconPackHelper)}, confined to a
+     * single thread.
+     */
+    private static final class IconRenderContext {
+        final Canvas canvas = new Canvas();
+        final Rect oldBounds = new Rect();
+        // Copies of shared drawables, keyed by the shared instance.
+        private final WeakHashMap<Drawable, Drawable> mDrawables = new WeakHashMap<>();
+
+        IconRenderContext() {
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+        }
+
+        /**
+         * Returns a mutable copy of {@param shared} owned by this thread. A drawable without a
+         * constant state cannot be copied, so it is returned as is and must be drawn while
+         * holding its lock.
+         */
+        Drawable obtainDrawable(Drawable shared) {
+            if (shared == null) {
+                return null;
+            }
+            Drawable copy = mDrawables.get(shared);
+            if (copy == null) {
+                Drawable.ConstantState state = shared.getConstantState();
+                if (state == null) {
+                    // Not cached, as the value would keep its own weak key alive.
+                    return shared;
+                }
+                copy = state.newDrawable().mutate();
+                mDrawables.put(shared, copy);
+            }
+            return copy;
+        }
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.os.AsyncTask;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor for the widget preview tasks, separate from the pool shared with the rest of the app.
+ * <p/>
+ * Pending tasks run newest first: the cells that were bound last are the ones the user scrolled
+ * to, so they are filled before the ones that were passed on the way. The queue is bounded, when
+ * it is full the oldest pending task is cancelled to make room. Tasks must be queued with
+ * {@link #executeTask(AsyncTask)} for their cancellation to be seen by their owner.
+ */
+class WidgetPreviewExecutor extends ThreadPoolExecutor {
+    private static final String TAG = "WidgetPreviewExecutor";
+    private static final boolean DEBUG = false;
+
+    private static final int THREADS = 2;
+    private static final int MAX_PENDING_TASKS = 64;
+    private static final int KEEP_ALIVE_SECONDS = 1;
+
+    WidgetPreviewExecutor() {
+        super(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LifoQueue(MAX_PENDING_TASKS), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "launcher-widget-preview-" + mCount.getAndIncrement());
+                    }
+                }, new DropOldestPolicy());
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Executes {@param task} on this executor. The task itself is cancelled if it is dropped from
+     * the queue, so that its owner sees {@link AsyncTask#isCancelled()} and gets
+     * {@link AsyncTask#onCancelled}.
+     */
+    void executeTask(final AsyncTask<Void, ?, ?> task) {
+        task.executeOnExecutor(new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                WidgetPreviewExecutor.this.execute(new TaskFuture(task, r));
+            }
+        });
+    }
+
+    /**
+     * Queued form of an {@link AsyncTask}, which cancels the task rather than only the future
+     * run by the executor.
+     */
+    private static class TaskFuture extends FutureTask<Void> {
+        private final AsyncTask<?, ?, ?> mTask;
+
+        TaskFuture(AsyncTask<?, ?, ?> task, Runnable r) {
+            super(r, null);
+            mTask = task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            super.cancel(mayInterruptIfRunning);
+            return mTask.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mTask.isCancelled();
+        }
+    }
+
+    /**
+     * Queue which hands out the most recently added task first.
+     */
+    private static class LifoQueue extends LinkedBlockingDeque<Runnable> {
+
+        LifoQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(Runnable r) {
+            return offerFirst(r);
+        }
+    }
+
+    /**
+     * Cancels the oldest pending task and queues the new one in its place. Cancelling the task
+     * lets its owner know that it will not run, see {@link TaskFuture}.
+     */
+    private static class DropOldestPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            LifoQueue queue = (LifoQueue) executor.getQueue();
+            Runnable oldest = queue.pollLast();
+            if (oldest instanceof Future) {
+                ((Future<?>) oldest).cancel(false);
+            }
+            if (DEBUG) Log.d(TAG, "Dropped pending preview task " + oldest);
+            executor.execute(r);
+        }
+    }
+}
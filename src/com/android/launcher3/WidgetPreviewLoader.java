@@ -31,16 +31,17 @@ import android.util.LongSparseArray;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.BitmapPool;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.WidgetCell;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -50,15 +51,19 @@ public class WidgetPreviewLoader {
     private static final boolean DEBUG = false;
 
     private static final float WIDGET_PREVIEW_ICON_PADDING_PERCENTAGE = 0.25f;
+    // Fraction of the heap that the preview bitmaps which are no longer shown may hold.
+    private static final int BITMAP_POOL_HEAP_FRACTION = 32;
+    // Fraction of the heap that the recently loaded previews may hold.
+    private static final int MEM_CACHE_HEAP_FRACTION = 32;
     /**
-     * Weak reference objects, do not prevent their referents from being made finalizable,
-     * finalized, and then reclaimed.
-     * Note: synchronized block used for this variable is expensive and the block should always
-     * be posted to a background thread.
+     * Preview bitmaps which are no longer shown, reused for the next previews of the same size.
      */
     @Thunk
-    final Set<Bitmap> mUnusedBitmaps =
-            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    final BitmapPool mBitmapPool =
+            new BitmapPool(Runtime.getRuntime().maxMemory() / BITMAP_POOL_HEAP_FRACTION);
+    @Thunk
+    final MemCache mMemCache =
+            new MemCache(Runtime.getRuntime().maxMemory() / MEM_CACHE_HEAP_FRACTION);
     @Thunk
     final Handler mWorkerHandler;
     private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
@@ -69,6 +74,8 @@ public class WidgetPreviewLoader {
     private final CacheDb mDb;
     private final int mProfileBadgeMargin;
     private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
+    @Thunk
+    final WidgetPreviewExecutor mPreviewExecutor = new WidgetPreviewExecutor();
 
     public WidgetPreviewLoader(Context context, IconCache iconCache) {
         mContext = context;
@@ -82,8 +89,8 @@ public class WidgetPreviewLoader {
     }
 
     /**
-     * Generates the widget preview on {@link AsyncTask#THREAD_POOL_EXECUTOR}. Must be
-     * called on UI thread
+     * Generates the widget preview on {@link WidgetPreviewExecutor}, most recent requests first.
+     * Must be called on UI thread
      *
      * @param o either {@link LauncherAppWidgetProviderInfo} or {@link ResolveInfo}
      * @return a request id which can be used to cancel the request.
@@ -94,7 +101,7 @@ public class WidgetPreviewLoader {
         WidgetCacheKey key = getObjectKey(o, size);
 
         PreviewLoadTask task = new PreviewLoadTask(key, o, previewWidth, previewHeight, caller);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        mPreviewExecutor.executeTask(task);
         return new PreviewLoadRequest(task);
     }
 
@@ -130,6 +137,14 @@ public class WidgetPreviewLoader {
         }
     }
 
+    /**
+     * Logs the preview memory cache and bitmap pool usage for debugging.
+     */
+    public void dumpState() {
+        mMemCache.dumpState();
+        mBitmapPool.dumpState(TAG);
+    }
+
     public void removePackage(String packageName, UserHandleCompat user) {
         removePackage(packageName, user, mUserManager.getSerialNumberForUser(user));
     }
@@ -138,6 +153,7 @@ public class WidgetPreviewLoader {
         synchronized (mPackageVersions) {
             mPackageVersions.remove(packageName);
         }
+        mMemCache.removePackage(packageName, user);
 
         try {
             mDb.getWritableDatabase().delete(CacheDb.TABLE_NAME,
@@ -560,6 +576,122 @@ public class WidgetPreviewLoader {
         }
     }
 
+    /**
+     * The recently loaded previews, so that reopening the widget tray does not go through the DB
+     * again.
+     * <p/>
+     * A bitmap in this cache may also be shown by any number of cells, so it is reference
+     * counted: the cache and every cell showing it hold a reference, and it is only given back to
+     * {@link #mBitmapPool} once the last one is released.
+     */
+    @Thunk
+    final class MemCache {
+        private final LinkedHashMap<WidgetCacheKey, Bitmap> mEntries =
+                new LinkedHashMap<>(16, 0.75f, true);
+        private final HashMap<Bitmap, Integer> mRefCounts = new HashMap<>();
+        private final long mMaxBytes;
+        private long mBytes;
+        private int mHitCount;
+        private int mMissCount;
+        private int mEvictionCount;
+
+        MemCache(long maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        /**
+         * Returns the cached preview and takes a reference on it, or null.
+         */
+        synchronized Bitmap acquire(WidgetCacheKey key) {
+            Bitmap preview = mEntries.get(key);
+            if (preview == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            addRef(preview);
+            return preview;
+        }
+
+        /**
+         * Adds a preview which was just loaded, and takes a reference on it for the caller.
+         */
+        synchronized void put(WidgetCacheKey key, Bitmap preview) {
+            addRef(preview);
+            long size = sizeOf(preview);
+            if (size > mMaxBytes) {
+                return;
+            }
+            addRef(preview);
+            Bitmap old = mEntries.put(key, preview);
+            mBytes += size;
+            if (old != null) {
+                mBytes -= sizeOf(old);
+                releaseLocked(old);
+            }
+
+            Iterator<Map.Entry<WidgetCacheKey, Bitmap>> iterator = mEntries.entrySet().iterator();
+            while (mBytes > mMaxBytes && iterator.hasNext()) {
+                Bitmap eldest = iterator.next().getValue();
+                iterator.remove();
+                mBytes -= sizeOf(eldest);
+                mEvictionCount++;
+                releaseLocked(eldest);
+            }
+        }
+
+        /**
+         * Releases a reference taken by {@link #acquire} or {@link #put}. Bitmaps which were
+         * never added to the cache go straight to the pool.
+         */
+        synchronized void release(Bitmap preview) {
+            if (preview != null) {
+                releaseLocked(preview);
+            }
+        }
+
+        synchronized void removePackage(String packageName, UserHandleCompat user) {
+            Iterator<Map.Entry<WidgetCacheKey, Bitmap>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<WidgetCacheKey, Bitmap> entry = iterator.next();
+                WidgetCacheKey key = entry.getKey();
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    iterator.remove();
+                    mBytes -= sizeOf(entry.getValue());
+                    releaseLocked(entry.getValue());
+                }
+            }
+        }
+
+        private void addRef(Bitmap preview) {
+            Integer count = mRefCounts.get(preview);
+            mRefCounts.put(preview, count == null ? 1 : count + 1);
+        }
+
+        private void releaseLocked(Bitmap preview) {
+            Integer count = mRefCounts.get(preview);
+            if (count != null && count > 1) {
+                mRefCounts.put(preview, count - 1);
+                return;
+            }
+            mRefCounts.remove(preview);
+            mBitmapPool.put(preview);
+        }
+
+        private long sizeOf(Bitmap preview) {
+            return (long) preview.getRowBytes() * preview.getHeight();
+        }
+
+        synchronized void dumpState() {
+            int lookups = mHitCount + mMissCount;
+            Log.d(TAG, "mMemCache size=" + mEntries.size() + " bytes=" + mBytes + "/" + mMaxBytes
+                    + " hits=" + mHitCount + " misses=" + mMissCount + " evictions="
+                    + mEvictionCount + " hitRate="
+                    + (lookups == 0 ? 0 : mHitCount * 100 / lookups) + "%");
+        }
+    }
+
     /**
      * A request Id which can be used by the client to cancel any request.
      */
@@ -572,9 +704,26 @@ public class WidgetPreviewLoader {
             mTask = task;
         }
 
+        /**
+         * Returns true if the preview has neither been applied nor cancelled yet.
+         */
+        public boolean isPending() {
+            return mTask.getStatus() != AsyncTask.Status.FINISHED && !mTask.isCancelled();
+        }
+
+        /**
+         * Returns true if the request was cancelled, either by {@link #cleanup()} or because it
+         * was dropped from the queue of pending previews.
+         */
+        public boolean isCancelled() {
+            return mTask.isCancelled();
+        }
+
         public void cleanup() {
             if (mTask != null) {
                 mTask.cancel(true);
+                // Free its slot in the queue if it did not start yet.
+                mPreviewExecutor.purge();
             }
 
             // This only handles the case where the PreviewLoadTask is cancelled after the task has
@@ -586,9 +735,7 @@ public class WidgetPreviewLoader {
                 mWorkerHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(mTask.mBitmapToRecycle);
-                        }
+                        mMemCache.release(mTask.mBitmapToRecycle);
                         mTask.mBitmapToRecycle = null;
                     }
                 });
@@ -623,29 +770,16 @@ public class WidgetPreviewLoader {
 
         @Override
         protected Bitmap doInBackground(Void... params) {
-            Bitmap unusedBitmap = null;
-
             // If already cancelled before this gets to run in the background, then return early
             if (isCancelled()) {
                 return null;
             }
-            synchronized (mUnusedBitmaps) {
-                // Check if we can re-use a bitmap
-                for (Bitmap candidate : mUnusedBitmaps) {
-                    if (candidate != null && candidate.isMutable() &&
-                            candidate.getWidth() == mPreviewWidth &&
-                            candidate.getHeight() == mPreviewHeight) {
-                        unusedBitmap = candidate;
-                        mUnusedBitmaps.remove(unusedBitmap);
-                        break;
-                    }
-                }
-            }
-
-            // creating a bitmap is expensive. Do not do this inside synchronized block.
-            if (unusedBitmap == null) {
-                unusedBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
+            Bitmap cached = mMemCache.acquire(mKey);
+            if (cached != null) {
+                return cached;
             }
+            Bitmap unusedBitmap = mBitmapPool.obtain(mPreviewWidth, mPreviewHeight,
+                    Config.ARGB_8888);
             // If cancelled now, don't bother reading the preview from the DB
             if (isCancelled()) {
                 return unusedBitmap;
@@ -663,6 +797,13 @@ public class WidgetPreviewLoader {
                 // it's not in the db... we need to generate it
                 preview = generatePreview(launcher, mInfo, unusedBitmap, mPreviewWidth, mPreviewHeight);
             }
+            if (preview != unusedBitmap) {
+                // The preview was drawn into a new bitmap, e.g. to add the profile badge.
+                mBitmapPool.put(unusedBitmap);
+            }
+            if (preview != null && !isCancelled()) {
+                mMemCache.put(mKey, preview);
+            }
             return preview;
         }
 
@@ -682,10 +823,8 @@ public class WidgetPreviewLoader {
                             mBitmapToRecycle = preview;
                         } else {
                             // If we've already cancelled, then skip writing the bitmap to the DB
-                            // and manually add the bitmap back to the recycled set
-                            synchronized (mUnusedBitmaps) {
-                                mUnusedBitmaps.add(preview);
-                            }
+                            // and manually add the bitmap back to the pool
+                            mMemCache.release(preview);
                         }
                     }
                 });
@@ -699,15 +838,13 @@ public class WidgetPreviewLoader {
         @Override
         protected void onCancelled(final Bitmap preview) {
             // If we've cancelled while the task is running, then can return the bitmap to the
-            // recycled set immediately. Otherwise, it will be recycled after the preview is written
+            // pool immediately. Otherwise, it will be recycled after the preview is written
             // to disk.
             if (preview != null) {
                 mWorkerHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(preview);
-                        }
+                        mMemCache.release(preview);
                     }
                 });
             }
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.LongArrayMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+
+/**
+ * Compact copy of the hotseat and of one workspace page, with their titles and icons, written
+ * after the workspace is bound. At the next start the page can be bound from it right away,
+ * without waiting for the favorites table to be loaded and validated. The loader rebinds the
+ * authoritative items once it is done, so a stale snapshot is only ever shown briefly.
+ * <p/>
+ * Only apps, shortcuts and folders are kept. Widgets need their host views to be created and
+ * are left to the regular bind.
+ */
+class WorkspaceSnapshot {
+    private static final String TAG = "Launcher.WorkspaceSnapshot";
+
+    private static final int MAGIC = 0x57534e50; // "WSNP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    final ArrayList<Long> screenIds;
+    final long currentScreenId;
+    // The hotseat items and the items of the current screen, in bind order.
+    final ArrayList<ItemInfo> items;
+    final LongArrayMap<FolderInfo> folders;
+    // Icons of the shortcuts in items and in the folders, by item id.
+    private final LongArrayMap<Bitmap> mIcons;
+    private final int mSignature;
+
+    private WorkspaceSnapshot(ArrayList<Long> screenIds, long currentScreenId,
+            ArrayList<ItemInfo> items, LongArrayMap<FolderInfo> folders,
+            LongArrayMap<Bitmap> icons) {
+        this.screenIds = screenIds;
+        this.currentScreenId = currentScreenId;
+        this.items = items;
+        this.folders = folders;
+        mIcons = icons;
+
+        int signature = 31 + screenIds.hashCode();
+        signature = 31 * signature + (int) (currentScreenId ^ (currentScreenId >>> 32));
+        for (ItemInfo item : items) {
+            signature = 31 * signature + getSignature(item);
+            if (item instanceof FolderInfo) {
+                for (ShortcutInfo child : ((FolderInfo) item).contents) {
+                    signature = 31 * signature + getSignature(child);
+                }
+            }
+        }
+        mSignature = signature;
+    }
+
+    private int getSignature(ItemInfo item) {
+        int signature = (int) (item.id ^ (item.id >>> 32));
+        signature = 31 * signature + (int) item.container;
+        signature = 31 * signature + (int) item.screenId;
+        signature = 31 * signature + item.cellX;
+        signature = 31 * signature + item.cellY;
+        signature = 31 * signature + item.rank;
+        signature = 31 * signature + (item.title == null ? 0 : item.title.toString().hashCode());
+        signature = 31 * signature + System.identityHashCode(mIcons.get(item.id));
+        if (item instanceof ShortcutInfo) {
+            ShortcutInfo info = (ShortcutInfo) item;
+            signature = 31 * signature + (info.intent == null ? 0 : info.intent.hashCode());
+            signature = 31 * signature + info.isDisabled;
+        }
+        return signature;
+    }
+
+    /**
+     * Returns a value that changes whenever the content of the snapshot does.
+     */
+    int getSignature() {
+        return mSignature;
+    }
+
+    /**
+     * Builds a snapshot of the hotseat and of {@param currentScreenId} from the model items.
+     * Must be called on the worker thread.
+     */
+    static WorkspaceSnapshot create(ArrayList<Long> screenIds, long currentScreenId,
+            ArrayList<ItemInfo> workspaceItems, IconCache iconCache) {
+        ArrayList<ItemInfo> items = new ArrayList<>();
+        LongArrayMap<FolderInfo> folders = new LongArrayMap<>();
+        LongArrayMap<Bitmap> icons = new LongArrayMap<>();
+        for (ItemInfo item : workspaceItems) {
+            if (item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                    && item.screenId != currentScreenId) {
+                continue;
+            }
+            if (item instanceof ShortcutInfo) {
+                ShortcutInfo info = (ShortcutInfo) item;
+                Bitmap icon = info.getIcon(iconCache);
+                if (info.intent == null || icon == null) {
+                    continue;
+                }
+                icons.put(info.id, icon);
+                items.add(info);
+            } else if (item instanceof FolderInfo) {
+                FolderInfo folder = (FolderInfo) item;
+                for (ShortcutInfo child : folder.contents) {
+                    Bitmap icon = child.getIcon(iconCache);
+                    if (icon != null) {
+                        icons.put(child.id, icon);
+                    }
+                }
+                items.add(folder);
+                folders.put(folder.id, folder);
+            }
+        }
+        return new WorkspaceSnapshot(new ArrayList<>(screenIds), currentScreenId, items, folders,
+                icons);
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), LauncherFiles.WORKSPACE_SNAPSHOT);
+    }
+
+    /**
+     * Deletes the snapshot, so that it is not bound until a new one is written.
+     */
+    static void delete(Context context) {
+        getFile(context).delete();
+    }
+
+    /**
+     * Reads the snapshot, or returns null if there is none or it was written for another grid.
+     */
+    static WorkspaceSnapshot read(Context context, InvariantDeviceProfile profile) {
+        File file = getFile(context);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readInt() != profile.numRows
+                    || in.readInt() != profile.numColumns
+                    || in.readInt() != (int) profile.numHotseatIcons
+                    || in.readInt() != profile.iconBitmapSize) {
+                return null;
+            }
+
+            int screenCount = in.readInt();
+            ArrayList<Long> screenIds = new ArrayList<>(screenCount);
+            for (int i = 0; i < screenCount; i++) {
+                screenIds.add(in.readLong());
+            }
+            long currentScreenId = in.readLong();
+
+            UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+            ArrayList<ItemInfo> items = new ArrayList<>();
+            LongArrayMap<FolderInfo> folders = new LongArrayMap<>();
+            LongArrayMap<Bitmap> icons = new LongArrayMap<>();
+            int itemCount = in.readInt();
+            for (int i = 0; i < itemCount; i++) {
+                ItemInfo item = readItem(in, userManager, icons);
+                if (item instanceof FolderInfo) {
+                    FolderInfo folder = (FolderInfo) item;
+                    int childCount = in.readInt();
+                    for (int j = 0; j < childCount; j++) {
+                        ItemInfo child = readItem(in, userManager, icons);
+                        if (child instanceof ShortcutInfo) {
+                            folder.contents.add((ShortcutInfo) child);
+                        }
+                    }
+                    folders.put(folder.id, folder);
+                }
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            return new WorkspaceSnapshot(screenIds, currentScreenId, items, folders, icons);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read workspace snapshot", e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an item written by {@link #writeItem}, or returns null if it can no longer be shown,
+     * for example because its user was removed. The item is always read in full.
+     */
+    private static ItemInfo readItem(DataInputStream in, UserManagerCompat userManager,
+            LongArrayMap<Bitmap> icons) throws IOException {
+        final int itemType = in.readInt();
+        final ItemInfo item;
+        Bitmap icon = null;
+        if (itemType == LauncherSettings.Favorites.ITEM_TYPE_FOLDER) {
+            FolderInfo folder = new FolderInfo();
+            folder.options = in.readInt();
+            item = folder;
+        } else {
+            ShortcutInfo info = new ShortcutInfo();
+            info.isDisabled = in.readInt();
+            info.status = in.readInt();
+            try {
+                info.intent = Intent.parseUri(in.readUTF(), 0);
+            } catch (URISyntaxException e) {
+                info.intent = null;
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            icon = BitmapFactory.decodeByteArray(data, 0, data.length);
+            info.setIcon(icon);
+            item = info;
+        }
+        item.itemType = itemType;
+        item.id = in.readLong();
+        item.container = in.readLong();
+        item.screenId = in.readLong();
+        item.cellX = in.readInt();
+        item.cellY = in.readInt();
+        item.spanX = in.readInt();
+        item.spanY = in.readInt();
+        item.rank = in.readInt();
+        item.title = in.readUTF();
+        item.user = userManager.getUserForSerialNumber(in.readLong());
+
+        if (item.user == null) {
+            return null;
+        }
+        item.contentDescription = userManager.getBadgedLabelForUser(item.title, item.user);
+        if (item instanceof ShortcutInfo) {
+            if (((ShortcutInfo) item).intent == null || icon == null) {
+                return null;
+            }
+            icons.put(item.id, icon);
+        }
+        return item;
+    }
+
+    /**
+     * Writes the snapshot, replacing the previous one. The file is written to a temporary name
+     * first so that a partially written snapshot is never read.
+     */
+    void write(Context context, InvariantDeviceProfile profile) {
+        File file = getFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(profile.numRows);
+            out.writeInt(profile.numColumns);
+            out.writeInt((int) profile.numHotseatIcons);
+            out.writeInt(profile.iconBitmapSize);
+
+            out.writeInt(screenIds.size());
+            for (long screenId : screenIds) {
+                out.writeLong(screenId);
+            }
+            out.writeLong(currentScreenId);
+
+            out.writeInt(items.size());
+            for (ItemInfo item : items) {
+                writeItem(out, item, userManager);
+                if (item instanceof FolderInfo) {
+                    ArrayList<ShortcutInfo> contents = new ArrayList<>();
+                    for (ShortcutInfo child : ((FolderInfo) item).contents) {
+                        if (child.intent != null && mIcons.get(child.id) != null) {
+                            contents.add(child);
+                        }
+                    }
+                    out.writeInt(contents.size());
+                    for (ShortcutInfo child : contents) {
+                        writeItem(out, child, userManager);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write workspace snapshot", e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void writeItem(DataOutputStream out, ItemInfo item, UserManagerCompat userManager)
+            throws IOException {
+        out.writeInt(item.itemType);
+        if (item instanceof ShortcutInfo) {
+            ShortcutInfo info = (ShortcutInfo) item;
+            out.writeInt(info.isDisabled);
+            out.writeInt(info.status);
+            out.writeUTF(info.intent.toUri(0));
+            byte[] data = Utilities.flattenBitmap(mIcons.get(info.id));
+            if (data == null) {
+                throw new IOException("Unable to compress the icon of " + info);
+            }
+            out.writeInt(data.length);
+            out.write(data);
+        } else {
+            out.writeInt(((FolderInfo) item).options);
+        }
+        out.writeLong(item.id);
+        out.writeLong(item.container);
+        out.writeLong(item.screenId);
+        out.writeInt(item.cellX);
+        out.writeInt(item.cellY);
+        out.writeInt(item.spanX);
+        out.writeInt(item.spanY);
+        out.writeInt(item.rank);
+        out.writeUTF(item.title == null ? "" : item.title.toString());
+        out.writeLong(userManager.getSerialNumberForUser(
+                item.user != null ? item.user : UserHandleCompat.myUserHandle()));
+    }
+}
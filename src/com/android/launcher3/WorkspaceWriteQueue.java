@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-behind queue for the favorites table. Inserts, updates and deletes are held for a short
+ * time and merged by item id, so that moving many items at once (or the same item many times)
+ * results in a single transaction instead of one per change.
+ * <p/>
+ * All the methods must be called on the thread of the handler passed to the constructor.
+ */
+class WorkspaceWriteQueue {
+    private static final String TAG = "Launcher.WriteQueue";
+    private static final boolean DEBUG = false;
+
+    private static final int FLUSH_DELAY_MS = 150;
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_UPDATE = 1;
+    private static final int OP_DELETE = 2;
+
+    private final Handler mHandler;
+    // Pending writes by item id, in the order in which the items were first changed.
+    private final LinkedHashMap<Long, PendingWrite> mPending = new LinkedHashMap<>();
+    private ContentResolver mResolver;
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    WorkspaceWriteQueue(Handler handler) {
+        mHandler = handler;
+    }
+
+    void insert(ContentResolver cr, long id, ContentValues values) {
+        mPending.put(id, new PendingWrite(OP_INSERT, new ContentValues(values)));
+        scheduleFlush(cr);
+    }
+
+    void update(ContentResolver cr, long id, ContentValues values) {
+        PendingWrite write = mPending.get(id);
+        if (write == null) {
+            mPending.put(id, new PendingWrite(OP_UPDATE, new ContentValues(values)));
+        } else if (write.op != OP_DELETE) {
+            // Fold into the pending insert or update, the latest values win.
+            write.values.putAll(values);
+        }
+        scheduleFlush(cr);
+    }
+
+    void delete(ContentResolver cr, long id) {
+        PendingWrite write = mPending.remove(id);
+        if (write != null && write.op == OP_INSERT) {
+            // The item never made it to the database.
+            return;
+        }
+        mPending.put(id, new PendingWrite(OP_DELETE, null));
+        scheduleFlush(cr);
+    }
+
+    /**
+     * Writes all the pending changes in a single transaction. Must be called before reading
+     * the favorites table.
+     */
+    void flush() {
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+        }
+        if (mPending.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(mPending.size());
+        for (Map.Entry<Long, PendingWrite> entry : mPending.entrySet()) {
+            PendingWrite write = entry.getValue();
+            switch (write.op) {
+                case OP_INSERT:
+                    ops.add(ContentProviderOperation
+                            .newInsert(LauncherSettings.Favorites.CONTENT_URI)
+                            .withValues(write.values).build());
+                    break;
+                case OP_UPDATE:
+                    ops.add(ContentProviderOperation
+                            .newUpdate(LauncherSettings.Favorites.getContentUri(entry.getKey()))
+                            .withValues(write.values).build());
+                    break;
+                case OP_DELETE:
+                    ops.add(ContentProviderOperation
+                            .newDelete(LauncherSettings.Favorites.getContentUri(entry.getKey()))
+                            .build());
+                    break;
+            }
+        }
+        mPending.clear();
+
+        try {
+            mResolver.applyBatch(LauncherProvider.AUTHORITY, ops);
+            if (DEBUG) Log.d(TAG, "Flushed " + ops.size() + " workspace changes");
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to write " + ops.size() + " workspace changes", e);
+        }
+    }
+
+    /**
+     * Drops all the pending changes, for when the favorites table is about to be deleted.
+     */
+    void discard() {
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+        }
+        if (DEBUG && !mPending.isEmpty()) Log.d(TAG, "Discarded " + mPending.size() + " changes");
+        mPending.clear();
+    }
+
+    private void scheduleFlush(ContentResolver cr) {
+        mResolver = cr;
+        // The flush is not pushed back by further changes, so a long drag still gets written
+        // out regularly.
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+
+    private static class PendingWrite {
+        final int op;
+        final ContentValues values;
+
+        PendingWrite(int op, ContentValues values) {
+            this.op = op;
+            this.values = values;
+        }
+    }
+}
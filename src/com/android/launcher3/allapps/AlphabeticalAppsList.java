@@ -15,6 +15,7 @@
  */
 package com.android.launcher3.allapps;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
@@ -30,6 +31,7 @@ import com.android.launcher3.util.ComponentKey;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -46,6 +48,8 @@ public class AlphabeticalAppsList {
     // The set of apps from the system not including predictions
     private final List<AppInfo> mApps = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
+    // The search index of the titles of all the apps
+    private final AppSearchIndex mSearchIndex = new AppSearchIndex();
     private Launcher mLauncher;
     // The set of filtered apps with the current filter
     private List<AppInfo> mFilteredApps = new ArrayList<>();
@@ -69,6 +73,18 @@ public class AlphabeticalAppsList {
     private int mNumAppsPerRow;
     private int mNumPredictedAppsPerRow;
     private int mNumAppRowsInAdapter;
+    // The adapter items of the previous update, to compute the changes to notify
+    private final ArrayList<AdapterItem> mPreviousAdapterItems = new ArrayList<>();
+    // The items of the previous update which can be reused for the same app or section
+    private final HashMap<ComponentName, AdapterItem> mRecycledAppItems = new HashMap<>();
+    private final HashMap<ComponentName, AdapterItem> mRecycledPredictedItems = new HashMap<>();
+    private final HashMap<String, AdapterItem> mRecycledSectionBreaks = new HashMap<>();
+    // The reused items which now show a different AppInfo
+    private final ArrayList<AdapterItem> mChangedItems = new ArrayList<>();
+    // Whether the next update must rebind all the items
+    private boolean mFullRebindRequired = true;
+    private boolean mHadFilter;
+
     public AlphabeticalAppsList(Context context) {
         mLauncher = (Launcher) context;
         mIndexer = new AlphabeticIndexCompat(context);
@@ -84,6 +100,7 @@ public class AlphabeticalAppsList {
         mNumPredictedAppsPerRow = numPredictedAppsPerRow;
         mMergeAlgorithm = mergeAlgorithm;
 
+        mFullRebindRequired = true;
         updateAdapterItems();
     }
 
@@ -92,6 +109,7 @@ public class AlphabeticalAppsList {
      */
     public void setAdapter(RecyclerView.Adapter adapter) {
         mAdapter = adapter;
+        mFullRebindRequired = true;
     }
 
     /**
@@ -101,11 +119,19 @@ public class AlphabeticalAppsList {
         return mApps;
     }
 
+    /**
+     * Returns the search index of all the apps.
+     */
+    public AppSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
     /**
      * Sets the current set of apps.
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
+        mSearchIndex.clear();
         addApps(apps);
     }
 
@@ -192,6 +218,7 @@ public class AlphabeticalAppsList {
         for (AppInfo app : apps) {
             mComponentToAppMap.put(app.toComponentKey(), app);
         }
+        mSearchIndex.addOrUpdateApps(apps);
         onAppsUpdated();
     }
 
@@ -202,6 +229,7 @@ public class AlphabeticalAppsList {
         for (AppInfo app : apps) {
             mComponentToAppMap.remove(app.toComponentKey());
         }
+        mSearchIndex.removeApps(apps);
         onAppsUpdated();
     }
 
@@ -225,7 +253,7 @@ public class AlphabeticalAppsList {
             sectionMap = new TreeMap<>(mAppNameComparator.getSectionNameComparator());
             for (AppInfo info : mApps) {
                 // Add the section to the cache
-                String sectionName = getAndUpdateCachedSectionName(info.title);
+                String sectionName = getAndUpdateCachedSectionName(info);
 
                 // Add it to the mapping
                 ArrayList<AppInfo> sectionApps = sectionMap.get(sectionName);
@@ -248,10 +276,13 @@ public class AlphabeticalAppsList {
             // Just compute the section headers for use below
             for (AppInfo info : mApps) {
                 // Add the section to the cache
-                getAndUpdateCachedSectionName(info.title);
+                getAndUpdateCachedSectionName(info);
             }
         }
 
+        // Search results follow the same order as the apps
+        mSearchIndex.setAppOrder(mApps);
+
         // Recompose the set of adapter items from the current set of apps
         updateAdapterItems();
     }
@@ -267,6 +298,10 @@ public class AlphabeticalAppsList {
         int position = 0;
         int appIndex = 0;
 
+        // Keep the current items, so that they are reused for the same apps and sections and the
+        // changes can be notified to the adapter
+        recycleAdapterItems();
+
         // Prepare to update the list of sections, filtered apps, etc.
         mFilteredApps.clear();
         mFastScrollerSections.clear();
@@ -308,15 +343,16 @@ public class AlphabeticalAppsList {
                 // Add a section for the predictions
                 lastSectionInfo = new SectionInfo();
                 lastFastScrollerSectionInfo = new FastScrollSectionInfo("");
-                AdapterItem sectionItem = AdapterItem.asSectionBreak(position++, lastSectionInfo);
+                AdapterItem sectionItem = obtainSectionBreak(null, position++, lastSectionInfo);
                 mSections.add(lastSectionInfo);
                 mFastScrollerSections.add(lastFastScrollerSectionInfo);
                 mAdapterItems.add(sectionItem);
 
                 // Add the predicted app items
                 for (AppInfo info : mPredictedApps) {
-                    AdapterItem appItem = AdapterItem.asPredictedApp(position++, lastSectionInfo,
-                            "", lastSectionInfo.numApps++, info, appIndex++);
+                    AdapterItem appItem = obtainAppItem(mRecycledPredictedItems, position++,
+                            lastSectionInfo, "", lastSectionInfo.numApps++, info, appIndex++);
+                    appItem.viewType = AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE;
                     if (lastSectionInfo.firstAppItem == null) {
                         lastSectionInfo.firstAppItem = appItem;
                         lastFastScrollerSectionInfo.fastScrollToItem = appItem;
@@ -330,7 +366,7 @@ public class AlphabeticalAppsList {
         // Recreate the filtered and sectioned apps (for convenience for the grid layout) from the
         // ordered set of sections
         for (AppInfo info : getFiltersAppInfos()) {
-            String sectionName = getAndUpdateCachedSectionName(info.title);
+            String sectionName = getAndUpdateCachedSectionName(info);
 
             // Create a new section if the section names do not match
             if (lastSectionInfo == null || !sectionName.equals(lastSectionName)) {
@@ -342,14 +378,15 @@ public class AlphabeticalAppsList {
 
                 // Create a new section item to break the flow of items in the list
                 if (!hasFilter()) {
-                    AdapterItem sectionItem = AdapterItem.asSectionBreak(position++, lastSectionInfo);
+                    AdapterItem sectionItem = obtainSectionBreak(sectionName, position++,
+                            lastSectionInfo);
                     mAdapterItems.add(sectionItem);
                 }
             }
 
             // Create an app item
-            AdapterItem appItem = AdapterItem.asApp(position++, lastSectionInfo, sectionName,
-                    lastSectionInfo.numApps++, info, appIndex++);
+            AdapterItem appItem = obtainAppItem(mRecycledAppItems, position++, lastSectionInfo,
+                    sectionName, lastSectionInfo.numApps++, info, appIndex++);
             if (lastSectionInfo.firstAppItem == null) {
                 lastSectionInfo.firstAppItem = appItem;
                 lastFastScrollerSectionInfo.fastScrollToItem = appItem;
@@ -401,9 +438,222 @@ public class AlphabeticalAppsList {
         }
 
         // Refresh the recycler view
+        notifyAdapterItemsChanged();
+    }
+
+    /**
+     * Keeps the current adapter items so that {@link #obtainSectionBreak} and
+     * {@link #obtainAppItem} can reuse them.
+     */
+    private void recycleAdapterItems() {
+        mPreviousAdapterItems.clear();
+        mPreviousAdapterItems.addAll(mAdapterItems);
+        mRecycledAppItems.clear();
+        mRecycledPredictedItems.clear();
+        mRecycledSectionBreaks.clear();
+        mChangedItems.clear();
+        for (AdapterItem item : mAdapterItems) {
+            switch (item.viewType) {
+                case AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE:
+                    AdapterItem firstAppItem = item.sectionInfo.firstAppItem;
+                    if (firstAppItem != null) {
+                        mRecycledSectionBreaks.put(firstAppItem.viewType ==
+                                AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE
+                                ? null : firstAppItem.sectionName, item);
+                    }
+                    break;
+                case AllAppsGridAdapter.ICON_VIEW_TYPE:
+                    mRecycledAppItems.put(item.appInfo.componentName, item);
+                    break;
+                case AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE:
+                    mRecycledPredictedItems.put(item.appInfo.componentName, item);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the section break of the previous update for the same section, or a new one.
+     *
+     * @param key the name of the section, or null for the predictions
+     */
+    private AdapterItem obtainSectionBreak(String key, int pos, SectionInfo section) {
+        AdapterItem item = mRecycledSectionBreaks.remove(key);
+        if (item == null) {
+            return AdapterItem.asSectionBreak(pos, section);
+        }
+        return item.setSectionBreak(pos, section);
+    }
+
+    /**
+     * Returns the app item of the previous update for the same app, or a new one.
+     */
+    private AdapterItem obtainAppItem(HashMap<ComponentName, AdapterItem> recycledItems, int pos,
+                                      SectionInfo section, String sectionName,
+                                      int sectionAppIndex, AppInfo appInfo, int appIndex) {
+        AdapterItem item = recycledItems.remove(appInfo.componentName);
+        if (item == null || !item.appInfo.user.equals(appInfo.user)) {
+            return AdapterItem.asApp(pos, section, sectionName, sectionAppIndex, appInfo,
+                    appIndex);
+        }
+        if (item.appInfo != appInfo) {
+            mChangedItems.add(item);
+        }
+        return item.setApp(pos, section, sectionName, sectionAppIndex, appInfo, appIndex);
+    }
+
+    /**
+     * Notifies the adapter of the changes since the previous update. Changes to the set of apps
+     * are notified item by item, so that only the affected part of the grid is laid out again.
+     * Search results and layout changes still rebind everything.
+     */
+    private void notifyAdapterItemsChanged() {
+        boolean hasFilter = hasFilter();
         if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
+            if (mFullRebindRequired || hasFilter || mHadFilter || mPreviousAdapterItems.isEmpty()) {
+                mAdapter.notifyDataSetChanged();
+            } else {
+                dispatchAdapterItemUpdates(mPreviousAdapterItems, mAdapterItems);
+            }
+            mFullRebindRequired = false;
         }
+        mHadFilter = hasFilter;
+        mPreviousAdapterItems.clear();
+        mChangedItems.clear();
+    }
+
+    /**
+     * Notifies the adapter of the removals, insertions and moves which turn {@param oldItems}
+     * into {@param newItems}, grouping adjacent removals and insertions into ranges. Since items
+     * are reused for the same app or section, an item in both lists is the same object. The
+     * items which keep their relative order are found with a longest increasing subsequence, so
+     * that only the others are moved.
+     */
+    private void dispatchAdapterItemUpdates(List<AdapterItem> oldItems,
+                                            List<AdapterItem> newItems) {
+        HashMap<AdapterItem, Integer> newPositions = new HashMap<>(newItems.size() * 2);
+        for (int i = 0; i < newItems.size(); i++) {
+            newPositions.put(newItems.get(i), i);
+        }
+
+        // Remove the items which are gone, from the end so that the positions stay valid
+        ArrayList<AdapterItem> current = new ArrayList<>(oldItems.size());
+        int removedEnd = -1;
+        for (int i = oldItems.size() - 1; i >= 0; i--) {
+            AdapterItem item = oldItems.get(i);
+            if (!newPositions.containsKey(item)) {
+                if (removedEnd < 0) {
+                    removedEnd = i;
+                }
+                continue;
+            }
+            if (removedEnd >= 0) {
+                mAdapter.notifyItemRangeRemoved(i + 1, removedEnd - i);
+                removedEnd = -1;
+            }
+            current.add(item);
+        }
+        if (removedEnd >= 0) {
+            mAdapter.notifyItemRangeRemoved(0, removedEnd + 1);
+        }
+        Collections.reverse(current);
+
+        // Find the remaining items which need to move
+        HashSet<AdapterItem> remaining = new HashSet<>(current);
+        HashSet<AdapterItem> moved = new HashSet<>();
+        int[] positions = new int[current.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = newPositions.get(current.get(i));
+        }
+        boolean[] stable = findLongestIncreasingSubsequence(positions);
+        for (int i = 0; i < stable.length; i++) {
+            if (!stable[i]) {
+                moved.add(current.get(i));
+            }
+        }
+
+        // Place every new or moved item right after the item which precedes it in the new list
+        int insertStart = 0;
+        int insertCount = 0;
+        int lastPos = -1;
+        for (int i = 0; i < newItems.size(); i++) {
+            AdapterItem item = newItems.get(i);
+            if (!remaining.contains(item)) {
+                int pos = lastPos + 1;
+                current.add(pos, item);
+                if (insertCount > 0 && pos == insertStart + insertCount) {
+                    insertCount++;
+                } else {
+                    if (insertCount > 0) {
+                        mAdapter.notifyItemRangeInserted(insertStart, insertCount);
+                    }
+                    insertStart = pos;
+                    insertCount = 1;
+                }
+                lastPos = pos;
+                continue;
+            }
+            if (insertCount > 0) {
+                mAdapter.notifyItemRangeInserted(insertStart, insertCount);
+                insertCount = 0;
+            }
+            if (moved.contains(item)) {
+                int from = current.indexOf(item);
+                int to = from > lastPos ? lastPos + 1 : lastPos;
+                if (from != to) {
+                    current.remove(from);
+                    current.add(to, item);
+                    mAdapter.notifyItemMoved(from, to);
+                }
+                lastPos = to;
+            } else {
+                // Items which keep their order are always after the previous item
+                int pos = lastPos + 1;
+                while (current.get(pos) != item) {
+                    pos++;
+                }
+                lastPos = pos;
+            }
+        }
+        if (insertCount > 0) {
+            mAdapter.notifyItemRangeInserted(insertStart, insertCount);
+        }
+
+        for (AdapterItem item : mChangedItems) {
+            mAdapter.notifyItemChanged(newPositions.get(item));
+        }
+    }
+
+    /**
+     * Returns which of the values are part of a longest strictly increasing subsequence.
+     */
+    private static boolean[] findLongestIncreasingSubsequence(int[] values) {
+        boolean[] result = new boolean[values.length];
+        // tails[k] is the index of the smallest value ending an increasing subsequence of k + 1
+        int[] tails = new int[values.length];
+        int[] previous = new int[values.length];
+        int length = 0;
+        for (int i = 0; i < values.length; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            result[i] = true;
+        }
+        return result;
     }
 
     private List<AppInfo> getFiltersAppInfos() {
@@ -477,10 +727,15 @@ public class AlphabeticalAppsList {
     }
 
     /**
-     * Returns the cached section name for the given title, recomputing and updating the cache if
-     * the title has no cached section name.
+     * Returns the section name of the given app, as computed by the icon cache, or the cached
+     * section name for its title, recomputing and updating the cache if the title has none.
      */
-    private String getAndUpdateCachedSectionName(CharSequence title) {
+    private String getAndUpdateCachedSectionName(AppInfo info) {
+        if (info.sectionName != null) {
+            // Already computed by the icon cache along with the sort key
+            return info.sectionName;
+        }
+        CharSequence title = info.title;
         String sectionName = mCachedSectionNames.get(title);
         if (sectionName == null) {
             sectionName = mIndexer.computeSectionName(title);
@@ -562,12 +817,7 @@ public class AlphabeticalAppsList {
         public int appIndex = -1;
 
         public static AdapterItem asSectionBreak(int pos, SectionInfo section) {
-            AdapterItem item = new AdapterItem();
-            item.viewType = AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE;
-            item.position = pos;
-            item.sectionInfo = section;
-            section.sectionBreakItem = item;
-            return item;
+            return new AdapterItem().setSectionBreak(pos, section);
         }
 
         public static AdapterItem asPredictedApp(int pos, SectionInfo section, String sectionName,
@@ -579,15 +829,40 @@ public class AlphabeticalAppsList {
 
         public static AdapterItem asApp(int pos, SectionInfo section, String sectionName,
                                         int sectionAppIndex, AppInfo appInfo, int appIndex) {
-            AdapterItem item = new AdapterItem();
-            item.viewType = AllAppsGridAdapter.ICON_VIEW_TYPE;
-            item.position = pos;
-            item.sectionInfo = section;
-            item.sectionName = sectionName;
-            item.sectionAppIndex = sectionAppIndex;
-            item.appInfo = appInfo;
-            item.appIndex = appIndex;
-            return item;
+            return new AdapterItem().setApp(pos, section, sectionName, sectionAppIndex, appInfo,
+                    appIndex);
+        }
+
+        private AdapterItem setSectionBreak(int pos, SectionInfo section) {
+            reset();
+            viewType = AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE;
+            position = pos;
+            sectionInfo = section;
+            section.sectionBreakItem = this;
+            return this;
+        }
+
+        private AdapterItem setApp(int pos, SectionInfo section, String sectionName,
+                                   int sectionAppIndex, AppInfo appInfo, int appIndex) {
+            reset();
+            viewType = AllAppsGridAdapter.ICON_VIEW_TYPE;
+            position = pos;
+            sectionInfo = section;
+            this.sectionName = sectionName;
+            this.sectionAppIndex = sectionAppIndex;
+            this.appInfo = appInfo;
+            this.appIndex = appIndex;
+            return this;
+        }
+
+        private void reset() {
+            rowIndex = 0;
+            sectionInfo = null;
+            sectionName = null;
+            sectionAppIndex = -1;
+            rowAppIndex = 0;
+            appInfo = null;
+            appIndex = -1;
         }
     }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An incrementally maintained index of the words in the app titles, used for searching all apps.
+ * <p/>
+ * Every word of every title is added to a prefix trie, where each node knows the apps that have
+ * a word starting with that prefix, so looking up a query word only walks its characters. When a
+ * query extends the previous one, its results are narrowed down from the previous results
+ * instead of going through all the apps again.
+ * <p/>
+ * The index is updated from the UI thread and can be queried from any thread.
+ */
+public class AppSearchIndex {
+
+    static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+
+    private final Node mRoot = new Node();
+    // The words indexed for each app, needed to remove the app from the trie.
+    private final HashMap<ComponentKey, String[]> mAppWords = new HashMap<>();
+    // All the indexed apps, in the order in which results are returned.
+    private final ArrayList<ComponentKey> mOrderedApps = new ArrayList<>();
+
+    private String mLastQuery;
+    private ArrayList<ComponentKey> mLastResult;
+
+    static String[] splitWords(String text) {
+        return SPLIT_PATTERN.split(text.toLowerCase());
+    }
+
+    /**
+     * Adds or updates the given apps in the index.
+     */
+    public synchronized void addOrUpdateApps(List<AppInfo> apps) {
+        for (AppInfo app : apps) {
+            ComponentKey key = app.toComponentKey();
+            String[] words = splitWords(app.title == null ? "" : app.title.toString());
+            String[] oldWords = mAppWords.put(key, words);
+            if (oldWords != null) {
+                removeWords(key, oldWords);
+            }
+            for (String word : words) {
+                Node node = mRoot;
+                node.apps.add(key);
+                for (int i = 0; i < word.length(); i++) {
+                    Character c = word.charAt(i);
+                    Node child = node.children.get(c);
+                    if (child == null) {
+                        child = new Node();
+                        node.children.put(c, child);
+                    }
+                    node = child;
+                    node.apps.add(key);
+                }
+            }
+        }
+        invalidateLastResult();
+    }
+
+    /**
+     * Removes the given apps from the index.
+     */
+    public synchronized void removeApps(List<AppInfo> apps) {
+        for (AppInfo app : apps) {
+            ComponentKey key = app.toComponentKey();
+            String[] words = mAppWords.remove(key);
+            if (words != null) {
+                removeWords(key, words);
+            }
+        }
+        invalidateLastResult();
+    }
+
+    /**
+     * Removes all the apps from the index.
+     */
+    public synchronized void clear() {
+        mRoot.apps.clear();
+        mRoot.children.clear();
+        mAppWords.clear();
+        mOrderedApps.clear();
+        invalidateLastResult();
+    }
+
+    /**
+     * Sets the order in which the search results are returned.
+     */
+    public synchronized void setAppOrder(List<AppInfo> apps) {
+        mOrderedApps.clear();
+        for (AppInfo app : apps) {
+            mOrderedApps.add(app.toComponentKey());
+        }
+        invalidateLastResult();
+    }
+
+    /**
+     * Returns the apps which have, for each word of the query, a word in their title starting
+     * with it.
+     */
+    public synchronized ArrayList<ComponentKey> search(String query) {
+        final String queryLower = query.toLowerCase();
+        final String[] queryWords = SPLIT_PATTERN.split(queryLower);
+
+        // Adding characters to a query can only remove matches, so narrow down the last result.
+        List<ComponentKey> candidates = mOrderedApps;
+        if (mLastQuery != null && queryLower.startsWith(mLastQuery)) {
+            candidates = mLastResult;
+        }
+
+        ArrayList<HashSet<ComponentKey>> matches = new ArrayList<>(queryWords.length);
+        for (String word : queryWords) {
+            Node node = findNode(word);
+            if (node == null) {
+                candidates = null;
+                break;
+            }
+            matches.add(node.apps);
+        }
+
+        ArrayList<ComponentKey> result = new ArrayList<>();
+        if (candidates != null) {
+            for (ComponentKey key : candidates) {
+                if (containedInAll(key, matches)) {
+                    result.add(key);
+                }
+            }
+        }
+        mLastQuery = queryLower;
+        mLastResult = result;
+        return new ArrayList<>(result);
+    }
+
+    private Node findNode(String prefix) {
+        Node node = mRoot;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.children.get(prefix.charAt(i));
+        }
+        return node;
+    }
+
+    private static boolean containedInAll(ComponentKey key, List<HashSet<ComponentKey>> sets) {
+        for (int i = 0; i < sets.size(); i++) {
+            if (!sets.get(i).contains(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the app from every node on the path of each of its words, dropping the nodes that
+     * no longer lead to any app.
+     */
+    private void removeWords(ComponentKey key, String[] words) {
+        mRoot.apps.remove(key);
+        for (String word : words) {
+            Node node = mRoot;
+            for (int i = 0; i < word.length() && node != null; i++) {
+                Character c = word.charAt(i);
+                Node child = node.children.get(c);
+                if (child == null) {
+                    break;
+                }
+                child.apps.remove(key);
+                if (child.apps.isEmpty()) {
+                    node.children.remove(c);
+                    break;
+                }
+                node = child;
+            }
+        }
+    }
+
+    private void invalidateLastResult() {
+        mLastQuery = null;
+        mLastResult = null;
+    }
+
+    private static class Node {
+        final HashMap<Character, Node> children = new HashMap<>();
+        final HashSet<ComponentKey> apps = new HashSet<>();
+    }
+}
@@ -16,54 +16,136 @@
 package com.android.launcher3.allapps;
 
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.util.ComponentKey;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
- * The default search implementation.
+ * The default search implementation. Queries are matched on a background thread, and only the
+ * results of the latest query are delivered.
  */
 public class DefaultAppSearchAlgorithm {
 
-    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+    private static final String TAG = "DefaultAppSearchAlgorithm";
+    private static final boolean DEBUG = false;
+    private static final Pattern SPLIT_PATTERN = AppSearchIndex.SPLIT_PATTERN;
+    // Bursts of keystrokes within this delay are coalesced into a single search.
+    private static final int SEARCH_DEBOUNCE_MS = 30;
+    private static HandlerThread sSearchThread;
     protected final Handler mResultHandler;
+    private final Handler mSearchHandler;
     private final List<AppInfo> mApps;
+    private final AppSearchIndex mSearchIndex;
+    // Incremented for every new query and cancellation, so that stale work can be dropped.
+    private final AtomicInteger mQueryId = new AtomicInteger();
 
     public DefaultAppSearchAlgorithm(List<AppInfo> apps) {
+        this(apps, null);
+    }
+
+    /**
+     * @param searchIndex an index of {@param apps} used to look up titles, or null to match the
+     *                    query against every app.
+     */
+    public DefaultAppSearchAlgorithm(List<AppInfo> apps, AppSearchIndex searchIndex) {
         mApps = apps;
+        mSearchIndex = searchIndex;
         mResultHandler = new Handler();
+        mSearchHandler = new Handler(getSearchLooper());
+    }
+
+    private static synchronized Looper getSearchLooper() {
+        if (sSearchThread == null) {
+            sSearchThread = new HandlerThread("launcher-search");
+            sSearchThread.start();
+        }
+        return sSearchThread.getLooper();
     }
 
     public void cancel(boolean interruptActiveRequests) {
+        mSearchHandler.removeCallbacksAndMessages(null);
         if (interruptActiveRequests) {
+            mQueryId.incrementAndGet();
             mResultHandler.removeCallbacksAndMessages(null);
         }
     }
 
     public void doSearch(final String query,
                          final AllAppsSearchBarController.Callbacks callback) {
-        final ArrayList<ComponentKey> result = getTitleMatchResult(query);
-        mResultHandler.post(new Runnable() {
+        final int queryId = mQueryId.incrementAndGet();
+        final long requestTime = DEBUG ? SystemClock.uptimeMillis() : 0;
+        // Without an index the apps list is matched directly, so hand a copy of it to the
+        // search thread as the list is updated on this thread.
+        final List<AppInfo> apps = mSearchIndex == null ? new ArrayList<>(mApps) : null;
+
+        mSearchHandler.removeCallbacksAndMessages(null);
+        mSearchHandler.postDelayed(new Runnable() {
 
             @Override
             public void run() {
-                callback.onSearchResult(query, result);
+                if (queryId != mQueryId.get()) {
+                    return;
+                }
+                final long searchTime = DEBUG ? SystemClock.uptimeMillis() : 0;
+                final ArrayList<ComponentKey> result = getTitleMatchResult(query, apps, queryId);
+                if (result == null || queryId != mQueryId.get()) {
+                    return;
+                }
+                if (DEBUG) {
+                    Log.d(TAG, "Matching \"" + query + "\" took "
+                            + (SystemClock.uptimeMillis() - searchTime) + "ms");
+                }
+                mResultHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (queryId != mQueryId.get()) {
+                            return;
+                        }
+                        if (DEBUG) {
+                            Log.d(TAG, "Results for \"" + query + "\" delivered in "
+                                    + (SystemClock.uptimeMillis() - requestTime) + "ms");
+                        }
+                        callback.onSearchResult(query, result);
+                    }
+                });
             }
-        });
+        }, SEARCH_DEBOUNCE_MS);
     }
 
     protected ArrayList<ComponentKey> getTitleMatchResult(String query) {
+        return getTitleMatchResult(query, mApps, mQueryId.get());
+    }
+
+    /**
+     * Returns the apps matching {@param query}, or null if a newer query was requested while
+     * matching.
+     */
+    private ArrayList<ComponentKey> getTitleMatchResult(String query, List<AppInfo> apps,
+                                                        int queryId) {
+        if (mSearchIndex != null) {
+            return mSearchIndex.search(query);
+        }
+
         // Do an intersection of the words in the query and each title, and filter out all the
         // apps that don't match all of the words in the query.
         final String queryTextLower = query.toLowerCase();
         final String[] queryWords = SPLIT_PATTERN.split(queryTextLower);
 
         final ArrayList<ComponentKey> result = new ArrayList<>();
-        for (AppInfo info : mApps) {
+        for (AppInfo info : apps) {
+            if (queryId != mQueryId.get()) {
+                return null;
+            }
             if (matches(info, queryWords)) {
                 result.add(info.toComponentKey());
             }
@@ -118,7 +118,7 @@ final class DefaultAppSearchController extends AllAppsSearchBarController
 
     @Override
     protected void onInitialize() {
-        mSearchManager = new DefaultAppSearchAlgorithm(mApps.getApps());
+        mSearchManager = new DefaultAppSearchAlgorithm(mApps.getApps(), mApps.getSearchIndex());
     }
 
     @Override
@@ -20,10 +20,12 @@ import android.content.Context;
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.ItemInfo;
 import com.android.launcher3.Stats;
+import com.android.launcher3.Utilities;
 import com.android.launcher3.util.Thunk;
 
 import java.text.Collator;
 import java.util.Comparator;
+import java.util.HashMap;
 
 /**
  * Class to manage access to an app name comparator.
@@ -34,6 +36,9 @@ public class AppNameComparator {
     private final Collator mCollator;
     private final AbstractUserComparator<ItemInfo> mAppInfoComparator;
     private final Comparator<String> mSectionNameComparator;
+    // Sort keys computed for items that do not have one from the icon cache.
+    @Thunk
+    final HashMap<ItemInfo, byte[]> mComputedSortKeys = new HashMap<>();
 
     public AppNameComparator(Context context) {
         mCollator = Collator.getInstance();
@@ -41,11 +46,11 @@ public class AppNameComparator {
 
             @Override
             public final int compare(ItemInfo a, ItemInfo b) {
+                AppInfo aAppInfo = a instanceof AppInfo ? (AppInfo) a : null;
+                AppInfo bAppInfo = b instanceof AppInfo ? (AppInfo) b : null;
                 // Order by the title in the current locale
-                int result = compareTitles(a.title.toString(), b.title.toString());
-                if (result == 0 && a instanceof AppInfo && b instanceof AppInfo) {
-                    AppInfo aAppInfo = (AppInfo) a;
-                    AppInfo bAppInfo = (AppInfo) b;
+                int result = compareSortKeys(getSortKey(a), getSortKey(b));
+                if (result == 0 && aAppInfo != null && bAppInfo != null) {
                     // If two apps have the same title, then order by the component name
                     result = aAppInfo.componentName.compareTo(bAppInfo.componentName);
                     if (result == 0) {
@@ -87,10 +92,21 @@ public class AppNameComparator {
 
     public static Comparator<AppInfo> getLaunchCountComparator(final Stats stats) {
         final Collator collator = Collator.getInstance();
+        // Looking up a launch count flattens the intent, so do it once per app and sort.
+        final HashMap<AppInfo, Integer> launchCounts = new HashMap<>();
         return new Comparator<AppInfo>() {
+            private int getLaunchCount(AppInfo app) {
+                Integer count = launchCounts.get(app);
+                if (count == null) {
+                    count = stats.launchCount(app.intent);
+                    launchCounts.put(app, count);
+                }
+                return count;
+            }
+
             @Override
             public int compare(AppInfo a, AppInfo b) {
-                int result = stats.launchCount(b.intent) - stats.launchCount(a.intent);
+                int result = getLaunchCount(b) - getLaunchCount(a);
                 if (result == 0) {
                     result = collator.compare(a.title.toString().trim(),
                             b.title.toString().trim());
@@ -127,6 +143,8 @@ public class AppNameComparator {
     public Comparator<ItemInfo> getAppInfoComparator() {
         // Clear the user serial cache so that we get serials as needed in the comparator
         mAppInfoComparator.clearUserCache();
+        // Likewise for the sort keys, which depend on the titles and the locale
+        mComputedSortKeys.clear();
         return mAppInfoComparator;
     }
 
@@ -137,6 +155,53 @@ public class AppNameComparator {
         return mSectionNameComparator;
     }
 
+    /**
+     * Returns a key for {@param title} such that comparing the keys with
+     * {@link #compareSortKeys} orders the titles like {@link #compareTitles} does, for the
+     * locale of {@param collator}.
+     */
+    public static byte[] getSortKey(Collator collator, String title) {
+        byte[] collationKey = collator.getCollationKey(title).toByteArray();
+        byte[] key = new byte[collationKey.length + 1];
+        // Titles that don't start with a linguistic letter or digit go last
+        boolean startsWithLetter = (title.length() > 0) &&
+                Character.isLetterOrDigit(title.codePointAt(0));
+        key[0] = (byte) (startsWithLetter ? 0 : 1);
+        System.arraycopy(collationKey, 0, key, 1, collationKey.length);
+        return key;
+    }
+
+    /**
+     * Returns the sort key of {@param info}, the one stored by the icon cache for apps, or else
+     * one computed the same way the icon cache does.
+     */
+    @Thunk
+    byte[] getSortKey(ItemInfo info) {
+        if (info instanceof AppInfo && ((AppInfo) info).sortKey != null) {
+            return ((AppInfo) info).sortKey;
+        }
+        byte[] key = mComputedSortKeys.get(info);
+        if (key == null) {
+            key = getSortKey(mCollator, Utilities.trim(info.title));
+            mComputedSortKeys.put(info, key);
+        }
+        return key;
+    }
+
+    /**
+     * Compares two keys returned by {@link #getSortKey}, as unsigned bytes.
+     */
+    public static int compareSortKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int result = (a[i] & 0xff) - (b[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return a.length - b.length;
+    }
+
     /**
      * Compares two titles with the same return value semantics as Comparator.
      */
@@ -30,7 +30,7 @@ public class WidgetsModel {
     private static final boolean DEBUG = false;
     private final AppWidgetManagerCompat mAppWidgetMgr;
     private final Comparator mWidgetAndShortcutNameComparator;
-    private final Comparator mAppNameComparator;
+    private final AppNameComparator mAppNameComparator;
     private final IconCache mIconCache;
     private final AppFilter mAppFilter;
     /* List of packages that is tracked by this model. */
@@ -43,7 +43,7 @@ public class WidgetsModel {
     public WidgetsModel(Context context, IconCache iconCache, AppFilter appFilter) {
         mAppWidgetMgr = AppWidgetManagerCompat.getInstance(context);
         mWidgetAndShortcutNameComparator = new WidgetsAndShortcutNameComparator(context);
-        mAppNameComparator = (new AppNameComparator(context)).getAppInfoComparator();
+        mAppNameComparator = new AppNameComparator(context);
         mIconCache = iconCache;
         mAppFilter = appFilter;
         mIndexer = new AlphabeticIndexCompat(context);
@@ -147,7 +147,7 @@ public class WidgetsModel {
         }
 
         // sort.
-        Collections.sort(mPackageItemInfos, mAppNameComparator);
+        Collections.sort(mPackageItemInfos, mAppNameComparator.getAppInfoComparator());
         for (PackageItemInfo p : mPackageItemInfos) {
             Collections.sort(mWidgetsList.get(p), mWidgetAndShortcutNameComparator);
         }
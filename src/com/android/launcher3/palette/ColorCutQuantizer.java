@@ -18,7 +18,6 @@ package com.android.launcher3.palette;
 
 import android.graphics.Bitmap;
 import android.graphics.Color;
-import android.util.SparseIntArray;
 
 import com.android.launcher3.palette.Palette.Swatch;
 
@@ -41,6 +40,10 @@ import java.util.PriorityQueue;
  * have roughly the same population, where this quantizer divides boxes based on their color volume.
  * This means that the color space is divided into distinct colors, rather than representative
  * colors.
+ * <p/>
+ * The boxes are built from the 5-5-5 quantized colors of a {@link ColorHistogram}. The average
+ * color of each box is then computed from the original pixels, so a box holding a single color
+ * yields exactly that color.
  *
  * @hide
  */
@@ -62,9 +65,13 @@ final class ColorCutQuantizer {
         }
     };
     private final float[] mTempHsl = new float[3];
+    // Quantized colors, see ColorHistogram#quantizeFromRgb888
     private final int[] mColors;
-    private final SparseIntArray mColorPopulations;
+    private final int[] mHistogram;
     private final List<Swatch> mQuantizedColors;
+    // Scratch space for the counting sort in Vbox#findSplitPoint()
+    private final int[] mSortBuffer;
+    private final int[] mComponentCounts = new int[ColorHistogram.QUANTIZE_WORD_MASK + 2];
 
     /**
      * Private constructor.
@@ -75,34 +82,31 @@ final class ColorCutQuantizer {
     private ColorCutQuantizer(ColorHistogram colorHistogram, int maxColors) {
         final int rawColorCount = colorHistogram.getNumberOfColors();
         final int[] rawColors = colorHistogram.getColors();
-        final int[] rawColorCounts = colorHistogram.getColorCounts();
-
-        // First, lets pack the populations into a SparseIntArray so that they can be easily
-        // retrieved without knowing a color's index
-        mColorPopulations = new SparseIntArray(rawColorCount);
-        for (int i = 0; i < rawColors.length; i++) {
-            mColorPopulations.append(rawColors[i], rawColorCounts[i]);
-        }
+        mHistogram = colorHistogram.getHistogram();
 
         // Now go through all of the colors and keep those which we do not want to ignore
         mColors = new int[rawColorCount];
         int validColorCount = 0;
-        for (int color : rawColors) {
-            if (!shouldIgnoreColor(color)) {
+        for (int i = 0; i < rawColorCount; i++) {
+            final int color = rawColors[i];
+            if (!shouldIgnoreColor(ColorHistogram.approximateToRgb888(color))) {
                 mColors[validColorCount++] = color;
             }
         }
+        mSortBuffer = new int[validColorCount];
 
+        final Collection<Vbox> boxes;
         if (validColorCount <= maxColors) {
-            // The image has fewer colors than the maximum requested, so just return the colors
-            mQuantizedColors = new ArrayList<Swatch>();
-            for (final int color : mColors) {
-                mQuantizedColors.add(new Swatch(color, mColorPopulations.get(color)));
+            // The image has fewer colors than the maximum requested, so each color gets a box
+            boxes = new ArrayList<Vbox>(validColorCount);
+            for (int i = 0; i < validColorCount; i++) {
+                boxes.add(new Vbox(i, i));
             }
         } else {
             // We need use quantization to reduce the number of colors
-            mQuantizedColors = quantizePixels(validColorCount - 1, maxColors);
+            boxes = quantizePixels(validColorCount - 1, maxColors);
         }
+        mQuantizedColors = generateAverageColors(boxes, colorHistogram);
     }
 
     /**
@@ -112,13 +116,12 @@ final class ColorCutQuantizer {
      * @param maxColors The maximum number of colors that should be in the result palette.
      */
     static ColorCutQuantizer fromBitmap(Bitmap bitmap, int maxColors) {
-        final int width = bitmap.getWidth();
-        final int height = bitmap.getHeight();
-
-        final int[] pixels = new int[width * height];
-        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        return new ColorCutQuantizer(new ColorHistogram(pixels), maxColors);
+        final ColorHistogram histogram = ColorHistogram.obtain(bitmap);
+        try {
+            return new ColorCutQuantizer(histogram, maxColors);
+        } finally {
+            histogram.recycle();
+        }
     }
 
     private static boolean shouldIgnoreColor(Swatch color) {
@@ -157,7 +160,7 @@ final class ColorCutQuantizer {
         return mQuantizedColors;
     }
 
-    private List<Swatch> quantizePixels(int maxColorIndex, int maxColors) {
+    private Collection<Vbox> quantizePixels(int maxColorIndex, int maxColors) {
         // Create the priority queue which is sorted by volume descending. This means we always
         // split the largest box in the queue
         final PriorityQueue<Vbox> pq = new PriorityQueue<Vbox>(maxColors, VBOX_COMPARATOR_VOLUME);
@@ -169,8 +172,7 @@ final class ColorCutQuantizer {
         // more boxes to split
         splitBoxes(pq, maxColors);
 
-        // Finally, return the average colors of the color boxes
-        return generateAverageColors(pq);
+        return pq;
     }
 
     /**
@@ -198,10 +200,53 @@ final class ColorCutQuantizer {
         }
     }
 
-    private List<Swatch> generateAverageColors(Collection<Vbox> vboxes) {
-        ArrayList<Swatch> colors = new ArrayList<Swatch>(vboxes.size());
+    /**
+     * Computes the average color of each box from the original pixels, which is cheaper than
+     * keeping per color sums in the histogram.
+     */
+    private List<Swatch> generateAverageColors(Collection<Vbox> vboxes,
+            ColorHistogram colorHistogram) {
+        final int boxCount = vboxes.size();
+        final int[] redSums = new int[boxCount];
+        final int[] greenSums = new int[boxCount];
+        final int[] blueSums = new int[boxCount];
+        final int[] populations = new int[boxCount];
+
+        // The populations are not needed anymore, reuse the histogram to map each quantized color
+        // to the index of its box. Ignored colors map to -1.
+        final int[] rawColors = colorHistogram.getColors();
+        for (int i = colorHistogram.getNumberOfColors() - 1; i >= 0; i--) {
+            mHistogram[rawColors[i]] = -1;
+        }
+        int boxIndex = 0;
         for (Vbox vbox : vboxes) {
-            Swatch color = vbox.getAverageColor();
+            for (int i = vbox.mLowerIndex; i <= vbox.mUpperIndex; i++) {
+                mHistogram[mColors[i]] = boxIndex;
+            }
+            boxIndex++;
+        }
+
+        final int[] pixels = colorHistogram.getPixels();
+        for (int i = colorHistogram.getPixelCount() - 1; i >= 0; i--) {
+            final int pixel = pixels[i];
+            final int box = mHistogram[ColorHistogram.quantizeFromRgb888(pixel)];
+            if (box >= 0) {
+                redSums[box] += Color.red(pixel);
+                greenSums[box] += Color.green(pixel);
+                blueSums[box] += Color.blue(pixel);
+                populations[box]++;
+            }
+        }
+
+        ArrayList<Swatch> colors = new ArrayList<Swatch>(boxCount);
+        for (int i = 0; i < boxCount; i++) {
+            final int population = populations[i];
+            if (population == 0) {
+                continue;
+            }
+            Swatch color = new Swatch(Math.round(redSums[i] / (float) population),
+                    Math.round(greenSums[i] / (float) population),
+                    Math.round(blueSums[i] / (float) population), population);
             if (!shouldIgnoreColor(color)) {
                 // As we're averaging a color box, we can still get colors which we do not want, so
                 // we check again here
@@ -211,31 +256,15 @@ final class ColorCutQuantizer {
         return colors;
     }
 
-    /**
-     * Modify the significant octet in a packed color int. Allows sorting based on the value of a
-     * single color component.
-     *
-     * @see Vbox#findSplitPoint()
-     */
-    private void modifySignificantOctet(final int dimension, int lowerIndex, int upperIndex) {
+    private static int getComponent(int dimension, int quantizedColor) {
         switch (dimension) {
             case COMPONENT_RED:
-                // Already in RGB, no need to do anything
-                break;
+            default:
+                return ColorHistogram.quantizedRed(quantizedColor);
             case COMPONENT_GREEN:
-                // We need to do a RGB to GRB swap, or vice-versa
-                for (int i = lowerIndex; i <= upperIndex; i++) {
-                    final int color = mColors[i];
-                    mColors[i] = Color.rgb((color >> 8) & 0xFF, (color >> 16) & 0xFF, color & 0xFF);
-                }
-                break;
+                return ColorHistogram.quantizedGreen(quantizedColor);
             case COMPONENT_BLUE:
-                // We need to do a RGB to BGR swap, or vice-versa
-                for (int i = lowerIndex; i <= upperIndex; i++) {
-                    final int color = mColors[i];
-                    mColors[i] = Color.rgb(color & 0xFF, (color >> 8) & 0xFF, (color >> 16) & 0xFF);
-                }
-                break;
+                return ColorHistogram.quantizedBlue(quantizedColor);
         }
     }
 
@@ -280,14 +309,14 @@ final class ColorCutQuantizer {
          */
         void fitBox() {
             // Reset the min and max to opposite values
-            mMinRed = mMinGreen = mMinBlue = 0xFF;
+            mMinRed = mMinGreen = mMinBlue = ColorHistogram.QUANTIZE_WORD_MASK;
             mMaxRed = mMaxGreen = mMaxBlue = 0x0;
 
             for (int i = mLowerIndex; i <= mUpperIndex; i++) {
                 final int color = mColors[i];
-                final int r = Color.red(color);
-                final int g = Color.green(color);
-                final int b = Color.blue(color);
+                final int r = ColorHistogram.quantizedRed(color);
+                final int g = ColorHistogram.quantizedGreen(color);
+                final int b = ColorHistogram.quantizedBlue(color);
                 if (r > mMaxRed) {
                     mMaxRed = r;
                 }
@@ -351,7 +380,7 @@ final class ColorCutQuantizer {
         /**
          * Finds the point within this box's lowerIndex and upperIndex index of where to split.
          * <p/>
-         * This is calculated by finding the longest color dimension, and then sorting the
+         * This is calculated by finding the longest color dimension, and then ordering the
          * sub-array based on that dimension value in each color. The colors are then iterated over
          * until a color is found with at least the midpoint of the whole box's dimension midpoint.
          *
@@ -360,68 +389,33 @@ final class ColorCutQuantizer {
         int findSplitPoint() {
             final int longestDimension = getLongestColorDimension();
 
-            // We need to sort the colors in this box based on the longest color dimension.
-            // As we can't use a Comparator to define the sort logic, we modify each color so that
-            // it's most significant is the desired dimension
-            modifySignificantOctet(longestDimension, mLowerIndex, mUpperIndex);
-
-            // Now sort... Arrays.sort uses a exclusive toIndex so we need to add 1
-            Arrays.sort(mColors, mLowerIndex, mUpperIndex + 1);
-
-            // Now revert all of the colors so that they are packed as RGB again
-            modifySignificantOctet(longestDimension, mLowerIndex, mUpperIndex);
-
-            final int dimensionMidPoint = midPoint(longestDimension);
-
+            // Order the colors in this box by the longest color dimension. A component only has
+            // 32 values, so a counting sort does it in linear time.
+            final int[] counts = mComponentCounts;
+            Arrays.fill(counts, 0);
+            for (int i = mLowerIndex; i <= mUpperIndex; i++) {
+                counts[getComponent(longestDimension, mColors[i]) + 1]++;
+            }
+            for (int i = 1; i < counts.length; i++) {
+                counts[i] += counts[i - 1];
+            }
             for (int i = mLowerIndex; i <= mUpperIndex; i++) {
                 final int color = mColors[i];
-
-                switch (longestDimension) {
-                    case COMPONENT_RED:
-                        if (Color.red(color) >= dimensionMidPoint) {
-                            return i;
-                        }
-                        break;
-                    case COMPONENT_GREEN:
-                        if (Color.green(color) >= dimensionMidPoint) {
-                            return i;
-                        }
-                        break;
-                    case COMPONENT_BLUE:
-                        if (Color.blue(color) > dimensionMidPoint) {
-                            return i;
-                        }
-                        break;
-                }
+                mSortBuffer[counts[getComponent(longestDimension, color)]++] = color;
             }
+            System.arraycopy(mSortBuffer, 0, mColors, mLowerIndex, getColorCount());
 
-            return mLowerIndex;
-        }
-
-        /**
-         * @return the average color of this box.
-         */
-        Swatch getAverageColor() {
-            int redSum = 0;
-            int greenSum = 0;
-            int blueSum = 0;
-            int totalPopulation = 0;
+            final int dimensionMidPoint = midPoint(longestDimension);
 
             for (int i = mLowerIndex; i <= mUpperIndex; i++) {
-                final int color = mColors[i];
-                final int colorPopulation = mColorPopulations.get(color);
-
-                totalPopulation += colorPopulation;
-                redSum += colorPopulation * Color.red(color);
-                greenSum += colorPopulation * Color.green(color);
-                blueSum += colorPopulation * Color.blue(color);
+                final int component = getComponent(longestDimension, mColors[i]);
+                if (longestDimension == COMPONENT_BLUE
+                        ? component > dimensionMidPoint : component >= dimensionMidPoint) {
+                    return i;
+                }
             }
 
-            final int redAverage = Math.round(redSum / (float) totalPopulation);
-            final int greenAverage = Math.round(greenSum / (float) totalPopulation);
-            final int blueAverage = Math.round(blueSum / (float) totalPopulation);
-
-            return new Swatch(redAverage, greenAverage, blueAverage, totalPopulation);
+            return mLowerIndex;
         }
 
         /**
@@ -16,112 +16,163 @@
 
 package com.android.launcher3.palette;
 
-import java.util.Arrays;
+import android.graphics.Bitmap;
 
 /**
  * Class which provides a histogram for RGB values.
+ * <p/>
+ * Colors are quantized to 5 bits per component, so the histogram is a fixed array of
+ * {@link #HISTOGRAM_SIZE} buckets which is filled in a single pass over the pixels, without
+ * sorting them. The buffers are kept per thread and reused for every bitmap; an instance is
+ * obtained with {@link #obtain(Bitmap)} and must be given back with {@link #recycle()}.
  *
  * @hide
  */
 final class ColorHistogram {
 
-    private final int[] mColors;
-    private final int[] mColorCounts;
-    private final int mNumberColors;
+    static final int QUANTIZE_WORD_WIDTH = 5;
+    static final int QUANTIZE_WORD_MASK = (1 << QUANTIZE_WORD_WIDTH) - 1;
+    static final int HISTOGRAM_SIZE = 1 << (QUANTIZE_WORD_WIDTH * 3);
+
+    private static final ThreadLocal<ColorHistogram> sThreadHistogram =
+            new ThreadLocal<ColorHistogram>() {
+                @Override
+                protected ColorHistogram initialValue() {
+                    return new ColorHistogram();
+                }
+            };
 
     /**
-     * A new {@link ColorHistogram} instance.
-     *
-     * @param pixels array of image contents
+     * Population of each quantized color. Only the entries of {@link #getColors()} are set, and
+     * they are cleared again by {@link #recycle()}.
      */
-    ColorHistogram(final int[] pixels) {
-        // Sort the pixels to enable counting below
-        Arrays.sort(pixels);
-
-        // Count number of distinct colors
-        mNumberColors = countDistinctColors(pixels);
-
-        // Create arrays
-        mColors = new int[mNumberColors];
-        mColorCounts = new int[mNumberColors];
-
-        // Finally count the frequency of each color
-        countFrequencies(pixels);
+    private final int[] mHistogram = new int[HISTOGRAM_SIZE];
+    private int[] mPixels = new int[0];
+    private int mPixelCount;
+    private int[] mColors = new int[256];
+    private int mNumberColors;
+    private boolean mInUse;
+
+    private ColorHistogram() {
     }
 
-    private static int countDistinctColors(final int[] pixels) {
-        if (pixels.length < 2) {
-            // If we have less than 2 pixels we can stop here
-            return pixels.length;
+    /**
+     * Returns the histogram of {@param bitmap}, using the buffers of the calling thread when they
+     * are free.
+     */
+    static ColorHistogram obtain(Bitmap bitmap) {
+        ColorHistogram histogram = sThreadHistogram.get();
+        if (histogram.mInUse) {
+            histogram = new ColorHistogram();
         }
+        histogram.mInUse = true;
+        histogram.fill(bitmap);
+        return histogram;
+    }
 
-        // If we have at least 2 pixels, we have a minimum of 1 color...
-        int colorCount = 1;
-        int currentColor = pixels[0];
+    /**
+     * Clears the histogram so that the buffers can be used for the next bitmap.
+     */
+    void recycle() {
+        for (int i = 0; i < mNumberColors; i++) {
+            mHistogram[mColors[i]] = 0;
+        }
+        mNumberColors = 0;
+        mPixelCount = 0;
+        mInUse = false;
+    }
 
-        // Now iterate from the second pixel to the end, counting distinct colors
-        for (int i = 1; i < pixels.length; i++) {
-            // If we encounter a new color, increase the population
-            if (pixels[i] != currentColor) {
-                currentColor = pixels[i];
-                colorCount++;
+    private void fill(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        mPixelCount = width * height;
+        if (mPixels.length < mPixelCount) {
+            mPixels = new int[mPixelCount];
+        }
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+
+        final int[] histogram = mHistogram;
+        final int[] pixels = mPixels;
+        for (int i = 0; i < mPixelCount; i++) {
+            final int quantizedColor = quantizeFromRgb888(pixels[i]);
+            if (histogram[quantizedColor]++ == 0) {
+                // First time we see this color, remember it
+                if (mNumberColors == mColors.length) {
+                    int[] colors = new int[Math.min(HISTOGRAM_SIZE, mColors.length * 2)];
+                    System.arraycopy(mColors, 0, colors, 0, mNumberColors);
+                    mColors = colors;
+                }
+                mColors[mNumberColors++] = quantizedColor;
             }
         }
-
-        return colorCount;
     }
 
     /**
-     * @return number of distinct colors in the image.
+     * @return number of distinct quantized colors in the image.
      */
     int getNumberOfColors() {
         return mNumberColors;
     }
 
     /**
-     * @return an array containing all of the distinct colors in the image.
+     * @return an array whose first {@link #getNumberOfColors()} entries are the distinct
+     * quantized colors in the image.
      */
     int[] getColors() {
         return mColors;
     }
 
     /**
-     * @return an array containing the frequency of a distinct colors within the image.
+     * @return the population of each quantized color, indexed by the quantized color.
      */
-    int[] getColorCounts() {
-        return mColorCounts;
+    int[] getHistogram() {
+        return mHistogram;
     }
 
-    private void countFrequencies(final int[] pixels) {
-        if (pixels.length == 0) {
-            return;
-        }
+    /**
+     * @return the pixels of the image, only the first {@link #getPixelCount()} are valid.
+     */
+    int[] getPixels() {
+        return mPixels;
+    }
 
-        int currentColorIndex = 0;
-        int currentColor = pixels[0];
+    int getPixelCount() {
+        return mPixelCount;
+    }
 
-        mColors[currentColorIndex] = currentColor;
-        mColorCounts[currentColorIndex] = 1;
+    /**
+     * Quantizes a packed ARGB color to 5 bits per RGB component. Alpha is ignored.
+     */
+    static int quantizeFromRgb888(int color) {
+        final int r = (color >> (16 + 8 - QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
+        final int g = (color >> (8 + 8 - QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
+        final int b = (color >> (8 - QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
+        return (r << (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH)) | (g << QUANTIZE_WORD_WIDTH) | b;
+    }
 
-        if (pixels.length == 1) {
-            // If we only have one pixel, we can stop here
-            return;
-        }
+    static int quantizedRed(int color) {
+        return (color >> (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
+    }
 
-        // Now iterate from the second pixel to the end, population distinct colors
-        for (int i = 1; i < pixels.length; i++) {
-            if (pixels[i] == currentColor) {
-                // We've hit the same color as before, increase population
-                mColorCounts[currentColorIndex]++;
-            } else {
-                // We've hit a new color, increase index
-                currentColor = pixels[i];
-
-                currentColorIndex++;
-                mColors[currentColorIndex] = currentColor;
-                mColorCounts[currentColorIndex] = 1;
-            }
-        }
+    static int quantizedGreen(int color) {
+        return (color >> QUANTIZE_WORD_WIDTH) & QUANTIZE_WORD_MASK;
+    }
+
+    static int quantizedBlue(int color) {
+        return color & QUANTIZE_WORD_MASK;
+    }
+
+    /**
+     * @return an opaque color in the middle of the range covered by a quantized color.
+     */
+    static int approximateToRgb888(int color) {
+        return 0xFF000000
+                | (expand(quantizedRed(color)) << 16)
+                | (expand(quantizedGreen(color)) << 8)
+                | expand(quantizedBlue(color));
     }
 
+    private static int expand(int value) {
+        return (value << (8 - QUANTIZE_WORD_WIDTH)) | (1 << (8 - QUANTIZE_WORD_WIDTH - 1));
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of mutable bitmaps which can be reused instead of allocating new ones, grouped by
+ * width, height and config. The pool holds at most a given number of bytes; when it is full, the
+ * bitmaps which were given back the longest time ago are dropped first.
+ * <p/>
+ * This class is thread safe.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private final long mMaxBytes;
+    // All the pooled bitmaps, least recently given back first.
+    private final LinkedHashMap<Bitmap, Key> mLru = new LinkedHashMap<>();
+    // The pooled bitmaps for each size, most recently given back last.
+    private final HashMap<Key, ArrayList<Bitmap>> mGroups = new HashMap<>();
+    private long mBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a pooled bitmap of the given size and config, or a new one if there is none. The
+     * content of a pooled bitmap is undefined, callers are expected to draw over all of it or to
+     * clear it.
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = poll(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns a pooled bitmap of the given size and config, or null if there is none.
+     */
+    public synchronized Bitmap poll(int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> group = mGroups.get(new Key(width, height, config));
+        if (group == null || group.isEmpty()) {
+            mMissCount++;
+            return null;
+        }
+        Bitmap bitmap = group.remove(group.size() - 1);
+        mLru.remove(bitmap);
+        mBytes -= sizeOf(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Gives back a bitmap which is no longer used, so that it can be handed out again. Bitmaps
+     * which cannot be reused are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || mLru.containsKey(bitmap)) {
+            return;
+        }
+        long size = sizeOf(bitmap);
+        if (size > mMaxBytes) {
+            return;
+        }
+        Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> group = mGroups.get(key);
+        if (group == null) {
+            group = new ArrayList<>();
+            mGroups.put(key, group);
+        }
+        group.add(bitmap);
+        mLru.put(bitmap, key);
+        mBytes += size;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drops all the pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Bitmap, Key>> iterator = mLru.entrySet().iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Bitmap, Key> eldest = iterator.next();
+            iterator.remove();
+            Bitmap bitmap = eldest.getKey();
+            ArrayList<Bitmap> group = mGroups.get(eldest.getValue());
+            group.remove(bitmap);
+            if (group.isEmpty()) {
+                mGroups.remove(eldest.getValue());
+            }
+            mBytes -= sizeOf(bitmap);
+            mEvictionCount++;
+        }
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    public synchronized void dumpState(String tag) {
+        Log.d(tag, TAG + " size=" + mLru.size() + " bytes=" + mBytes + "/" + mMaxBytes
+                + " hits=" + mHitCount + " misses=" + mMissCount
+                + " evictions=" + mEvictionCount);
+    }
+
+    private static final class Key {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+
+        Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + (config == null ? 0 : config.hashCode());
+        }
+    }
+}
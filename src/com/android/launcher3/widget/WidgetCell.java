@@ -195,6 +195,28 @@ public class WidgetCell extends LinearLayout implements OnLayoutChangeListener {
         mActiveRequest = mWidgetPreviewLoader.getPreview(mInfo, size[0], size[1], this);
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mActiveRequest != null && mActiveRequest.isCancelled()) {
+            // The request was dropped while too many previews were pending.
+            mActiveRequest = null;
+        }
+        if (mActiveRequest == null && mInfo != null && mWidgetPreviewLoader != null) {
+            ensurePreview();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // The row was scrolled off screen, let the visible cells get their previews first.
+        if (mActiveRequest != null && mActiveRequest.isPending()) {
+            mActiveRequest.cleanup();
+            mActiveRequest = null;
+        }
+    }
+
     @Override
     public void onLayoutChange(View v, int left, int top, int right, int bottom, int oldLeft,
                                int oldTop, int oldRight, int oldBottom) {
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.exif;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+/**
+ * Compares reading the orientation of JPEGs with {@link ExifInterface#getRotationFromJpeg} to
+ * parsing all their exif data with {@link ExifInterface#readExif(java.io.InputStream)}, over a
+ * corpus of generated JPEGs with and without exif data, orientation tag and thumbnail.
+ */
+@LargeTest
+public class ExifOrientationBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "ExifOrientationBenchmarkTest";
+    private static final int CORPUS_SIZE = 24;
+    private static final int ITERATIONS = 200;
+    private static final int[] ROTATIONS = new int[]{0, 90, 180, 270};
+
+    private final ArrayList<byte[]> mCorpus = new ArrayList<>();
+    private final ArrayList<Integer> mRotations = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            int size = 64 + 32 * i;
+            Bitmap bitmap = Bitmap.createBitmap(size, size / 2 + 16, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(Color.rgb(i * 10, 255 - i * 10, 128));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int rotation = 0;
+            if (i % 8 == 7) {
+                // No exif data at all
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            } else {
+                ExifInterface ei = new ExifInterface();
+                ei.setTag(ei.buildTag(ExifInterface.TAG_MAKE, "SlimRoms"));
+                ei.setTag(ei.buildTag(ExifInterface.TAG_MODEL, "Benchmark " + i));
+                ei.setTag(ei.buildTag(ExifInterface.TAG_SOFTWARE, "ExifOrientationBenchmark"));
+                ei.setTag(ei.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION, "Image " + i));
+                ei.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1000L * i,
+                        TimeZone.getDefault());
+                ei.setTag(ei.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 60)));
+                ei.setTag(ei.buildTag(ExifInterface.TAG_F_NUMBER, new Rational(28, 10)));
+                ei.addGpsTags(52.5 + i, 13.4 - i);
+                if (i % 6 != 5) {
+                    rotation = ROTATIONS[i % ROTATIONS.length];
+                    ei.setTag(ei.buildTag(ExifInterface.TAG_ORIENTATION,
+                            ExifInterface.getOrientationValueForRotation(rotation)));
+                }
+                if (i % 2 == 0) {
+                    ei.setCompressedThumbnail(Bitmap.createScaledBitmap(bitmap, 32, 16, true));
+                }
+                ei.writeExif(bitmap, out);
+            }
+            mCorpus.add(out.toByteArray());
+            mRotations.add(rotation);
+        }
+    }
+
+    public void testRotationMatchesFullParse() throws IOException {
+        for (int i = 0; i < mCorpus.size(); i++) {
+            byte[] jpeg = mCorpus.get(i);
+            int expected = mRotations.get(i);
+            assertEquals("Full parse of image " + i, expected, readFull(jpeg));
+            assertEquals("Buffer of image " + i, expected,
+                    ExifInterface.getRotationFromJpeg(ByteBuffer.wrap(jpeg)));
+            assertEquals("Stream of image " + i, expected,
+                    ExifInterface.getRotationFromJpeg(new ByteArrayInputStream(jpeg)));
+        }
+    }
+
+    public void testRotationTime() throws IOException {
+        // Warm up, so that the first run does not pay for class loading and JIT.
+        runFull(ITERATIONS / 10);
+        runBuffer(ITERATIONS / 10);
+        runStream(ITERATIONS / 10);
+
+        long full = runFull(ITERATIONS);
+        long buffer = runBuffer(ITERATIONS);
+        long stream = runStream(ITERATIONS);
+        int reads = ITERATIONS * mCorpus.size();
+        Log.d(TAG, reads + " reads: full parse " + full + "ms, header-only buffer " + buffer
+                + "ms, header-only stream " + stream + "ms");
+    }
+
+    private long runFull(int iterations) {
+        long start = SystemClock.uptimeMillis();
+        for (int n = 0; n < iterations; n++) {
+            for (byte[] jpeg : mCorpus) {
+                readFull(jpeg);
+            }
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    private long runBuffer(int iterations) {
+        long start = SystemClock.uptimeMillis();
+        for (int n = 0; n < iterations; n++) {
+            for (byte[] jpeg : mCorpus) {
+                ExifInterface.getRotationFromJpeg(ByteBuffer.wrap(jpeg));
+            }
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    private long runStream(int iterations) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        for (int n = 0; n < iterations; n++) {
+            for (byte[] jpeg : mCorpus) {
+                ExifInterface.getRotationFromJpeg(new ByteArrayInputStream(jpeg));
+            }
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    private static int readFull(byte[] jpeg) {
+        ExifInterface ei = new ExifInterface();
+        try {
+            ei.readExif(jpeg);
+        } catch (IOException e) {
+            // No exif data
+            return 0;
+        }
+        Integer ori = ei.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+        return ori == null ? 0 : ExifInterface.getRotationForOrientationValue(ori.shortValue());
+    }
+}
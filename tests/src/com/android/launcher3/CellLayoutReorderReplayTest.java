@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Replays drag traces through the occupancy work that the reorder solver of {@link CellLayout}
+ * does for each drag over event: copying the occupied cells into the temporary grid, vacating
+ * the items under the dragged item, and searching the nearest area where they fit as a block.
+ * <p/>
+ * The solver used to allocate a block grid per event; it now reuses one sized to the layout and
+ * only clears the part covering the block. Both must find the same areas for every event, even
+ * though the reused grid carries stale cells from earlier events outside that part.
+ * <p/>
+ * The traces are seeded random walks of a 2x2 item, so that the runs are repeatable.
+ */
+public class CellLayoutReorderReplayTest extends TestCase {
+
+    private static final int[][] SIZES = new int[][]{{4, 4}, {5, 5}, {6, 6}, {4, 7}, {8, 8},
+            {10, 10}};
+    private static final int TRACE_LENGTH = 500;
+    private static final int TRACES = 10;
+    private static final int DRAG_SPAN = 2;
+
+    public void testReusedScratchGridsFindSameAreas() {
+        for (int[] size : SIZES) {
+            int countX = size[0];
+            int countY = size[1];
+            Random random = new Random(countX * 31 + countY);
+            ArrayList<int[]> items = populate(countX, countY, random);
+            ArrayList<int[]> traces = new ArrayList<>();
+            for (int i = 0; i < TRACES; i++) {
+                traces.add(recordTrace(countX, countY, random));
+            }
+
+            long[] expected = replay(countX, countY, items, traces, false);
+            long[] actual = replay(countX, countY, items, traces, true);
+            assertTrue("Found no block moves on " + countX + "x" + countY, actual[1] > 0);
+            assertEquals("Areas differ on " + countX + "x" + countY, expected[0], actual[0]);
+            assertEquals(expected[1], actual[1]);
+        }
+    }
+
+    /**
+     * Fills about half of the grid with items of 1x1 to 3x3 cells.
+     */
+    private static ArrayList<int[]> populate(int countX, int countY, Random random) {
+        boolean[][] occupied = new boolean[countX][countY];
+        ArrayList<int[]> items = new ArrayList<>();
+        for (int i = 0; i < countX * countY / 4; i++) {
+            int spanX = 1 + random.nextInt(3);
+            int spanY = 1 + random.nextInt(3);
+            int x = random.nextInt(countX - spanX + 1);
+            int y = random.nextInt(countY - spanY + 1);
+            if (isVacant(occupied, x, y, spanX, spanY)) {
+                mark(occupied, x, y, spanX, spanY, true);
+                items.add(new int[]{x, y, spanX, spanY});
+            }
+        }
+        return items;
+    }
+
+    private static int[] recordTrace(int countX, int countY, Random random) {
+        int[] trace = new int[TRACE_LENGTH * 2];
+        int x = random.nextInt(countX - DRAG_SPAN + 1);
+        int y = random.nextInt(countY - DRAG_SPAN + 1);
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            x = Math.max(0, Math.min(countX - DRAG_SPAN, x + random.nextInt(3) - 1));
+            y = Math.max(0, Math.min(countY - DRAG_SPAN, y + random.nextInt(3) - 1));
+            trace[i * 2] = x;
+            trace[i * 2 + 1] = y;
+        }
+        return trace;
+    }
+
+    /**
+     * Replays the traces, either allocating the scratch grids per event as the solver used to, or
+     * reusing them as it does now.
+     *
+     * @return a checksum of the areas found, and the number of events that found one
+     */
+    private static long[] replay(int countX, int countY, ArrayList<int[]> items,
+            ArrayList<int[]> traces, boolean reuse) {
+        boolean[][] occupied = new boolean[countX][countY];
+        for (int[] item : items) {
+            mark(occupied, item[0], item[1], item[2], item[3], true);
+        }
+        boolean[][] tmpOccupied = new boolean[countX][countY];
+        boolean[][] reusedBlockOccupied = new boolean[countX][countY];
+        int[] bounds = new int[4];
+        long checksum = 0;
+        long found = 0;
+        for (int[] trace : traces) {
+            for (int i = 0; i < trace.length; i += 2) {
+                int dragX = trace[i];
+                int dragY = trace[i + 1];
+                for (int x = 0; x < countX; x++) {
+                    if (reuse) {
+                        System.arraycopy(occupied[x], 0, tmpOccupied[x], 0, countY);
+                    } else {
+                        for (int y = 0; y < countY; y++) {
+                            tmpOccupied[x][y] = occupied[x][y];
+                        }
+                    }
+                }
+                if (!intersectingBounds(items, dragX, dragY, bounds)) continue;
+
+                int spanX = bounds[2] - bounds[0];
+                int spanY = bounds[3] - bounds[1];
+                boolean[][] blockOccupied;
+                if (reuse) {
+                    blockOccupied = reusedBlockOccupied;
+                    for (int x = 0; x < spanX; x++) {
+                        Arrays.fill(blockOccupied[x], 0, spanY, false);
+                    }
+                } else {
+                    blockOccupied = new boolean[spanX][spanY];
+                }
+                for (int[] item : items) {
+                    if (intersects(item, dragX, dragY)) {
+                        mark(tmpOccupied, item[0], item[1], item[2], item[3], false);
+                        mark(blockOccupied, item[0] - bounds[0], item[1] - bounds[1],
+                                item[2], item[3], true);
+                    }
+                }
+                mark(tmpOccupied, dragX, dragY, DRAG_SPAN, DRAG_SPAN, true);
+
+                long best = -1;
+                int bestDistance = Integer.MAX_VALUE;
+                for (int y = 0; y + spanY <= countY; y++) {
+                    inner:
+                    for (int x = 0; x + spanX <= countX; x++) {
+                        for (int a = 0; a < spanX; a++) {
+                            for (int b = 0; b < spanY; b++) {
+                                if (tmpOccupied[x + a][y + b] && blockOccupied[a][b]) {
+                                    continue inner;
+                                }
+                            }
+                        }
+                        int distance = distance(x, y, bounds);
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            best = y * countX + x;
+                        }
+                    }
+                }
+                if (best >= 0) found++;
+                checksum = checksum * 31 + best;
+            }
+        }
+        return new long[]{checksum, found};
+    }
+
+    private static boolean intersects(int[] item, int dragX, int dragY) {
+        return item[0] < dragX + DRAG_SPAN && dragX < item[0] + item[2]
+                && item[1] < dragY + DRAG_SPAN && dragY < item[1] + item[3];
+    }
+
+    /**
+     * Computes the bounds of the items under the dragged item, as left, top, right, bottom.
+     *
+     * @return false if there is no item under the dragged item
+     */
+    private static boolean intersectingBounds(ArrayList<int[]> items, int dragX, int dragY,
+            int[] bounds) {
+        boolean found = false;
+        for (int[] item : items) {
+            if (!intersects(item, dragX, dragY)) continue;
+            if (!found) {
+                bounds[0] = item[0];
+                bounds[1] = item[1];
+                bounds[2] = item[0] + item[2];
+                bounds[3] = item[1] + item[3];
+                found = true;
+            } else {
+                bounds[0] = Math.min(bounds[0], item[0]);
+                bounds[1] = Math.min(bounds[1], item[1]);
+                bounds[2] = Math.max(bounds[2], item[0] + item[2]);
+                bounds[3] = Math.max(bounds[3], item[1] + item[3]);
+            }
+        }
+        return found;
+    }
+
+    private static int distance(int x, int y, int[] bounds) {
+        int dx = x - bounds[0];
+        int dy = y - bounds[1];
+        return dx * dx + dy * dy;
+    }
+
+    private static boolean isVacant(boolean[][] occupied, int cellX, int cellY, int spanX,
+            int spanY) {
+        for (int x = cellX; x < cellX + spanX; x++) {
+            for (int y = cellY; y < cellY + spanY; y++) {
+                if (occupied[x][y]) return false;
+            }
+        }
+        return true;
+    }
+
+    private static void mark(boolean[][] occupied, int cellX, int cellY, int spanX, int spanY,
+            boolean value) {
+        if (cellX < 0 || cellY < 0) return;
+        for (int x = cellX; x < cellX + spanX && x < occupied.length; x++) {
+            for (int y = cellY; y < cellY + spanY && y < occupied[x].length; y++) {
+                occupied[x][y] = value;
+            }
+        }
+    }
+}
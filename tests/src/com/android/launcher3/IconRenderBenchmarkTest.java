@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the throughput of {@link Utilities#createIconBitmap(Drawable, android.content.Context)}
+ * with 1, 2, 4 and 8 threads rendering icons at the same time.
+ */
+@LargeTest
+public class IconRenderBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "IconRenderBenchmarkTest";
+    private static final int ICONS_PER_RUN = 400;
+    private static final int[] THREAD_COUNTS = new int[]{1, 2, 4, 8};
+
+    private int mIconBitmapSize;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (LauncherAppState.getInstanceNoCreate() == null) {
+            LauncherAppState.setApplicationContext(getContext());
+        }
+        mIconBitmapSize = LauncherAppState.getInstance().getInvariantDeviceProfile().iconBitmapSize;
+    }
+
+    public void testCreateIconBitmapThroughput() throws Exception {
+        // Warm up, so that the first run does not pay for class loading and JIT.
+        runIcons(1, ICONS_PER_RUN / 4);
+
+        for (int threads : THREAD_COUNTS) {
+            long duration = runIcons(threads, ICONS_PER_RUN);
+            Log.d(TAG, threads + " thread(s): " + ICONS_PER_RUN + " icons in " + duration
+                    + "ms, " + (ICONS_PER_RUN * 1000L / Math.max(1, duration)) + " icons/s");
+        }
+    }
+
+    private long runIcons(int threadCount, final int iconCount) throws InterruptedException {
+        final AtomicInteger remaining = new AtomicInteger(iconCount);
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final Resources res = Resources.getSystem();
+
+        long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (remaining.getAndDecrement() > 0) {
+                        // Every icon gets its own drawable, like the icon cache does.
+                        Drawable d = res.getDrawable(android.R.mipmap.sym_def_app_icon);
+                        Bitmap b = Utilities.createIconBitmap(d, getContext());
+                        if (b == null || b.getWidth() != mIconBitmapSize
+                                || b.getHeight() != mIconBitmapSize) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        long duration = SystemClock.uptimeMillis() - start;
+        assertEquals(0, failures.get());
+        return duration;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.launcher3.compat.UserHandleCompat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs package updates and workspace edits on the worker thread of {@link LauncherModel}, posted
+ * from several threads at once, through the same model methods as the launcher, while other
+ * threads keep reading
+ * {@link LauncherModel#getModelSnapshot()} and check that every snapshot is consistent:
+ * <ul>
+ * <li>the items of a package are all there or none of them, as each update is one task</li>
+ * <li>workspace items, widgets and folders are all in the item map, without duplicates</li>
+ * <li>a snapshot never changes after it was published, and versions only increase</li>
+ * </ul>
+ * The bg data structures are saved before the test and restored after it. The items are added
+ * to the structures directly, like the loader does, with ids which are not in the database so
+ * that the deletes queued for them do nothing.
+ */
+@LargeTest
+public class ModelSnapshotStressTest extends AndroidTestCase {
+
+    private static final String TAG = "ModelSnapshotStressTest";
+    private static final int PACKAGES = 16;
+    private static final int ITEMS_PER_PACKAGE = 5;
+    private static final int MAX_SCREENS = 3;
+    private static final int TASKS_PER_WRITER = 2000;
+    private static final int PACKAGE_WRITERS = 2;
+    private static final int EDIT_WRITERS = 2;
+    private static final int READERS = 3;
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final long FIRST_ID = 1L << 40;
+    private static final String PACKAGE_PREFIX = "com.android.launcher3.stress.package";
+
+    private final ConcurrentHashMap<Long, Integer> mPackageOfItem = new ConcurrentHashMap<>();
+    private final AtomicLong mNextId = new AtomicLong(FIRST_ID);
+    private final UserHandleCompat mUser = UserHandleCompat.myUserHandle();
+    private final StackTraceElement[] mStackTrace = new Throwable().getStackTrace();
+
+    private ArrayList<ItemInfo> mSavedItems;
+    private ArrayList<ItemInfo> mSavedWorkspaceItems;
+    private ArrayList<LauncherAppWidgetInfo> mSavedAppWidgets;
+    private ArrayList<FolderInfo> mSavedFolders;
+    private ArrayList<Long> mSavedScreens;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        runOnWorker(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (LauncherModel.sBgLock) {
+                    mSavedItems = new ArrayList<>();
+                    for (ItemInfo info : LauncherModel.sBgItemsIdMap) {
+                        mSavedItems.add(info);
+                    }
+                    mSavedWorkspaceItems = new ArrayList<>(LauncherModel.sBgWorkspaceItems);
+                    mSavedAppWidgets = new ArrayList<>(LauncherModel.sBgAppWidgets);
+                    mSavedFolders = new ArrayList<>();
+                    for (FolderInfo info : LauncherModel.sBgFolders) {
+                        mSavedFolders.add(info);
+                    }
+                    mSavedScreens = new ArrayList<>(LauncherModel.sBgWorkspaceScreens);
+                    clearModelLocked();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnWorker(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (LauncherModel.sBgLock) {
+                    clearModelLocked();
+                    for (ItemInfo info : mSavedItems) {
+                        LauncherModel.sBgItemsIdMap.put(info.id, info);
+                    }
+                    LauncherModel.sBgWorkspaceItems.addAll(mSavedWorkspaceItems);
+                    LauncherModel.sBgAppWidgets.addAll(mSavedAppWidgets);
+                    for (FolderInfo info : mSavedFolders) {
+                        LauncherModel.sBgFolders.put(info.id, info);
+                    }
+                    LauncherModel.sBgWorkspaceScreens.addAll(mSavedScreens);
+                    LauncherModel.markModelChangedLocked();
+                }
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testConcurrentPackageUpdatesAndWorkspaceEdits() throws Exception {
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final AtomicLong snapshotsRead = new AtomicLong();
+        final CountDownLatch writersPosted = new CountDownLatch(PACKAGE_WRITERS + EDIT_WRITERS);
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+
+        for (int i = 0; i < PACKAGE_WRITERS + EDIT_WRITERS; i++) {
+            final boolean packageWriter = i < PACKAGE_WRITERS;
+            final Random random = new Random(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int t = 0; t < TASKS_PER_WRITER; t++) {
+                        final int choice = random.nextInt(Integer.MAX_VALUE);
+                        LauncherModel.sWorker.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (packageWriter) {
+                                    updatePackage(choice % PACKAGES);
+                                } else {
+                                    editWorkspace(choice);
+                                }
+                            }
+                        });
+                    }
+                    writersPosted.countDown();
+                }
+            }, "writer-" + i).start();
+        }
+
+        for (int i = 0; i < READERS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long lastVersion = -1;
+                    while (writing.get() && failure.get() == null) {
+                        ModelSnapshot snapshot = LauncherModel.getModelSnapshot();
+                        if (snapshot.version < lastVersion) {
+                            failure.set("Version went back from " + lastVersion + " to "
+                                    + snapshot.version);
+                        }
+                        lastVersion = snapshot.version;
+                        String error = checkSnapshot(snapshot);
+                        if (error == null) {
+                            // A published snapshot must not be changed by later tasks.
+                            Thread.yield();
+                            error = checkSnapshot(snapshot);
+                        }
+                        if (error != null) {
+                            failure.set(error);
+                        }
+                        snapshotsRead.incrementAndGet();
+                    }
+                    readersDone.countDown();
+                }
+            }, "reader-" + i).start();
+        }
+
+        assertTrue(writersPosted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // Waits for all the posted tasks, as the worker runs them in order.
+        runOnWorker(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        writing.set(false);
+        assertTrue(readersDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(failure.get(), failure.get());
+
+        // Once the worker is idle, the latest snapshot has all the changes.
+        ModelSnapshot snapshot = LauncherModel.getModelSnapshot();
+        assertNull(checkSnapshot(snapshot));
+        synchronized (LauncherModel.sBgLock) {
+            assertEquals(LauncherModel.sBgItemsIdMap.size(), snapshot.itemsIdMap.size());
+            assertEquals(LauncherModel.sBgWorkspaceItems, snapshot.workspaceItems);
+            assertEquals(LauncherModel.sBgFolders.size(), snapshot.folders.size());
+            assertEquals(LauncherModel.sBgWorkspaceScreens, snapshot.workspaceScreens);
+        }
+        Log.d(TAG, "Read " + snapshotsRead.get() + " snapshots, "
+                + snapshot.version + " published");
+    }
+
+    /**
+     * Adds all the items of a package if it is not there, or removes them all with
+     * {@link LauncherModel#deletePackageFromDatabase}, in one task like the package updated task
+     * does. Must be called on the worker thread.
+     */
+    private void updatePackage(int packageId) {
+        boolean installed = false;
+        for (ItemInfo info : LauncherModel.getModelSnapshot().itemsIdMap) {
+            Integer pkg = mPackageOfItem.get(info.id);
+            if (pkg != null && pkg == packageId) {
+                installed = true;
+                break;
+            }
+        }
+        if (installed) {
+            LauncherModel.deletePackageFromDatabase(getContext(), PACKAGE_PREFIX + packageId,
+                    mUser);
+            return;
+        }
+        for (int i = 0; i < ITEMS_PER_PACKAGE; i++) {
+            ShortcutInfo info = new ShortcutInfo();
+            info.id = mNextId.getAndIncrement();
+            info.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+            info.user = mUser;
+            info.intent = new Intent(Intent.ACTION_MAIN).setComponent(
+                    new ComponentName(PACKAGE_PREFIX + packageId, "Activity" + i));
+            mPackageOfItem.put(info.id, packageId);
+            addItem(info);
+        }
+    }
+
+    /**
+     * Moves an item between the workspace and a folder, adds or removes a folder, or adds a
+     * screen, like the drops and deletes of the workspace do. Must be called on the worker
+     * thread.
+     */
+    private void editWorkspace(int choice) {
+        ModelSnapshot model = LauncherModel.getModelSnapshot();
+        switch (choice % 3) {
+            case 0: {
+                if (model.itemsIdMap.isEmpty()) break;
+                ItemInfo info = model.itemsIdMap.valueAt(
+                        (choice / 3) % model.itemsIdMap.size());
+                if (!(info instanceof ShortcutInfo)) break;
+                // Only the items on the desktop are workspace items.
+                if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                        && !model.folders.isEmpty()) {
+                    info.container = model.folders.valueAt(0).id;
+                } else {
+                    info.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+                }
+                LauncherModel.updateItemArrays(info, info.id, mStackTrace);
+                break;
+            }
+            case 1: {
+                if (!model.folders.isEmpty() && (choice & 8) != 0) {
+                    FolderInfo folder = model.folders.valueAt(0);
+                    ArrayList<ItemInfo> contents = new ArrayList<>();
+                    for (ItemInfo info : model.itemsIdMap) {
+                        if (info.container == folder.id) {
+                            contents.add(info);
+                        }
+                    }
+                    for (ItemInfo info : contents) {
+                        info.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+                        LauncherModel.updateItemArrays(info, info.id, mStackTrace);
+                    }
+                    LauncherModel.deleteItemFromDatabase(getContext(), folder);
+                } else {
+                    FolderInfo folder = new FolderInfo();
+                    folder.id = mNextId.getAndIncrement();
+                    folder.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+                    addItem(folder);
+                }
+                break;
+            }
+            default: {
+                // Screens are only changed along with the database, so directly here.
+                synchronized (LauncherModel.sBgLock) {
+                    LauncherModel.sBgWorkspaceScreens.add(mNextId.getAndIncrement());
+                    if (LauncherModel.sBgWorkspaceScreens.size() > MAX_SCREENS) {
+                        LauncherModel.sBgWorkspaceScreens.remove(0);
+                    }
+                    LauncherModel.markModelChangedLocked();
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds {@param info} to the item map like the loader does, and to the workspace items with
+     * {@link LauncherModel#updateItemArrays}.
+     */
+    private void addItem(ItemInfo info) {
+        synchronized (LauncherModel.sBgLock) {
+            LauncherModel.sBgItemsIdMap.put(info.id, info);
+            if (info instanceof FolderInfo) {
+                LauncherModel.sBgFolders.put(info.id, (FolderInfo) info);
+            }
+        }
+        LauncherModel.updateItemArrays(info, info.id, mStackTrace);
+    }
+
+    /**
+     * Returns what is inconsistent in the snapshot, or null.
+     */
+    private String checkSnapshot(ModelSnapshot snapshot) {
+        int[] itemsOfPackage = new int[PACKAGES];
+        for (ItemInfo info : snapshot.itemsIdMap) {
+            Integer pkg = mPackageOfItem.get(info.id);
+            if (pkg != null) {
+                itemsOfPackage[pkg]++;
+            }
+        }
+        for (int pkg = 0; pkg < PACKAGES; pkg++) {
+            if (itemsOfPackage[pkg] != 0 && itemsOfPackage[pkg] != ITEMS_PER_PACKAGE) {
+                return "Package " + pkg + " has " + itemsOfPackage[pkg] + " items";
+            }
+        }
+
+        HashSet<ItemInfo> seen = new HashSet<>();
+        for (ItemInfo info : snapshot.workspaceItems) {
+            if (!seen.add(info)) {
+                return "Workspace item " + info.id + " is listed twice";
+            }
+            if (snapshot.itemsIdMap.get(info.id) != info) {
+                return "Workspace item " + info.id + " is not in the item map";
+            }
+        }
+        for (ItemInfo info : snapshot.appWidgets) {
+            if (snapshot.itemsIdMap.get(info.id) != info) {
+                return "Widget " + info.id + " is not in the item map";
+            }
+        }
+        for (FolderInfo info : snapshot.folders) {
+            if (snapshot.itemsIdMap.get(info.id) != info) {
+                return "Folder " + info.id + " is not in the item map";
+            }
+        }
+        if (snapshot.workspaceScreens.size() > MAX_SCREENS
+                || new HashSet<>(snapshot.workspaceScreens).size()
+                        != snapshot.workspaceScreens.size()) {
+            return "Unexpected screens " + snapshot.workspaceScreens;
+        }
+        return null;
+    }
+
+    private static void clearModelLocked() {
+        LauncherModel.sBgItemsIdMap.clear();
+        LauncherModel.sBgWorkspaceItems.clear();
+        LauncherModel.sBgAppWidgets.clear();
+        LauncherModel.sBgFolders.clear();
+        LauncherModel.sBgWorkspaceScreens.clear();
+        LauncherModel.markModelChangedLocked();
+    }
+
+    private static void runOnWorker(final Runnable r) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        LauncherModel.sWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                r.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.palette;
+
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.launcher3.IconPackHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the swatches of {@link ColorCutQuantizer} against the previous implementation and
+ * measures {@link Palette#generate} over the icons of the installed apps.
+ */
+@LargeTest
+public class PaletteBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "PaletteBenchmarkTest";
+    private static final int ICON_SIZE = 192;
+    private static final int RUNS = 5;
+    // How far each RGB component of an icon's dominant swatch may be from the one the previous
+    // quantizer found. Colors are binned to 5 bits per component, two bins apart is 16.
+    private static final int DOMINANT_SWATCH_TOLERANCE = 16;
+    // Share of the icons whose dominant swatch must be within the tolerance. Boxes are split on
+    // the binned colors, so a few icons with two colors of similar population change dominant.
+    private static final float MIN_MATCHING_SHARE = 0.9f;
+
+    public void testFewColorsYieldExactSwatches() {
+        int[] colors = new int[]{0xFF1E88E5, 0xFFE53935, 0xFF43A047};
+        Bitmap bitmap = Bitmap.createBitmap(90, 30, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        for (int i = 0; i < colors.length; i++) {
+            paint.setColor(colors[i]);
+            canvas.drawRect(i * 30, 0, (i + 1) * 30, 30, paint);
+        }
+
+        List<Palette.Swatch> swatches = ColorCutQuantizer
+                .fromBitmap(bitmap, IconPackHelper.NUM_PALETTE_COLORS).getQuantizedColors();
+        assertEquals(colors.length, swatches.size());
+        for (int color : colors) {
+            Palette.Swatch swatch = findSwatch(swatches, color);
+            assertNotNull("No swatch for " + Integer.toHexString(color), swatch);
+            assertEquals(30 * 30, swatch.getPopulation());
+        }
+    }
+
+    public void testTransparentPixelsAreIgnored() {
+        Bitmap bitmap = Bitmap.createBitmap(40, 40, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        assertTrue(ColorCutQuantizer.fromBitmap(bitmap, IconPackHelper.NUM_PALETTE_COLORS)
+                .getQuantizedColors().isEmpty());
+    }
+
+    public void testDominantSwatchesMatchPreviousQuantizer() {
+        ArrayList<Bitmap> icons = loadIconCorpus();
+        assertFalse(icons.isEmpty());
+
+        int matching = 0;
+        int worstDelta = 0;
+        for (Bitmap icon : icons) {
+            // The previous quantizer drops the alpha of partially transparent colors while
+            // ordering a box, which garbles its boxes, so only compare the opaque pixels.
+            Bitmap opaque = dropTranslucentPixels(icon);
+            Palette.Swatch expected = findDominantSwatch(LegacyColorCutQuantizer
+                    .fromBitmap(opaque, IconPackHelper.NUM_PALETTE_COLORS).getQuantizedColors());
+            Palette.Swatch actual = findDominantSwatch(ColorCutQuantizer
+                    .fromBitmap(opaque, IconPackHelper.NUM_PALETTE_COLORS).getQuantizedColors());
+            if (expected == null || actual == null) {
+                if (expected == actual) {
+                    matching++;
+                }
+                continue;
+            }
+            int delta = getComponentDelta(expected.getRgb(), actual.getRgb());
+            worstDelta = Math.max(worstDelta, delta);
+            if (delta <= DOMINANT_SWATCH_TOLERANCE) {
+                matching++;
+            }
+        }
+        Log.d(TAG, matching + " of " + icons.size() + " dominant swatches within "
+                + DOMINANT_SWATCH_TOLERANCE + ", worst delta " + worstDelta);
+        assertTrue(matching >= MIN_MATCHING_SHARE * icons.size());
+    }
+
+    public void testGenerateThroughput() {
+        ArrayList<Bitmap> icons = loadIconCorpus();
+        assertFalse(icons.isEmpty());
+
+        // Warm up, so that the measured runs do not pay for class loading and JIT.
+        for (Bitmap icon : icons) {
+            Palette.generate(icon, IconPackHelper.NUM_PALETTE_COLORS);
+        }
+
+        long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < RUNS; i++) {
+            for (Bitmap icon : icons) {
+                Palette.generate(icon, IconPackHelper.NUM_PALETTE_COLORS);
+            }
+        }
+        long duration = SystemClock.uptimeMillis() - start;
+        int count = icons.size() * RUNS;
+        Log.d(TAG, count + " palettes in " + duration + "ms, "
+                + (duration * 1000f / count) + "us per icon");
+    }
+
+    private ArrayList<Bitmap> loadIconCorpus() {
+        PackageManager pm = getContext().getPackageManager();
+        Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+        ArrayList<Bitmap> icons = new ArrayList<>();
+        for (ResolveInfo info : pm.queryIntentActivities(intent, 0)) {
+            Drawable drawable = info.loadIcon(pm);
+            Bitmap bitmap = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            drawable.setBounds(0, 0, ICON_SIZE, ICON_SIZE);
+            drawable.draw(canvas);
+            icons.add(bitmap);
+        }
+        return icons;
+    }
+
+    private static Bitmap dropTranslucentPixels(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        for (int i = 0; i < pixels.length; i++) {
+            if (Color.alpha(pixels[i]) != 0xFF) {
+                pixels[i] = Color.TRANSPARENT;
+            }
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static Palette.Swatch findDominantSwatch(List<Palette.Swatch> swatches) {
+        Palette.Swatch dominant = null;
+        for (Palette.Swatch swatch : swatches) {
+            if (dominant == null || swatch.getPopulation() > dominant.getPopulation()) {
+                dominant = swatch;
+            }
+        }
+        return dominant;
+    }
+
+    private static int getComponentDelta(int a, int b) {
+        return Math.max(Math.abs(Color.red(a) - Color.red(b)), Math.max(
+                Math.abs(Color.green(a) - Color.green(b)), Math.abs(Color.blue(a) - Color.blue(b))));
+    }
+
+    private static Palette.Swatch findSwatch(List<Palette.Swatch> swatches, int color) {
+        for (Palette.Swatch swatch : swatches) {
+            if (swatch.getRgb() == color) {
+                return swatch;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos.views;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View;
+
+import com.android.gallery3d.glrenderer.BasicTexture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pans a {@link TiledImageRenderer} over a large synthetic image one step per frame, without a
+ * GL surface, and measures how long it takes until all the tiles of the last position are
+ * decoded, with 1, 2 and the default number of decoder threads. Each synthetic tile costs about
+ * as much CPU as decoding a JPEG region.
+ */
+@LargeTest
+public class TiledImageRendererBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "TiledImageRendererBenchmarkTest";
+    private static final int TILE_SIZE = 256;
+    private static final int IMAGE_WIDTH = 8192;
+    private static final int IMAGE_HEIGHT = 4096;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+    private static final int PAN_STEPS = 30;
+    private static final int PAN_STEP = 150;
+    private static final long FRAME_MS = 16;
+    private static final long TIMEOUT_MS = 60000;
+    private static final int WORK_PER_PIXEL = 24;
+
+    public void testPanDecodeTime() {
+        // Warm up, so that the first run does not pay for class loading and JIT.
+        runPan(TiledImageRenderer.getDecoderCount());
+
+        int[] decoderCounts = new int[]{1, 2, TiledImageRenderer.getDecoderCount()};
+        for (int i = 0; i < decoderCounts.length; i++) {
+            if (i > 0 && decoderCounts[i] <= decoderCounts[i - 1]) continue;
+            runPan(decoderCounts[i]);
+        }
+    }
+
+    private void runPan(int decoderCount) {
+        SyntheticTileSource source = new SyntheticTileSource();
+        TiledImageRenderer renderer = new TiledImageRenderer(new View(getContext()), decoderCount);
+        try {
+            renderer.setModel(source, 0);
+            renderer.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+
+            long start = SystemClock.uptimeMillis();
+            int centerY = IMAGE_HEIGHT / 2;
+            for (int step = 0; step < PAN_STEPS; step++) {
+                renderer.setPosition(VIEW_WIDTH + step * PAN_STEP, centerY, 1f);
+                renderer.queueAllTilesForDecode();
+                SystemClock.sleep(FRAME_MS);
+            }
+            while (!renderer.isDecodeIdle()) {
+                assertTrue("Tiles not decoded in time",
+                        SystemClock.uptimeMillis() - start < TIMEOUT_MS);
+                SystemClock.sleep(1);
+            }
+            long duration = SystemClock.uptimeMillis() - start;
+            Log.d(TAG, decoderCount + " decoder(s): settled in " + duration + "ms, "
+                    + source.mDecodedCount.get() + " tiles decoded");
+        } finally {
+            renderer.freeTextures();
+        }
+    }
+
+    /**
+     * Draws a gradient into each tile, spending a fixed amount of work per pixel.
+     */
+    private static class SyntheticTileSource implements TiledImageRenderer.TileSource {
+        final AtomicInteger mDecodedCount = new AtomicInteger();
+
+        @Override
+        public int getTileSize() {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getImageWidth() {
+            return IMAGE_WIDTH;
+        }
+
+        @Override
+        public int getImageHeight() {
+            return IMAGE_HEIGHT;
+        }
+
+        @Override
+        public int getRotation() {
+            return 0;
+        }
+
+        @Override
+        public BasicTexture getPreview() {
+            return null;
+        }
+
+        @Override
+        public Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+            }
+            int[] row = new int[TILE_SIZE];
+            for (int j = 0; j < TILE_SIZE; j++) {
+                for (int i = 0; i < TILE_SIZE; i++) {
+                    int value = (x >> level) + i + (y >> level) + j;
+                    for (int k = 0; k < WORK_PER_PIXEL; k++) {
+                        value = value * 31 + k;
+                    }
+                    row[i] = 0xFF000000 | (value & 0xFFFFFF);
+                }
+                bitmap.setPixels(row, 0, TILE_SIZE, 0, j, TILE_SIZE, 1);
+            }
+            mDecodedCount.incrementAndGet();
+            return bitmap;
+        }
+    }
+}